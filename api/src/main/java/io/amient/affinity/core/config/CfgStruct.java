@@ -176,6 +176,21 @@ public class CfgStruct<T extends CfgStruct> extends Cfg<T> implements CfgNested
         return config;
     }
 
+    /**
+     * @return new instance of this struct applied to the same config which doesn't share any state with this one,
+     * values that were set programmatically on this instance are not copied
+     */
+    public T copy() {
+        try {
+            T copy = (T) getClass().newInstance();
+            copy.apply(config);
+            copy.setPath(path());
+            return copy;
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new IllegalStateException(getClass().getName() + " cannot be copied", e);
+        }
+    }
+
     public CfgString string(String path, boolean required) {
         return add(path, new CfgString(), required, Optional.empty());
     }
@@ -43,11 +43,49 @@ public class StateConf extends CfgStruct<StateConf> {
     public MemStoreConf MemStore = struct("memstore", new MemStoreConf(), true);
 
     public Cfg<Long> LockTimeoutMs = longint("lock.timeout.ms", 10000L)
-            .doc("How long a lock can be held by a single thread before throwing a TimeoutException");
+            .doc("How long a write can wait for the lock of its key before failing with a TimeoutException");
 
     public Cfg<Long> WriteTimeoutMs = longint("write.timeout.ms", 10000L)
             .doc("How long can any of the write operation on a global store take before throwing a TimeoutException");
 
+    public Cfg<Long> ReadMaxStalenessMs = longint("read.max.staleness.ms", -1L)
+            .doc("Maximum replication lag with which a standby replica can serve reads that don't carry a consistency token, -1 means only reads with a token can be served by standbys");
+
+    public Cfg<Integer> CacheMaxEntries = integer("cache.max.entries", 0)
+            .doc("Maximum number of deserialized values kept in memory for the most recently read keys, 0 disables the cache");
+
+    public WindowConf Window = struct("window", new WindowConf(), false)
+            .doc("Time windows into which the keys of the state are organized, each window is kept in a separate segment of the memstore which is dropped as a whole when the window expires");
+
+    public static class WindowConf extends CfgStruct<WindowConf> {
+
+        @Override
+        public WindowConf doc(String description) {
+            super.doc(description);
+            return this;
+        }
+
+        public Cfg<Long> SizeMs = longint("size.ms", true)
+                .doc("Length of each window in milliseconds");
+
+        public Cfg<Long> AdvanceMs = longint("advance.ms", false)
+                .doc("Interval between the starts of consecutive windows, if smaller than size.ms the windows are hopping, if not set the windows are tumbling");
+
+        public Cfg<Long> RetentionMs = longint("retention.ms", 0L)
+                .doc("How long a window is kept after its end before the whole segment is dropped");
+
+        public long advanceMs() {
+            return AdvanceMs.isDefined() ? AdvanceMs.apply() : SizeMs.apply();
+        }
+
+        /**
+         * @return how long after its start a window is kept
+         */
+        public long lifetimeMs() {
+            return SizeMs.apply() + RetentionMs.apply();
+        }
+    }
+
     @Override
     public StateConf apply(Config config) throws IllegalArgumentException {
         StateConf self = super.apply(config);
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.core.storage;
+
+/**
+ * BootstrapListener is notified by the Log about the progress of a bootstrap.
+ * Implementations may block inside onRecord to throttle the rate at which the storage is consumed.
+ */
+public interface BootstrapListener {
+
+    BootstrapListener NOOP = new BootstrapListener() {};
+
+    /**
+     * @param identifier identifier of the state being bootstrapped
+     * @param bytes      size of the record that was consumed from the storage
+     * @param remaining  estimated number of records until the end of the bootstrap or -1 if not known
+     */
+    default void onRecord(String identifier, int bytes, long remaining) { }
+
+    /**
+     * @param identifier          identifier of the state that completed its bootstrap
+     * @param numRecordsProcessed number of records that were applied to the state
+     */
+    default void onComplete(String identifier, long numRecordsProcessed) { }
+
+}
@@ -1,7 +1,9 @@
 package io.amient.affinity.core.storage;
 
+import com.codahale.metrics.Meter;
 import io.amient.affinity.core.state.ObservableState;
 import io.amient.affinity.core.util.EventTime;
+import io.amient.affinity.core.util.JavaPromise;
 import io.amient.affinity.core.util.MappedJavaFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,11 +12,17 @@ import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 public class Log<POS extends Comparable<POS>> extends Thread implements Closeable {
@@ -29,6 +37,18 @@ public class Log<POS extends Comparable<POS>> extends Thread implements Closeabl
 
     final private AtomicReference<POS> checkpoint = new AtomicReference<>(null);
 
+    final private AtomicReference<POS> endPosition = new AtomicReference<>(null);
+
+    final private Meter applied = new Meter();
+
+    volatile private long lastAppliedTimestamp = 0L;
+
+    volatile private long bootstrapStartMs = 0L;
+
+    volatile private long bootstrapProcessed = 0L;
+
+    volatile private long bootstrapRemaining = -1L;
+
     volatile private boolean checkpointModified = false;
 
     volatile private boolean stopped = true;
@@ -41,6 +61,25 @@ public class Log<POS extends Comparable<POS>> extends Thread implements Closeabl
 
     final private LogStorage<POS> storage;
 
+    /*
+     * With a transactional storage, writes are applied to the state when they are acknowledged, before their
+     * transaction commits, so that reads that follow a write see it. The checkpoint file only exists while all
+     * writes applied to the state are committed: if the process dies with uncommitted writes applied, the state
+     * is rebuilt from the committed records of the log; if a transaction aborts, the state is erased immediately,
+     * the abort listeners are notified and the state rejects writes until it is bootstrapped again.
+     */
+    final private boolean transactional;
+
+    final private Object transactionLock = new Object();
+
+    volatile private boolean uncommitted = false;
+
+    volatile private MemStore writeStore = null;
+
+    volatile private Exception aborted = null;
+
+    final private List<Consumer<Exception>> abortListeners = new CopyOnWriteArrayList<>();
+
     private abstract class LogSync extends Thread implements Closeable { }
 
     private AtomicReference<LogSync> logsync = new AtomicReference<>();
@@ -63,23 +102,130 @@ public class Log<POS extends Comparable<POS>> extends Thread implements Closeabl
             }
             log.info("Initial Position " + checkpoint + " from " + checkpointFile);
         }
+        this.transactional = storage.isTransactional();
+        if (transactional) {
+            storage.addTransactionListener(new TransactionListener() {
+                @Override
+                public void onCommit() {
+                    synchronized (transactionLock) {
+                        if (uncommitted && aborted == null) {
+                            uncommitted = false;
+                            checkpointModified = true;
+                            checkpointWriter.accept(0L);
+                        }
+                    }
+                }
+
+                @Override
+                public void onAbort(Exception cause) {
+                    rollback(cause);
+                    for (Consumer<Exception> listener : abortListeners) try {
+                        listener.accept(cause);
+                    } catch (Exception e) {
+                        log.error("Abort listener failed", e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @param listener called after the state was erased because a transaction aborted, the owner of the state
+     *                 must discard everything derived from it and bootstrap it again
+     */
+    public void addAbortListener(Consumer<Exception> listener) {
+        abortListeners.add(listener);
+    }
+
+    /**
+     * @return true if the state was erased after an aborted transaction and hasn't been bootstrapped since
+     */
+    public boolean isAborted() {
+        return aborted != null;
     }
 
     public String getStats() {
-        return "Log: checkpoint=" + checkpoint.toString() + "; storage=" + storage.getStats();
+        return "Log: checkpoint=" + checkpoint.toString()
+                + "; end=" + endPosition.toString()
+                + "; records/sec=" + String.format("%.1f", getRecordsPerSecond())
+                + "; lag.records=" + getLagRecords()
+                + "; lag.ms=" + getLagMs()
+                + "; bootstrap.eta.ms=" + getBootstrapEtaMs()
+                + "; storage=" + storage.getStats();
     }
 
     public POS getCheckpoint() {
         return checkpoint.get();
     }
 
+    /**
+     * @param position consistency token returned by a previous write, i.e. a position in the underlying log
+     * @return true if all records up to and including the given position have been applied to the state
+     */
+    @SuppressWarnings("unchecked")
+    public boolean hasReached(Object position) {
+        POS chk = checkpoint.get();
+        return chk != null && chk.compareTo((POS) position) >= 0;
+    }
+
+    /**
+     * @return the latest known position of the underlying log or null if not known yet
+     */
+    public POS getEndPosition() {
+        return endPosition.get();
+    }
+
+    /**
+     * @return one-minute rate of records applied to the state, whether by bootstrap, tail or writes
+     */
+    public double getRecordsPerSecond() {
+        return applied.getOneMinuteRate();
+    }
+
+    /**
+     * @return estimated time in milliseconds to complete a running bootstrap, 0 if no bootstrap is running
+     * or -1 if it cannot be estimated yet
+     */
+    public long getBootstrapEtaMs() {
+        if (fsm != FSM.BOOT) return 0L;
+        long remaining = bootstrapRemaining;
+        long processed = bootstrapProcessed;
+        long elapsedMs = System.currentTimeMillis() - bootstrapStartMs;
+        if (remaining < 0 || processed == 0 || elapsedMs <= 0) return -1L;
+        return remaining * elapsedMs / processed;
+    }
+
+    /**
+     * @return number of records by which the state is behind the underlying log, 0 when the log is being written to
+     * by this instance, i.e. it is a master, or -1 if not known
+     */
+    public long getLagRecords() {
+        switch(fsm) {
+            case BOOT: return bootstrapRemaining;
+            case TAIL: return storage.lag();
+            case WRITE: return 0L;
+            default: return -1L;
+        }
+    }
+
+    /**
+     * @return age in milliseconds of the last record applied to the state if the state is lagging behind the log,
+     * 0 if it is up-to-date or -1 if not known
+     */
+    public long getLagMs() {
+        long lagRecords = getLagRecords();
+        if (lagRecords <= 0 || lastAppliedTimestamp <= 0) return lagRecords < 0 ? -1L : 0L;
+        return Math.max(0L, System.currentTimeMillis() - lastAppliedTimestamp);
+    }
+
     final private Consumer<Long> checkpointWriter = new Consumer<Long>() {
         private long lastWritten = 0L;
         @Override
         public void accept(Long time) {
             if (time <= 0L || lastWritten + checkpointIntervalMs < time) try {
                 lastWritten = time;
-                if (enabled && checkpointModified) {
+                //the checkpoint of a transactional state is only written while the state contains no uncommitted writes
+                if (enabled && checkpointModified && !(transactional && uncommitted)) {
                     POS position = checkpoint.get();
                     log.debug("Writing checkpoint " + position + " to file: " + checkpointFile);
                     ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(checkpointFile.toFile()));
@@ -93,7 +239,11 @@ public class Log<POS extends Comparable<POS>> extends Thread implements Closeabl
         }
     };
 
-    private void fsmEnterWriteState() {
+    private void fsmEnterWriteState(MemStore kvstore) {
+        if (aborted != null) {
+            throw new IllegalStateException("State was erased after an aborted transaction and must be bootstrapped again", aborted);
+        }
+        writeStore = kvstore;
         switch(fsm) {
             case INIT: throw new IllegalStateException("Bootstrap is required before writing");
             case TAIL: synchronized(this) {
@@ -106,12 +256,14 @@ public class Log<POS extends Comparable<POS>> extends Thread implements Closeabl
     }
 
     public Future<POS> append(final MemStore kvstore, final byte[] key, byte[] valueBytes, final long recordTimestamp) {
-        fsmEnterWriteState();
+        fsmEnterWriteState(kvstore);
         Record record = new Record(key, valueBytes, recordTimestamp);
         return new MappedJavaFuture<POS, POS>(storage.append(record)) {
             @Override
             public POS map(POS position) {
+                beforeWriteApplied();
                 kvstore.put(ByteBuffer.wrap(key), kvstore.wrap(valueBytes, recordTimestamp));
+                applied.mark();
                 updateCheckpoint(position);
                 return position;
             }
@@ -119,43 +271,177 @@ public class Log<POS extends Comparable<POS>> extends Thread implements Closeabl
     }
 
     public Future<POS> delete(final MemStore kvstore, final byte[] key) {
-        fsmEnterWriteState();
+        fsmEnterWriteState(kvstore);
         return new MappedJavaFuture<POS, POS>(storage.delete(key)) {
             @Override
             public POS map(POS position) {
+                beforeWriteApplied();
                 kvstore.remove(ByteBuffer.wrap(key));
+                applied.mark();
                 updateCheckpoint(position);
                 return position;
             }
         };
     }
 
+    /**
+     * Append a batch of records, tombstones are written as deletes. The whole batch is handed to the storage
+     * at once and each record is applied to the kvstore as soon as it is acknowledged. With storages that
+     * don't return listenable futures, the records are applied when the returned future is awaited,
+     * the same way as single appends.
+     *
+     * @param kvstore memstore to which the acknowledged records are applied
+     * @param records serialized records to append
+     * @return future which completes when all records have been acknowledged and holds the highest position written,
+     * or fails with the first failure, in which case the records that were acknowledged are still applied
+     */
+    public Future<POS> appendAll(final MemStore kvstore, final List<Record<byte[], byte[]>> records) {
+        fsmEnterWriteState(kvstore);
+        final JavaPromise<POS> result = new JavaPromise<>();
+        if (records.isEmpty()) {
+            result.success(null);
+            return result;
+        }
+        final AtomicInteger remaining = new AtomicInteger(records.size());
+        final AtomicReference<POS> highest = new AtomicReference<>(null);
+        final AtomicReference<Exception> failure = new AtomicReference<>(null);
+        final List<Runnable> unlistenable = new LinkedList<>();
+        final List<Future<POS>> writes = storage.appendAll(records);
+        for (int i = 0; i < records.size(); i++) {
+            final Record<byte[], byte[]> record = records.get(i);
+            final Future<POS> write = writes.get(i);
+            final BiConsumer<POS, Exception> acknowledged = (position, exception) -> {
+                if (exception != null) {
+                    failure.compareAndSet(null, exception);
+                } else try {
+                    beforeWriteApplied();
+                    if (record.tombstone) {
+                        kvstore.remove(ByteBuffer.wrap(record.key));
+                    } else {
+                        kvstore.put(ByteBuffer.wrap(record.key), kvstore.wrap(record.value, record.timestamp));
+                    }
+                    applied.mark();
+                    updateCheckpoint(position);
+                    highest.accumulateAndGet(position, this::max);
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    if (failure.get() != null) result.failure(failure.get()); else result.success(highest.get());
+                }
+            };
+            if (write instanceof JavaPromise) {
+                ((JavaPromise<POS>) write).onComplete(acknowledged);
+            } else {
+                unlistenable.add(() -> {
+                    try {
+                        acknowledged.accept(write.get(), null);
+                    } catch (ExecutionException e) {
+                        acknowledged.accept(null, e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                    } catch (Exception e) {
+                        acknowledged.accept(null, e);
+                    }
+                });
+            }
+        }
+        if (unlistenable.isEmpty()) return result;
+        return new Future<POS>() {
+            private void applyUnlistenable() {
+                synchronized (unlistenable) {
+                    while (!unlistenable.isEmpty()) unlistenable.remove(0).run();
+                }
+            }
+
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                return false;
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+
+            @Override
+            public boolean isDone() {
+                return result.isDone();
+            }
+
+            @Override
+            public POS get() throws InterruptedException, ExecutionException {
+                applyUnlistenable();
+                return result.get();
+            }
+
+            @Override
+            public POS get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+                applyUnlistenable();
+                return result.get(timeout, unit);
+            }
+        };
+    }
+
     public <K> long bootstrap(String identifier, final MemStore kvstore, int partition, Optional<ObservableState<K>> observableState) {
+        return bootstrap(identifier, kvstore, partition, observableState, BootstrapListener.NOOP);
+    }
+
+    public <K> long bootstrap(String identifier,
+                              final MemStore kvstore,
+                              int partition,
+                              Optional<ObservableState<K>> observableState,
+                              BootstrapListener listener) {
         switch(fsm) {
             case TAIL: stopLogSync(); break;
-            case WRITE: flushWrites();  break;
+            case WRITE: if (aborted == null) flushWrites();  break;
             case INIT: case BOOT: break;
         }
         fsm = FSM.BOOT;
 
+        if (transactional && getCheckpoint() == null) synchronized (transactionLock) {
+            //without a checkpoint the state may contain writes which were never committed, it is rebuilt from scratch
+            kvstore.erase();
+            aborted = null;
+            uncommitted = false;
+        }
+
         POS checkpoint = getCheckpoint();
         long t = EventTime.unix();
         POS endOffset = storage.reset(partition, checkpoint);
+        if (endOffset != null) endPosition.accumulateAndGet(endOffset, this::max);
+        bootstrapStartMs = t;
+        bootstrapProcessed = 0L;
+        bootstrapRemaining = checkpoint == null || endOffset == null ? -1L : storage.distance(checkpoint, endOffset);
         log.debug("Bootstrapping " + identifier + " from checkpoint:" + checkpoint + " to end-offset: " + endOffset);
         long numRecordsProcessed = 0L;
         if (endOffset != null) {
-            Iterator<LogEntry<POS>> i = storage.boundedIterator();
-            while (i.hasNext()) {
-                LogEntry<POS> entry = i.next();
-                if (checkpoint == null || entry.position.compareTo(checkpoint) > 0) {
-                    modifyState(kvstore, entry, observableState);
-                    numRecordsProcessed += 1;
+            LogCursor<POS> cursor;
+            while ((cursor = fetchCursor(false)) != null) {
+                boolean modified = false;
+                while (cursor.next()) {
+                    if (cursor.isAfter(checkpoint)) {
+                        modifyState(kvstore, cursor, observableState);
+                        numRecordsProcessed += 1;
+                        modified = true;
+                    }
+                    byte[] key = cursor.key();
+                    byte[] value = cursor.value();
+                    int bytes = (key == null ? 0 : key.length) + (value == null ? 0 : value.length);
+                    long remaining = cursor.distanceTo(endOffset);
+                    if (remaining < 0) remaining = storage.distance(cursor.position(), endOffset);
+                    bootstrapProcessed += 1;
+                    bootstrapRemaining = remaining;
+                    listener.onRecord(identifier, bytes, remaining);
+                }
+                if (modified) {
+                    updateCheckpoint(cursor.position());
                     checkpointWriter.accept(System.currentTimeMillis());
                 }
             }
             updateCheckpoint(endOffset);
             checkpointWriter.accept(0L);
         }
+        bootstrapRemaining = 0L;
+        listener.onComplete(identifier, numRecordsProcessed);
         log.debug("Bootstrap completed: " + identifier + ", new checkpoint= " + getCheckpoint() +  ", duration.ms = " + (EventTime.unix() - t));
         return numRecordsProcessed;
     }
@@ -173,13 +459,14 @@ public class Log<POS extends Comparable<POS>> extends Thread implements Closeabl
             public void run() {
                 try {
                     while (!isInterrupted()) {
-                        Iterator<LogEntry<POS>> entries = storage.fetch(true);
-                        if (entries == null) {
-                            return;
-                        } else while (entries.hasNext()) {
-                            LogEntry<POS> entry = entries.next();
-                            modifyState(kvstore, entry, observableState);
+                        LogCursor<POS> cursor = storage.fetchCursor(true);
+                        if (cursor == null) return;
+                        boolean modified = false;
+                        while (cursor.next()) {
+                            modifyState(kvstore, cursor, observableState);
+                            modified = true;
                         }
+                        if (modified) updateCheckpoint(cursor.position());
                     }
                 } catch (Throwable e) {
                     log.error("Failure in the LogSync Thread", e);
@@ -195,6 +482,7 @@ public class Log<POS extends Comparable<POS>> extends Thread implements Closeabl
                         join();
                     }
                 } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                     throw new IOException(e);
                 }
             }
@@ -232,14 +520,30 @@ public class Log<POS extends Comparable<POS>> extends Thread implements Closeabl
         }
     }
 
-    private <K> void modifyState(MemStore kvstore, LogEntry<POS> entry, Optional<ObservableState<K>> observableState) {
-        if (entry.tombstone) {
-            kvstore.remove(ByteBuffer.wrap(entry.key));
+    private LogCursor<POS> fetchCursor(boolean unbounded) {
+        try {
+            return storage.fetchCursor(unbounded);
+        } catch (InterruptedException e) {
+            //the caller of bootstrap or the logsync thread must still see the interruption
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * apply the current record of the cursor to the state - the checkpoint is not updated
+     * here, the caller updates it once per batch
+     */
+    private <K> void modifyState(MemStore kvstore, LogCursor<POS> cursor, Optional<ObservableState<K>> observableState) {
+        long timestamp = cursor.timestamp();
+        if (cursor.tombstone()) {
+            kvstore.remove(ByteBuffer.wrap(cursor.key()));
         } else {
-            kvstore.put(ByteBuffer.wrap(entry.key), kvstore.wrap(entry.value, entry.timestamp));
+            kvstore.put(ByteBuffer.wrap(cursor.key()), kvstore.wrap(cursor.value(), timestamp));
         }
-        observableState.ifPresent((state) -> state.internalPush(entry));
-        updateCheckpoint(entry.position);
+        if (observableState.isPresent()) observableState.get().internalPush(cursor.toEntry());
+        applied.mark();
+        lastAppliedTimestamp = timestamp;
     }
 
     private void flushWrites() {
@@ -260,7 +564,48 @@ public class Log<POS extends Comparable<POS>> extends Thread implements Closeabl
         }
     }
 
+    /**
+     * called before a write is applied to the state, with a transactional storage the checkpoint file is
+     * deleted before the first write of a transaction is applied
+     */
+    private void beforeWriteApplied() {
+        if (aborted != null) {
+            throw new IllegalStateException("Write was part of an aborted transaction", aborted);
+        }
+        if (transactional && !uncommitted) synchronized (transactionLock) {
+            if (!uncommitted) {
+                uncommitted = true;
+                if (enabled) try {
+                    Files.deleteIfExists(checkpointFile);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    private void rollback(Exception cause) {
+        synchronized (transactionLock) {
+            log.warn("Erasing state after an aborted transaction, it has to be bootstrapped again", cause);
+            aborted = cause;
+            uncommitted = true;
+            checkpoint.set(null);
+            MemStore kvstore = writeStore;
+            if (kvstore != null) kvstore.erase();
+            if (enabled) try {
+                Files.deleteIfExists(checkpointFile);
+            } catch (IOException e) {
+                log.warn("Failed to delete checkpoint after an aborted transaction", e);
+            }
+        }
+    }
+
+    private POS max(POS a, POS b) {
+        return a == null || b.compareTo(a) > 0 ? b : a;
+    }
+
     private POS updateCheckpoint(POS position) {
+        endPosition.accumulateAndGet(position, this::max);
         return checkpoint.updateAndGet(chk -> {
             if (log.isTraceEnabled()) {
                 log.trace("updating checkpoint, offset: " + position);
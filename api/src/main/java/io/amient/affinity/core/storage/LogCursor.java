@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.core.storage;
+
+import java.util.Iterator;
+
+/**
+ * LogCursor is a flyweight view of a batch of log records - the same instance exposes one record at a time
+ * so that consuming a batch doesn't require a LogEntry object per record. Implementations should skip records
+ * which are outside the bounds set by reset() before exposing them.
+ *
+ * The accessors are only valid after next() returned true and until the following call to next() or fetch,
+ * after next() returned false they keep referring to the last record of the batch, if there was any.
+ * Use toEntry() if a record needs to be retained.
+ *
+ * @param <POS> Coordinate type that describes a position in the log stream
+ */
+public interface LogCursor<POS extends Comparable<POS>> {
+
+    /**
+     * advance to the next record of the batch
+     * @return true if there is a record available, false if the batch is exhausted
+     */
+    boolean next();
+
+    POS position();
+
+    /**
+     * @return partition of the current record, storages which are not partitioned use a single partition 0
+     */
+    default int partition() {
+        return 0;
+    }
+
+    byte[] key();
+
+    byte[] value();
+
+    long timestamp();
+
+    boolean tombstone();
+
+    /**
+     * @param other position to compare with or null
+     * @return true if the current record is strictly after the given position or if the position is null
+     */
+    default boolean isAfter(POS other) {
+        return other == null || position().compareTo(other) > 0;
+    }
+
+    /**
+     * @param to upper position (inclusive)
+     * @return estimated number of records between the current record and the given position,
+     * or -1 if the cursor cannot estimate it without materializing the position
+     */
+    default long distanceTo(POS to) {
+        return -1L;
+    }
+
+    /**
+     * @return a copy of the current record which can be retained after the cursor moves on
+     */
+    default LogEntry<POS> toEntry() {
+        return new LogEntry<>(partition(), position(), key(), value(), timestamp(), tombstone());
+    }
+
+    /**
+     * adapt an iterator of log entries to a cursor, used by storages which don't implement their own cursor
+     * @param entries iterator of log entries
+     * @param <POS> Coordinate type that describes a position in the log stream
+     * @return cursor over the given entries
+     */
+    static <POS extends Comparable<POS>> LogCursor<POS> of(Iterator<LogEntry<POS>> entries) {
+        return new LogCursor<POS>() {
+
+            private LogEntry<POS> current = null;
+
+            @Override
+            public boolean next() {
+                if (!entries.hasNext()) return false;
+                current = entries.next();
+                return true;
+            }
+
+            @Override
+            public POS position() {
+                return current.position;
+            }
+
+            @Override
+            public int partition() {
+                return current.partition;
+            }
+
+            @Override
+            public byte[] key() {
+                return current.key;
+            }
+
+            @Override
+            public byte[] value() {
+                return current.value;
+            }
+
+            @Override
+            public long timestamp() {
+                return current.timestamp;
+            }
+
+            @Override
+            public boolean tombstone() {
+                return current.tombstone;
+            }
+
+            @Override
+            public LogEntry<POS> toEntry() {
+                return current;
+            }
+        };
+    }
+
+}
@@ -21,8 +21,14 @@ package io.amient.affinity.core.storage;
 
 public class LogEntry<POS extends Comparable<POS>>  extends Record<byte[], byte[]> {
     final public POS position;
+    final public int partition;
     public LogEntry(POS position, byte[] key, byte[] value, long timestamp, boolean tombstone) {
+        this(0, position, key, value, timestamp, tombstone);
+    }
+
+    public LogEntry(int partition, POS position, byte[] key, byte[] value, long timestamp, boolean tombstone) {
         super(key, value, timestamp, tombstone);
+        this.partition = partition;
         this.position = position;
     }
 
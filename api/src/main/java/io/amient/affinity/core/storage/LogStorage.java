@@ -25,7 +25,10 @@ import io.amient.affinity.core.util.TimeRange;
 import java.io.Closeable;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.concurrent.Future;
 
@@ -104,7 +107,10 @@ public interface LogStorage<POS extends Comparable<POS>> extends Closeable {
     /**
      * reset one of the assigned partitions to the given time range.
      * the lower bound position will be the first position which appears on the time range.start or later.
-     * the upper bound position will be the last position before the time range.end OR maximum available position
+     * the upper bound position will be the maximum available position, records are filtered by the time range.
+     * implementations may offer an option to stop at the last position before the first record with timestamp
+     * after the time range.end instead, which excludes records that were appended out of order, i.e.
+     * records with timestamp within the range which appear after that position
      * @param partition partition number
      * @param range time range
      */
@@ -122,6 +128,27 @@ public interface LogStorage<POS extends Comparable<POS>> extends Closeable {
      */
     POS reset(int partition, POS startPosition);
 
+    /**
+     * estimate the number of records between two positions of the same partition
+     *
+     * @param from lower position (exclusive)
+     * @param to   upper position (inclusive)
+     * @return estimated number of records or -1 if the positions cannot be compared numerically
+     */
+    default long distance(POS from, POS to) {
+        return -1L;
+    }
+
+    /**
+     * estimate the number of records which are available in the underlying log but have not been fetched yet
+     * by the tailing consumer, i.e. the replication lag of a standby or external state
+     *
+     * @return number of records or -1 if not known
+     */
+    default long lag() {
+        return -1L;
+    }
+
     /**
      * get key subject for the schema registry
      * @return subject name of the log keys
@@ -161,12 +188,61 @@ public interface LogStorage<POS extends Comparable<POS>> extends Closeable {
      */
     Iterator<LogEntry<POS>> fetch(boolean unbounded) throws InterruptedException;
 
+    /**
+     * fetch a record batch from the underlying stream as a flyweight cursor, the semantics are the same as
+     * of fetch() but implementations can avoid materializing a LogEntry for every record and skip records
+     * that are out of the bounds before any object is created for them. The default implementation adapts fetch().
+     *
+     * @param unbounded see fetch()
+     * @return cursor over the records of the batch, which may be empty, or null if the maximum offset was reached
+     * or cancel() was called
+     *
+     * @throws InterruptedException if the underlying blocking operation is interrupted
+     */
+    default LogCursor<POS> fetchCursor(boolean unbounded) throws InterruptedException {
+        Iterator<LogEntry<POS>> entries = fetch(unbounded);
+        return entries == null ? null : LogCursor.of(entries);
+    }
+
 
     /**
      * Cancel any ongoing blocking operation, whether fetch or iterator.hasNext etc.
      */
     void cancel();
 
+    /**
+     * Stop returning new records from fetch() without giving up the current subscription, e.g. when the consumer
+     * of the stream cannot accept more records. fetch() should still be called periodically while paused so that
+     * the implementation can keep its subscription alive. The default implementation doesn't support pausing
+     * and keeps returning records.
+     */
+    default void pause() {
+    }
+
+    /**
+     * Continue returning records from fetch() after pause()
+     */
+    default void unpause() {
+    }
+
+    /**
+     * @return true if appended records become visible to consumers only when the transaction in which they were
+     * written commits, see addTransactionListener
+     */
+    default boolean isTransactional() {
+        return false;
+    }
+
+    /**
+     * Register a listener which is notified when the transaction in which this storage appends records
+     * commits or aborts, only transactional storages support listeners.
+     *
+     * @param listener listener to notify
+     */
+    default void addTransactionListener(TransactionListener listener) {
+        throw new UnsupportedOperationException(getClass().getName() + " is not transactional");
+    }
+
     /**
      * Commit all positions that were advanced by one of the iterators or the underlying fetch()
      * The implementation may be be asynchronous if it can guarantee that the records which
@@ -181,6 +257,26 @@ public interface LogStorage<POS extends Comparable<POS>> extends Closeable {
      */
     Future<Long> commit();
 
+    /**
+     * @return true if the storage can commit explicit positions with commit(positions)
+     */
+    default boolean isPositionCommitSupported() {
+        return false;
+    }
+
+    /**
+     * Commit explicit positions instead of everything returned by fetch() so far, this allows the consumer
+     * to commit only the records whose processing has completed while it keeps fetching. Like commit(), the
+     * implementation may be asynchronous but it must preserve the order of commits.
+     *
+     * @param positions the last processed position for each partition, the values must be of the POS type
+     *                  as found in LogEntry.position
+     * @return Future with timestamp of the commit completion
+     */
+    default Future<Long> commit(Map<Integer, ?> positions) {
+        throw new UnsupportedOperationException(getClass().getName() + " doesn't support committing explicit positions");
+    }
+
     /**
      * Append a record to the end of the log
      * @param record record to append to the log
@@ -196,6 +292,21 @@ public interface LogStorage<POS extends Comparable<POS>> extends Closeable {
      */
     Future<POS> delete(byte[] key);
 
+    /**
+     * Append a batch of records, tombstones are appended as deletes. Storages which can send multiple records
+     * in a single operation should override this method, the default appends the records one by one.
+     *
+     * @param records records to append in the given order
+     * @return futures with the new log positions of the records in the same order
+     */
+    default List<Future<POS>> appendAll(List<Record<byte[], byte[]>> records) {
+        List<Future<POS>> result = new ArrayList<>(records.size());
+        for (Record<byte[], byte[]> record : records) {
+            result.add(record.tombstone ? delete(record.key) : append(record));
+        }
+        return result;
+    }
+
     /**
      * Flush all writes that were created by append() or delete().
      * This should block until all calls to append() or delete() have completed successfully or
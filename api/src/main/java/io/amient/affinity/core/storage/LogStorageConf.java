@@ -41,6 +41,21 @@ public class LogStorageConf extends CfgStruct<LogStorageConf> {
     public Cfg<Long> CommitTimeoutMs = longint( "commit.timeout.ms", 30000L)
             .doc("Number of milliseconds after which a commit is considered failed");
 
+    public Cfg<Integer> MaxInFlightRecords = integer("max.inflight.records", 10000)
+            .doc("Maximum number of consumed records whose processing hasn't completed yet, when reached the consumption is paused");
+
+    public Cfg<Long> MaxInFlightBytes = longint("max.inflight.bytes", 67108864L)
+            .doc("Maximum size of keys and values of consumed records whose processing hasn't completed yet, when reached the consumption is paused");
+
+    public Cfg<Integer> Parallelism = integer("parallelism", 1)
+            .doc("Number of threads processing the consumed records, records with the same key are always processed by the same thread in the order of consumption");
+
+    public Cfg<Long> OutputLingerMs = longint("output.linger.ms", 0L)
+            .doc("Output streams only: maximum time for which appended records are buffered before they are sent to the storage together, 0 means records are sent immediately");
+
+    public Cfg<Integer> OutputBatchSize = integer("output.batch.size", 1000)
+            .doc("Output streams only: maximum number of buffered records after which the buffer is sent without waiting for the linger time");
+
     @Override
     protected Set<String> specializations() {
         return new HashSet<>(Arrays.asList("kafka"));
@@ -82,6 +82,26 @@ public abstract class MemStore implements Closeable {
 
     public abstract CloseableIterator<Map.Entry<ByteBuffer, ByteBuffer>> iterator(ByteBuffer keyPrefix);
 
+    /**
+     * Iterator which resumes a previous iteration by seeking past the last key it returned,
+     * only memstores that iterate in a stable key order can support it.
+     *
+     * @param keyPrefix optional prefix which all the returned keys start with, or null
+     * @param after     last key returned by the previous iteration, the iteration starts with the next key
+     * @return iterator over the entries that follow the given key
+     */
+    public CloseableIterator<Map.Entry<ByteBuffer, ByteBuffer>> iterator(ByteBuffer keyPrefix, ByteBuffer after) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " doesn't support seeking, use a sorted memstore instead");
+    }
+
+    /**
+     * @return order in which the iterators return the keys,
+     * or null if the memstore doesn't iterate in a stable key order
+     */
+    public Comparator<ByteBuffer> keyOrder() {
+        return null;
+    }
+
     /**
      * @param key ByteBuffer representation of the key
      * @return Some(MV) if key exists
@@ -112,6 +132,22 @@ public abstract class MemStore implements Closeable {
     public abstract void remove(ByteBuffer key);
 
 
+    /**
+     * Apply a batch of writes, memstores which support atomic batches apply the whole batch at once,
+     * by default the writes are applied one by one.
+     *
+     * @param batch key-value pairs in the order in which they are written, a null value removes the key
+     */
+    public void write(List<Map.Entry<ByteBuffer, ByteBuffer>> batch) {
+        for (Map.Entry<ByteBuffer, ByteBuffer> entry : batch) {
+            if (entry.getValue() == null) {
+                remove(entry.getKey());
+            } else {
+                put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
     /**
      * Wraps record value with metadata into a storable cell
      *
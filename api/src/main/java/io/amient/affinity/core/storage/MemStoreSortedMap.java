@@ -31,7 +31,8 @@ import java.util.concurrent.ConcurrentSkipListMap;
 
 public class MemStoreSortedMap extends MemStore {
 
-    final private ConcurrentSkipListMap<ByteBuffer, ByteBuffer> internal = new ConcurrentSkipListMap<>();
+    //keys are ordered by their unsigned bytes, the same as in MemStoreRocksDb
+    final private ConcurrentSkipListMap<ByteBuffer, ByteBuffer> internal = new ConcurrentSkipListMap<>(ByteUtils::compare);
 
     public MemStoreSortedMap(String identifier, StateConf conf, MetricRegistry metrics) throws IOException {
         super(conf);
@@ -44,10 +45,17 @@ public class MemStoreSortedMap extends MemStore {
 
     @Override
     public CloseableIterator<Map.Entry<ByteBuffer, ByteBuffer>> iterator(ByteBuffer prefix) {
+        return iterator(prefix, null);
+    }
+
+    @Override
+    public CloseableIterator<Map.Entry<ByteBuffer, ByteBuffer>> iterator(ByteBuffer prefix, ByteBuffer after) {
         if (prefix == null) {
-            return CloseableIterator.apply(internal.entrySet().iterator());
+            return CloseableIterator.apply(after == null
+                    ? internal.entrySet().iterator()
+                    : internal.tailMap(after, false).entrySet().iterator());
         } else {
-            ByteBuffer startKey = internal.higherKey(prefix);
+            ByteBuffer startKey = internal.higherKey(after == null || ByteUtils.compare(after, prefix) < 0 ? prefix : after);
             if (startKey == null) {
                 return CloseableIterator.empty();
             } else {
@@ -82,6 +90,11 @@ public class MemStoreSortedMap extends MemStore {
         }
     }
 
+    @Override
+    public Comparator<ByteBuffer> keyOrder() {
+        return internal.comparator();
+    }
+
     @Override
     public Optional<ByteBuffer> apply(ByteBuffer key) {
         return Optional.ofNullable(internal.get(key));
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.core.storage;
+
+import com.codahale.metrics.MetricRegistry;
+import io.amient.affinity.core.state.StateConf;
+import io.amient.affinity.core.util.CloseableIterator;
+import io.amient.affinity.core.util.EventTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * MemStoreWindowed keeps the cells of each window in a separate segment so that a window which has passed
+ * its retention is dropped as a whole instead of removing its keys one by one. Every key must start with
+ * the 8-byte big-endian window start which is used to route the operations to the segments.
+ *
+ * Segments are instances of the configured memstore.class, persistent segments live in their own
+ * sub-directory of the data dir which is deleted when the segment is dropped. The windowed store itself
+ * is not checkpointed, it is always bootstrapped from its storage which only needs to retain the windows
+ * that haven't expired yet, any segments left over from a previous run are therefore deleted on start.
+ *
+ * Segments are reference counted: every operation and open iterator holds a reference to the segments it uses
+ * and a dropped segment is closed, and its directory deleted, only when the last of them releases it.
+ */
+public class MemStoreWindowed extends MemStore {
+
+    private final static Logger log = LoggerFactory.getLogger(MemStoreWindowed.class);
+
+    private final String identifier;
+    private final StateConf conf;
+    private final MetricRegistry metrics;
+    private final Constructor<? extends MemStore> segmentConstructor;
+    private final Path segmentsDir;
+    private final long lifetimeMs;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    private final class Segment {
+        final long windowStart;
+        final MemStore store;
+        //the map holds one reference until the segment is dropped
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        Segment(long windowStart, MemStore store) {
+            this.windowStart = windowStart;
+            this.store = store;
+        }
+
+        /**
+         * @return false if the segment has already been released by all its users and closed
+         */
+        boolean acquire() {
+            int r;
+            do {
+                r = refs.get();
+                if (r == 0) return false;
+            } while (!refs.compareAndSet(r, r + 1));
+            return true;
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) try {
+                log.debug("Closing window segment {} of {}", windowStart, identifier);
+                store.close();
+                if (store.isPersistent()) deleteRecursively(segmentsDir.resolve("window-" + windowStart));
+            } catch (IOException e) {
+                log.warn("Could not delete window segment " + windowStart + " of " + identifier, e);
+            }
+        }
+    }
+
+    public MemStoreWindowed(String identifier, StateConf conf, MetricRegistry metrics) throws IOException {
+        super(conf);
+        if (!conf.Window.isDefined()) throw new IllegalArgumentException("window configuration is required for " + identifier);
+        this.identifier = identifier;
+        this.conf = conf;
+        this.metrics = metrics;
+        long sizeMs = conf.Window.SizeMs.apply();
+        long advanceMs = conf.Window.advanceMs();
+        if (sizeMs <= 0 || advanceMs <= 0 || advanceMs > sizeMs) {
+            throw new IllegalArgumentException("window of " + identifier + " must have 0 < advance.ms <= size.ms, got size.ms = "
+                    + sizeMs + ", advance.ms = " + advanceMs);
+        }
+        this.lifetimeMs = conf.Window.lifetimeMs();
+        try {
+            this.segmentConstructor = conf.MemStore.Class.apply().getConstructor(String.class, StateConf.class, MetricRegistry.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(e);
+        }
+        this.segmentsDir = conf.MemStore.DataDir.isDefined() ? conf.MemStore.DataDir.apply() : null;
+        if (segmentsDir != null && Files.exists(segmentsDir)) {
+            try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(segmentsDir, "window-*")) {
+                for (Path leftover : leftovers) deleteRecursively(leftover);
+            }
+        }
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return false;
+    }
+
+    private long windowStart(ByteBuffer key) {
+        return key.getLong(key.position());
+    }
+
+    private boolean isExpired(long windowStart) {
+        return windowStart + lifetimeMs < EventTime.unix();
+    }
+
+    /**
+     * drop all segments whose windows have passed the retention, this is O(1) with respect to the number of keys
+     * and runs on every read and write so that expired windows don't wait for the next write to be dropped
+     */
+    private void expire() {
+        Map.Entry<Long, Segment> oldest;
+        while ((oldest = segments.firstEntry()) != null && isExpired(oldest.getKey())) {
+            drop(oldest.getKey());
+        }
+    }
+
+    private void drop(long windowStart) {
+        Segment segment = segments.remove(windowStart);
+        if (segment != null) {
+            log.debug("Dropping window segment {} of {}", windowStart, identifier);
+            segment.release();
+        }
+    }
+
+    /**
+     * @return the segment of the given window with a reference which the caller must release, or null
+     */
+    private Segment acquire(long windowStart) {
+        Segment segment = segments.get(windowStart);
+        return segment != null && segment.acquire() ? segment : null;
+    }
+
+    private Segment createSegment(long windowStart) {
+        //each segment gets its own copy of the configuration with its own data dir
+        StateConf segmentConf = conf.copy();
+        segmentConf.TtlSeconds.setValue(conf.TtlSeconds.apply());
+        segmentConf.MemStore.Class.setValue(conf.MemStore.Class.apply());
+        if (conf.MemStore.KeyPrefixSize.isDefined()) segmentConf.MemStore.KeyPrefixSize.setValue(conf.MemStore.KeyPrefixSize.apply());
+        segmentConf.MemStore.DataDir.setValue(segmentsDir == null ? null : segmentsDir.resolve("window-" + windowStart));
+        try {
+            return new Segment(windowStart, segmentConstructor.newInstance(identifier + "-" + windowStart, segmentConf, metrics));
+        } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+            throw new RuntimeException("Could not create window segment " + windowStart + " of " + identifier, e);
+        }
+    }
+
+    /**
+     * @return starts of the windows that currently have a segment, in ascending order
+     */
+    public NavigableSet<Long> windows() {
+        expire();
+        return segments.keySet();
+    }
+
+    @Override
+    public CloseableIterator<Map.Entry<ByteBuffer, ByteBuffer>> iterator(ByteBuffer prefix) {
+        expire();
+        if (prefix != null) {
+            if (prefix.remaining() < 8) {
+                throw new UnsupportedOperationException("MemStoreWindowed prefix must include the window start");
+            }
+            Segment segment = acquire(windowStart(prefix));
+            if (segment == null) return CloseableIterator.apply(Collections.emptyIterator());
+            return segmentIterator(Collections.singletonList(segment).iterator(), prefix);
+        }
+        Iterator<Segment> it = segments.values().iterator();
+        return segmentIterator(new Iterator<Segment>() {
+            private Segment next = null;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && it.hasNext()) {
+                    Segment segment = it.next();
+                    if (segment.acquire()) next = segment;
+                }
+                return next != null;
+            }
+
+            @Override
+            public Segment next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Segment result = next;
+                next = null;
+                return result;
+            }
+        }, null);
+    }
+
+    /**
+     * @param acquired segments which are acquired as they are iterated, each is released when the iterator
+     *                 moves past it or is closed
+     */
+    private CloseableIterator<Map.Entry<ByteBuffer, ByteBuffer>> segmentIterator(Iterator<Segment> acquired, ByteBuffer prefix) {
+        return new CloseableIterator<Map.Entry<ByteBuffer, ByteBuffer>>() {
+
+            private Segment segment = null;
+
+            private CloseableIterator<Map.Entry<ByteBuffer, ByteBuffer>> current = null;
+
+            private void releaseCurrent() throws IOException {
+                try {
+                    if (current != null) current.close();
+                } finally {
+                    current = null;
+                    if (segment != null) segment.release();
+                    segment = null;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    while (current == null || !current.hasNext()) {
+                        releaseCurrent();
+                        if (!acquired.hasNext()) return false;
+                        segment = acquired.next();
+                        current = segment.store.iterator(prefix);
+                    }
+                    return true;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public Map.Entry<ByteBuffer, ByteBuffer> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return current.next();
+            }
+
+            @Override
+            public void close() throws IOException {
+                releaseCurrent();
+                //segments acquired but not reached yet, e.g. the single prefix segment
+                while (acquired.hasNext()) acquired.next().release();
+            }
+        };
+    }
+
+    @Override
+    public Optional<ByteBuffer> apply(ByteBuffer key) {
+        expire();
+        long windowStart = windowStart(key);
+        if (isExpired(windowStart)) return Optional.empty();
+        Segment segment = acquire(windowStart);
+        if (segment == null) return Optional.empty();
+        try {
+            return segment.store.apply(key);
+        } finally {
+            segment.release();
+        }
+    }
+
+    @Override
+    public long numKeys() {
+        expire();
+        long result = 0L;
+        for (Segment segment : segments.values()) if (segment.acquire()) try {
+            result += segment.store.numKeys();
+        } finally {
+            segment.release();
+        }
+        return result;
+    }
+
+    @Override
+    public void put(ByteBuffer key, ByteBuffer value) {
+        expire();
+        long windowStart = windowStart(key);
+        //writes into expired windows, e.g. while bootstrapping, are ignored
+        if (isExpired(windowStart)) return;
+        Segment segment = acquire(windowStart);
+        if (segment == null) {
+            synchronized (segments) {
+                segment = acquire(windowStart);
+                if (segment == null) {
+                    segment = createSegment(windowStart);
+                    segment.acquire();
+                    segments.put(windowStart, segment);
+                }
+            }
+        }
+        try {
+            segment.store.put(key, value);
+        } finally {
+            segment.release();
+        }
+    }
+
+    @Override
+    public void remove(ByteBuffer key) {
+        Segment segment = acquire(windowStart(key));
+        if (segment != null) try {
+            segment.store.remove(key);
+        } finally {
+            segment.release();
+        }
+    }
+
+    @Override
+    public String getStats() {
+        StringBuilder stats = new StringBuilder("segments = " + segments.size());
+        for (Segment segment : segments.values()) if (segment.acquire()) try {
+            stats.append("\n[" + segment.windowStart + "] " + segment.store.getStats());
+        } finally {
+            segment.release();
+        }
+        return stats.toString();
+    }
+
+    @Override
+    public void erase() {
+        segments.keySet().forEach(this::drop);
+    }
+
+    @Override
+    public void close() throws IOException {
+        //segments still used by open iterators are closed when those release them
+        segments.keySet().forEach(windowStart -> {
+            Segment segment = segments.remove(windowStart);
+            if (segment != null) segment.release();
+        });
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) return;
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) Files.delete(p);
+        }
+    }
+}
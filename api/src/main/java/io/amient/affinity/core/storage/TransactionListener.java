@@ -0,0 +1,39 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.core.storage;
+
+/**
+ * TransactionListener is notified by a transactional LogStorage when the records appended so far
+ * have been committed or aborted. Both methods are called while no other records can be appended.
+ */
+public interface TransactionListener {
+
+    /**
+     * all records appended before this call are committed and visible to read_committed consumers
+     */
+    void onCommit();
+
+    /**
+     * the records appended since the last commit were discarded and will never be visible to consumers
+     *
+     * @param cause failure which caused the abort
+     */
+    void onAbort(Exception cause);
+}
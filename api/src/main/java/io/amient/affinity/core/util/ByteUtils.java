@@ -510,6 +510,25 @@ public class ByteUtils {
         return true;
     }
 
+    /**
+     * BIG ENDIAN comparison of the remaining bytes of 2 byte buffers, the positions of the buffers are not modified
+     * @param lBuf left buffer
+     * @param rBuf right buffer
+     * @return negative if the left buffer is smaller, positive if it is larger, 0 if the contents are identical
+     */
+    final public static int compare(ByteBuffer lBuf, ByteBuffer rBuf) {
+        int lSize = lBuf.remaining();
+        int rSize = rBuf.remaining();
+        int n = Math.min(lSize, rSize);
+        for (int k = 0; k < n; k++) {
+            int cmp = (lBuf.get(lBuf.position() + k) & 0xFF) - (rBuf.get(rBuf.position() + k) & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return lSize - rSize;
+    }
+
     /**
      * CRC32 checksum of a byte array range
      * @param array input array to perform the checksum over
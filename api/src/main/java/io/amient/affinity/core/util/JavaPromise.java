@@ -1,24 +1,54 @@
 package io.amient.affinity.core.util;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
 public class JavaPromise<T> implements Future<T> {
 
     private final CountDownLatch latch = new CountDownLatch(1);
     private T value;
     private Exception exception;
+    private List<BiConsumer<T, Exception>> listeners = null;
 
     public void failure(Exception e) {
         exception = e;
-        latch.countDown();
+        complete();
     }
 
     public void success(T result) {
         value = result;
-        latch.countDown();
+        complete();
+    }
+
+    private void complete() {
+        List<BiConsumer<T, Exception>> notify;
+        synchronized (latch) {
+            latch.countDown();
+            notify = listeners;
+            listeners = null;
+        }
+        if (notify != null) notify.forEach(listener -> listener.accept(value, exception));
+    }
+
+    /**
+     * Register a listener which will be invoked without blocking any thread: by the thread which completes
+     * the promise or immediately by the caller if the promise is already completed.
+     * @param listener receives the result or the exception, one of which is null
+     */
+    public void onComplete(BiConsumer<T, Exception> listener) {
+        synchronized (latch) {
+            if (latch.getCount() > 0) {
+                if (listeners == null) listeners = new ArrayList<>(1);
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.accept(value, exception);
     }
 
     @Override
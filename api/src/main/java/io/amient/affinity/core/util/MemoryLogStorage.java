@@ -27,6 +27,7 @@ import io.amient.affinity.core.storage.Record;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -85,6 +86,16 @@ public class MemoryLogStorage implements LogStorage<Long> {
         return stopOffset;
     }
 
+    @Override
+    public long distance(Long from, Long to) {
+        return Math.max(0L, to - from);
+    }
+
+    @Override
+    public long lag() {
+        return Math.max(0L, logEndOffset.get() - position + 1);
+    }
+
     @Override
     public Iterator<LogEntry<Long>> fetch(boolean unbounded) throws InterruptedException {
         if (!unbounded && position > fetchStopOffset.get()) return null;
@@ -114,6 +125,16 @@ public class MemoryLogStorage implements LogStorage<Long> {
         return new CompletedJavaFuture<>(() -> System.currentTimeMillis());
     }
 
+    @Override
+    public boolean isPositionCommitSupported() {
+        return true;
+    }
+
+    @Override
+    public Future<Long> commit(Map<Integer, ?> positions) {
+        return commit();
+    }
+
     @Override
     public Future<Long> append(Record<byte[], byte[]> record) {
         WritePromise f = new WritePromise(record);
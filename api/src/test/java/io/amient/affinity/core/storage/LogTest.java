@@ -21,18 +21,22 @@ package io.amient.affinity.core.storage;
 
 import com.typesafe.config.ConfigFactory;
 import io.amient.affinity.core.state.StateConf;
+import io.amient.affinity.core.util.MappedJavaFuture;
 import io.amient.affinity.core.util.MemoryLogStorage;
 import io.amient.affinity.core.util.TimeRange;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
 
@@ -66,6 +70,12 @@ public class LogTest {
             assert (log.getCheckpoint() == 3);
             assert (numRecordsBootstrapped == 4);
             assert (kvstore.numKeys() == 2);
+            assert (log.getEndPosition() == 3);
+            assert (log.getLagRecords() == 0);
+            assert (log.getBootstrapEtaMs() == 0);
+            assert (log.hasReached(2L)); //consistency tokens are positions in the log
+            assert (log.hasReached(3L));
+            assert (!log.hasReached(4L));
         } finally {
             log.close();
 
@@ -82,6 +92,10 @@ public class LogTest {
             storage.append(new Record<>("key3".getBytes(), "value300".getBytes(), 13L));
             storage.flush();
             Thread.sleep(250);
+            assert (log.getLagRecords() == 0);
+            assert (log.getEndPosition() == 6);
+            assert (log.hasReached(6L)); //tailed records move the checkpoint once the batch is applied
+            assert (!log.hasReached(7L));
             assert (log.bootstrap("test", kvstore, 0, Optional.empty()) == 0);
             assert (kvstore.numKeys() == 3);
         } finally {
@@ -99,4 +113,178 @@ public class LogTest {
 
         storage.close();
     }
+
+    @Test
+    public void testBootstrapFromCheckpointAndTailWithTombstones() throws IOException, ExecutionException, InterruptedException {
+        StateConf template = new StateConf();
+        StateConf stateConf = new StateConf().apply(ConfigFactory.parseMap(new HashMap<String, String>() {{
+            put(template.MemStore.Class.path(), MemStoreSimpleMap.class.getName());
+        }}));
+        MemStore kvstore = new MemStoreSimpleMap("test", stateConf,null);
+        LogStorage<Long> storage = new MemoryLogStorage(stateConf.Storage);
+        storage.append(new Record<>("key1".getBytes(), "value1".getBytes(), 1L));
+        storage.append(new Record<>("key2".getBytes(), "value2".getBytes(), 1L));
+        storage.flush();
+        Path checkpointFile = Files.createTempFile("testmemstore", ".checkpoint");
+        checkpointFile.toFile().deleteOnExit();
+
+        Log<Long> log = storage.open(checkpointFile);
+        try {
+            assertEquals(2L, log.bootstrap("test", kvstore, 0, Optional.empty()));
+            assertEquals(Long.valueOf(1L), log.getCheckpoint());
+        } finally {
+            log.close();
+        }
+
+        storage.append(new Record<>("key3".getBytes(), "value3".getBytes(), 2L));
+        storage.delete("key1".getBytes());
+        storage.flush();
+
+        //only the records after the checkpoint are applied, including the tombstone
+        log = storage.open(checkpointFile);
+        try {
+            assertEquals(Long.valueOf(1L), log.getCheckpoint());
+            assertEquals(2L, log.bootstrap("test", kvstore, 0, Optional.empty()));
+            assertEquals(Long.valueOf(3L), log.getCheckpoint());
+            assertEquals(2L, kvstore.numKeys());
+            assert (!kvstore.apply(ByteBuffer.wrap("key1".getBytes())).isPresent());
+
+            log.tail(kvstore, Optional.empty());
+            storage.append(new Record<>("key4".getBytes(), "value4".getBytes(), 3L));
+            storage.delete("key2".getBytes());
+            storage.flush();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!log.hasReached(5L) && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            assert (log.hasReached(5L));
+            assertEquals(2L, kvstore.numKeys());
+            assert (!kvstore.apply(ByteBuffer.wrap("key2".getBytes())).isPresent());
+            assert (kvstore.apply(ByteBuffer.wrap("key4".getBytes())).isPresent());
+        } finally {
+            log.close();
+        }
+        storage.close();
+    }
+
+    @Test
+    public void testTransactionalWritesAreCheckpointedOnCommitAndErasedOnAbort() throws Exception {
+        StateConf template = new StateConf();
+        StateConf stateConf = new StateConf().apply(ConfigFactory.parseMap(new HashMap<String, String>() {{
+            put(template.MemStore.Class.path(), MemStoreSimpleMap.class.getName());
+        }}));
+        MemStore kvstore = new MemStoreSimpleMap("test", stateConf,null);
+        AtomicReference<TransactionListener> transaction = new AtomicReference<>();
+        LogStorage<Long> storage = new MemoryLogStorage(stateConf.Storage) {
+            @Override
+            public boolean isTransactional() {
+                return true;
+            }
+
+            @Override
+            public void addTransactionListener(TransactionListener listener) {
+                transaction.compareAndSet(null, listener);
+            }
+        };
+        Path checkpointFile = Files.createTempFile("testmemstore", ".checkpoint");
+        checkpointFile.toFile().deleteOnExit();
+        Log<Long> log = storage.open(checkpointFile);
+        try {
+            log.bootstrap("test", kvstore, 0, Optional.empty());
+            Future<Long> w1 = log.append(kvstore, "key1".getBytes(), "value1".getBytes(), 1L);
+            storage.flush();
+            assertEquals(Long.valueOf(0L), w1.get());
+            assert (!Files.exists(checkpointFile)); //the state contains an uncommitted write
+            transaction.get().onCommit();
+            assert (Files.exists(checkpointFile));
+            assertEquals(Long.valueOf(0L), storage.open(checkpointFile).getCheckpoint());
+
+            Future<Long> w2 = log.append(kvstore, "key2".getBytes(), "value2".getBytes(), 2L);
+            storage.flush();
+            assertEquals(Long.valueOf(1L), w2.get());
+            assertEquals(2L, kvstore.numKeys());
+            transaction.get().onAbort(new Exception("aborted"));
+            assertEquals(0L, kvstore.numKeys());
+            assertEquals(null, log.getCheckpoint());
+            assert (!Files.exists(checkpointFile));
+            try {
+                log.append(kvstore, "key3".getBytes(), "value3".getBytes(), 3L);
+                assert (false);
+            } catch (IllegalStateException e) {
+                //writes are rejected until the state is bootstrapped again
+            }
+            //memory storage doesn't drop aborted records so both are recovered
+            assertEquals(2L, log.bootstrap("test", kvstore, 0, Optional.empty()));
+            assertEquals(2L, kvstore.numKeys());
+            log.append(kvstore, "key3".getBytes(), "value3".getBytes(), 3L);
+        } finally {
+            log.close();
+        }
+        storage.close();
+    }
+
+    @Test
+    public void testAppendAllAppliesAcknowledgedBatch() throws Exception {
+        StateConf template = new StateConf();
+        StateConf stateConf = new StateConf().apply(ConfigFactory.parseMap(new HashMap<String, String>() {{
+            put(template.MemStore.Class.path(), MemStoreSimpleMap.class.getName());
+        }}));
+        MemStore kvstore = new MemStoreSimpleMap("test", stateConf,null);
+        LogStorage<Long> storage = new MemoryLogStorage(stateConf.Storage);
+        storage.append(new Record<byte[], byte[]>("key1".getBytes(), "value1".getBytes(), 1L));
+        storage.flush();
+        Log<Long> log = storage.open(null);
+        try {
+            log.bootstrap("test", kvstore, 0, Optional.empty());
+            Future<Long> batch = log.appendAll(kvstore, Arrays.asList(
+                    new Record<byte[], byte[]>("key2".getBytes(), "value2".getBytes(), 2L),
+                    new Record<byte[], byte[]>("key3".getBytes(), "value3".getBytes(), 2L),
+                    new Record<byte[], byte[]>("key1".getBytes(), null, 2L, true)));
+            assert (!batch.isDone()); //memory storage acknowledges the writes only when flushed
+            storage.flush();
+            assert (batch.isDone());
+            assertEquals(Long.valueOf(3L), batch.get());
+            assertEquals(Long.valueOf(3L), log.getCheckpoint());
+            assertEquals(2L, kvstore.numKeys());
+            assert (!kvstore.apply(ByteBuffer.wrap("key1".getBytes())).isPresent());
+        } finally {
+            log.close();
+        }
+        storage.close();
+    }
+
+    @Test
+    public void testAppendAllWithFuturesThatCannotBeListenedTo() throws Exception {
+        StateConf template = new StateConf();
+        StateConf stateConf = new StateConf().apply(ConfigFactory.parseMap(new HashMap<String, String>() {{
+            put(template.MemStore.Class.path(), MemStoreSimpleMap.class.getName());
+        }}));
+        MemStore kvstore = new MemStoreSimpleMap("test", stateConf,null);
+        LogStorage<Long> storage = new MemoryLogStorage(stateConf.Storage) {
+            @Override
+            public Future<Long> append(Record<byte[], byte[]> record) {
+                Future<Long> write = super.append(record);
+                flush();
+                return new MappedJavaFuture<Long, Long>(write) {
+                    @Override
+                    public Long map(Long position) {
+                        return position;
+                    }
+                };
+            }
+        };
+        Log<Long> log = storage.open(null);
+        try {
+            log.bootstrap("test", kvstore, 0, Optional.empty());
+            Future<Long> batch = log.appendAll(kvstore, Arrays.asList(
+                    new Record<byte[], byte[]>("key1".getBytes(), "value1".getBytes(), 1L),
+                    new Record<byte[], byte[]>("key2".getBytes(), "value2".getBytes(), 1L)));
+            //no thread is blocked waiting for the writes, they are applied by the caller of get()
+            assertEquals(0L, kvstore.numKeys());
+            assertEquals(Long.valueOf(1L), batch.get());
+            assertEquals(2L, kvstore.numKeys());
+        } finally {
+            log.close();
+        }
+        storage.close();
+    }
+
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.core.storage;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+import io.amient.affinity.core.state.StateConf;
+import io.amient.affinity.core.util.CloseableIterator;
+import io.amient.affinity.core.util.EventTime;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MemStoreWindowedTest {
+
+    private ByteBuffer key(long windowStart, String key) {
+        ByteBuffer result = ByteBuffer.allocate(8 + key.length());
+        result.putLong(windowStart);
+        result.put(key.getBytes());
+        result.flip();
+        return result;
+    }
+
+    private StateConf conf(Path dataDir, long sizeMs) {
+        return conf(dataDir, sizeMs, sizeMs);
+    }
+
+    private StateConf conf(Path dataDir, long sizeMs, long advanceMs) {
+        StateConf template = new StateConf();
+        Config config = ConfigFactory.empty()
+                .withValue(template.MemStore.Class.path(), ConfigValueFactory.fromAnyRef(MemStoreSortedMap.class.getName()))
+                .withValue(template.MemStore.DataDir.path(), ConfigValueFactory.fromAnyRef(dataDir.toString()))
+                .withValue(template.Window.SizeMs.path(), ConfigValueFactory.fromAnyRef(sizeMs))
+                .withValue(template.Window.AdvanceMs.path(), ConfigValueFactory.fromAnyRef(advanceMs));
+        return new StateConf().apply(config);
+    }
+
+    @Test
+    public void segmentsDoNotModifyTheSharedConfiguration() throws Exception {
+        Path dataDir = Files.createTempDirectory("memstore-windowed");
+        StateConf conf = conf(dataDir, 60000);
+        MemStoreWindowed instance = new MemStoreWindowed("test", conf, null);
+        try {
+            long now = EventTime.unix();
+            instance.put(key(now, "a"), ByteBuffer.wrap("1".getBytes()));
+            instance.put(key(now - 1000, "b"), ByteBuffer.wrap("2".getBytes()));
+            assertEquals(2, instance.windows().size());
+            assertEquals(2L, instance.numKeys());
+            assertEquals(dataDir, conf.MemStore.DataDir.apply());
+            assert (instance.apply(key(now, "a")).isPresent());
+            assert (!instance.apply(key(now - 1000, "a")).isPresent());
+        } finally {
+            instance.close();
+        }
+    }
+
+    @Test
+    public void expiredSegmentsAreDroppedOnRead() throws Exception {
+        Path dataDir = Files.createTempDirectory("memstore-windowed");
+        MemStoreWindowed instance = new MemStoreWindowed("test", conf(dataDir, 200), null);
+        try {
+            long windowStart = EventTime.unix();
+            instance.put(key(windowStart, "a"), ByteBuffer.wrap("1".getBytes()));
+            assertEquals(1L, instance.numKeys());
+            Thread.sleep(300);
+            //no write has happened since the window expired
+            assertEquals(0L, instance.numKeys());
+            assertEquals(0, instance.windows().size());
+        } finally {
+            instance.close();
+        }
+    }
+
+    @Test
+    public void droppedSegmentsAreClosedOnlyAfterOpenIteratorsRelease() throws Exception {
+        Path dataDir = Files.createTempDirectory("memstore-windowed");
+        MemStoreWindowed instance = new MemStoreWindowed("test", conf(dataDir, 200), null);
+        try {
+            long windowStart = EventTime.unix();
+            instance.put(key(windowStart, "a"), ByteBuffer.wrap("1".getBytes()));
+            instance.put(key(windowStart, "b"), ByteBuffer.wrap("2".getBytes()));
+            CloseableIterator<Map.Entry<ByteBuffer, ByteBuffer>> all = instance.iterator(null);
+            CloseableIterator<Map.Entry<ByteBuffer, ByteBuffer>> prefixed = instance.iterator(key(windowStart, ""));
+            assertTrue(all.hasNext());
+            Thread.sleep(300);
+            //the window has expired and its segment is dropped while the iterators are still open
+            assertEquals(0L, instance.numKeys());
+            int prefixedCount = 0;
+            while (prefixed.hasNext()) {
+                prefixed.next();
+                prefixedCount++;
+            }
+            assertEquals(2, prefixedCount);
+            int allCount = 0;
+            while (all.hasNext()) {
+                all.next();
+                allCount++;
+            }
+            assertEquals(2, allCount);
+            all.close();
+            prefixed.close();
+            assertEquals(0, instance.windows().size());
+        } finally {
+            instance.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void windowsMustAdvance() throws Exception {
+        new MemStoreWindowed("test", conf(Files.createTempDirectory("memstore-windowed"), 1000, 0), null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void windowsMustNotAdvanceMoreThanTheirSize() throws Exception {
+        new MemStoreWindowed("test", conf(Files.createTempDirectory("memstore-windowed"), 1000, 2000), null);
+    }
+}
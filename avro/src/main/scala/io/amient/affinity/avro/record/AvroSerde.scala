@@ -39,7 +39,7 @@ import scala.util.control.NonFatal
 
 object AvroSerde {
 
-  private val MAGIC: Byte = 0
+  val MAGIC: Byte = 0
 
   object AbsConf extends AbsConf {
     override def apply(config: Config): AbsConf = new AbsConf().apply(config)
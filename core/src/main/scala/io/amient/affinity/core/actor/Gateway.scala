@@ -31,7 +31,7 @@ import io.amient.affinity.core.config.{CfgList, CfgStruct}
 import io.amient.affinity.core.http.HttpInterfaceConf
 import io.amient.affinity.core.state.{KVStore, KVStoreGlobal}
 import io.amient.affinity.core.storage.LogStorageConf
-import io.amient.affinity.core.util.AffinityMetrics
+import io.amient.affinity.core.util.{AffinityMetrics, JavaFutures}
 
 import scala.collection.mutable
 import scala.concurrent.duration._
@@ -58,7 +58,7 @@ trait Gateway extends ActorHandler {
 
   import Gateway._
 
-  implicit def javaToScalaFuture[T](jf: java.util.concurrent.Future[T]): Future[T] = Future(jf.get)(ExecutionContext.Implicits.global)
+  implicit def javaToScalaFuture[T](jf: java.util.concurrent.Future[T]): Future[T] = JavaFutures.asScala(jf)(ExecutionContext.Implicits.global)
 
   implicit def unitToVoidFuture(f: Future[Unit]): Future[Void] = f.map(null)(ExecutionContext.Implicits.global)
 
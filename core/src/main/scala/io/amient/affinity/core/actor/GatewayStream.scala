@@ -20,19 +20,21 @@
 package io.amient.affinity.core.actor
 
 import java.io.Closeable
+import java.nio.ByteBuffer
+import java.util
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
 import java.util.concurrent.{Executors, TimeUnit}
 
 import io.amient.affinity.core.actor.Controller.FatalErrorShutdown
 import io.amient.affinity.core.serde.{AbstractSerde, Serde}
-import io.amient.affinity.core.storage.{LogStorage, LogStorageConf, Record}
+import io.amient.affinity.core.storage.{LogEntry, LogStorage, LogStorageConf, Record}
 import io.amient.affinity.core.util.{CompletedJavaFuture, EventTime, OutputDataStream, TimeRange}
 
 import scala.collection.JavaConverters._
 import scala.collection.mutable
 import scala.collection.mutable.ListBuffer
 import scala.collection.parallel.immutable.ParSeq
-import scala.concurrent.duration._
-import scala.concurrent.{Await, Future, TimeoutException}
+import scala.concurrent.{ExecutionContext, ExecutionContextExecutorService, Future, TimeoutException}
 import scala.language.{existentials, postfixOps}
 import scala.reflect.ClassTag
 
@@ -56,6 +58,21 @@ trait GatewayStream extends Gateway {
   lazy val outputStreams: ParSeq[OutputDataStream[_, _]] = declardOutputStreams.result().par
 
   def output[K: ClassTag, V: ClassTag](streamIdentifier: String): OutputDataStream[K, V] = {
+    createOutput[K, V](streamIdentifier, None)
+  }
+
+  /**
+    * Create an output stream which merges the records with the same key that are buffered together
+    * within the output.linger.ms of the stream configuration
+    *
+    * @param streamIdentifier id of the stream configuration object
+    * @param combine          function that merges a buffered value with a newer value of the same key
+    */
+  def output[K: ClassTag, V: ClassTag](streamIdentifier: String, combine: (V, V) => V): OutputDataStream[K, V] = {
+    createOutput[K, V](streamIdentifier, Some(combine))
+  }
+
+  private def createOutput[K: ClassTag, V: ClassTag](streamIdentifier: String, combine: Option[(V, V) => V]): OutputDataStream[K, V] = {
     val streamConf = nodeConf.Gateway.Stream(streamIdentifier)
     if (!streamConf.Class.isDefined) {
       logger.warning(s"Output stream is not enabled in the current configuration: $streamIdentifier")
@@ -63,7 +80,7 @@ trait GatewayStream extends Gateway {
     } else {
       val keySerde: AbstractSerde[K] = Serde.of[K](config)
       val valSerde: AbstractSerde[V] = Serde.of[V](config)
-      val outpuDataStream = new OutputDataStream[K, V](keySerde, valSerde, streamConf)
+      val outpuDataStream = new OutputDataStream[K, V](keySerde, valSerde, streamConf, combine)
       declardOutputStreams += outpuDataStream
       outpuDataStream
     }
@@ -78,13 +95,34 @@ trait GatewayStream extends Gateway {
     * @tparam V
     */
   def input[K: ClassTag, V: ClassTag](streamIdentifier: String)(processor: InputStreamProcessor[K, V]): Unit = {
+    createInput[K, V](streamIdentifier, None, processor)
+  }
+
+  /**
+    * Create an input stream handler with a combiner stage: records with the same key consumed within
+    * a window are merged before they are passed to the processor. The window is flushed before every commit,
+    * i.e. at least every commit.interval.ms, or when it holds max.inflight.records distinct keys.
+    * The merged record has the timestamp of the latest of the merged records and records with null values
+    * are not merged but replace the previous record of the key.
+    *
+    * @param streamIdentifier id of the stream configuration object
+    * @param combine          function that merges the value combined so far with a newer value of the same key
+    * @param processor        a function that takes (Record[K,V]) and returns Boolean signal that informs the committer
+    */
+  def input[K: ClassTag, V: ClassTag](streamIdentifier: String, combine: (V, V) => V)(processor: InputStreamProcessor[K, V]): Unit = {
+    createInput[K, V](streamIdentifier, Some(combine), processor)
+  }
+
+  private def createInput[K: ClassTag, V: ClassTag](streamIdentifier: String,
+                                                    combine: Option[(V, V) => V],
+                                                    processor: InputStreamProcessor[K, V]): Unit = {
     val streamConf = nodeConf.Gateway.Stream(streamIdentifier)
     if (!streamConf.Class.isDefined) {
       logger.warning(s"Input stream is not enabled in the current configuration: $streamIdentifier")
     } else {
       val keySerde: AbstractSerde[K] = Serde.of[K](config)
       val valSerde: AbstractSerde[V] = Serde.of[V](config)
-      declaredInputStreamProcessors += new RunnableInputStream[K, V](streamIdentifier, keySerde, valSerde, streamConf, processor)
+      declaredInputStreamProcessors += new RunnableInputStream[K, V](streamIdentifier, keySerde, valSerde, streamConf, processor, combine)
     }
   }
 
@@ -151,14 +189,177 @@ trait GatewayStream extends Gateway {
                                   keySerde: AbstractSerde[K],
                                   valSerde: AbstractSerde[V],
                                   streamConfig: LogStorageConf,
-                                  processor: InputStreamProcessor[K, V]) extends Runnable with Closeable {
+                                  processor: InputStreamProcessor[K, V],
+                                  combine: Option[(V, V) => V] = None) extends Runnable with Closeable {
 
     val minTimestamp = streamConfig.MinTimestamp()
     val consumer = LogStorage.newInstanceEnsureExists(streamConfig)
-    //this type of buffering has quite a high memory footprint but doesn't require a data structure with concurrent access
-    val work = new ListBuffer[Future[Any]]
     val commitInterval: Long = streamConfig.CommitIntervalMs()
     val commitTimeout: Long = streamConfig.CommitTimeoutMs()
+    val maxInFlightRecords: Int = streamConfig.MaxInFlightRecords()
+    val maxInFlightBytes: Long = streamConfig.MaxInFlightBytes()
+    val parallelism: Int = streamConfig.Parallelism()
+
+    /*
+     * With parallelism > 1 records are dispatched to single-threaded workers by the hash of the key bytes,
+     * so records with the same key are deserialized and passed to the processor in the order of consumption.
+     */
+    private val workers: Array[ExecutionContextExecutorService] = Array.fill(if (parallelism > 1) parallelism else 0) {
+      ExecutionContext.fromExecutorService(Executors.newSingleThreadExecutor())
+    }
+
+    /*
+     * Incomplete units of work are only tracked by counters which are decremented as they complete,
+     * so a completed unit of work is released immediately rather than held until the next commit.
+     */
+    private val inFlightRecords = new AtomicInteger(0)
+    private val inFlightBytes = new AtomicLong(0)
+    @volatile private var workFailure: Throwable = null
+
+    private def windowFull: Boolean = inFlightRecords.get >= maxInFlightRecords || inFlightBytes.get >= maxInFlightBytes
+
+    //hysteresis so that the consumer isn't paused and unpaused for every completed record
+    private def windowDrained: Boolean = inFlightRecords.get <= maxInFlightRecords / 2 && inFlightBytes.get <= maxInFlightBytes / 2
+
+    private def track(unitOfWork: Future[Any], bytes: Long, inFlight: InFlight)(implicit executor: ExecutionContext): Unit = {
+      inFlightRecords.incrementAndGet()
+      inFlightBytes.addAndGet(bytes)
+      unitOfWork.onComplete { result =>
+        //a failed unit of work never completes its position so the watermark cannot advance past it
+        if (result.isFailure) {
+          if (workFailure == null) workFailure = result.failed.get
+        } else if (inFlight != null) inFlight.completed = true
+        inFlightBytes.addAndGet(-bytes)
+        if (inFlightRecords.decrementAndGet() == 0) inFlightRecords.synchronized(inFlightRecords.notifyAll())
+      }
+    }
+
+    private def awaitInFlight(timeoutMs: Long): Unit = {
+      val deadline = System.currentTimeMillis() + timeoutMs
+      inFlightRecords.synchronized {
+        while (inFlightRecords.get > 0) {
+          val remaining = deadline - System.currentTimeMillis()
+          if (remaining <= 0) throw new TimeoutException()
+          inFlightRecords.wait(remaining)
+        }
+      }
+      if (workFailure != null) throw workFailure
+    }
+
+    /*
+     * If the storage can commit explicit positions, the positions of consumed records are queued per partition
+     * in the order of consumption and the watermark of each partition advances over the contiguous prefix whose
+     * work has completed. The commit is then issued in the background for the watermarks without waiting for the
+     * slowest unit of work and without ever covering a record whose processing hasn't completed.
+     * Only the consumer thread touches the queues, the completing threads only flip the volatile flag.
+     */
+    val positionCommit: Boolean = consumer.isPositionCommitSupported
+
+    private class InFlight(val position: Any, val timestamp: Long) {
+      @volatile var completed = false
+    }
+
+    private class Watermark {
+      val pending = new util.ArrayDeque[InFlight]()
+      var position: Any = null
+      var dirty = false
+
+      def advance(): Unit = while (!pending.isEmpty && pending.peekFirst.completed) {
+        position = pending.pollFirst.position
+        dirty = true
+      }
+    }
+
+    private val watermarks = new util.HashMap[Integer, Watermark]()
+
+    private def watermark(partition: Int, position: Any, completed: Boolean, now: Long): InFlight = {
+      var w = watermarks.get(partition)
+      if (w == null) {
+        w = new Watermark
+        watermarks.put(partition, w)
+      }
+      if (completed && w.pending.isEmpty) {
+        w.position = position
+        w.dirty = true
+        null
+      } else {
+        val inFlight = new InFlight(position, now)
+        if (completed) inFlight.completed = true
+        w.pending.add(inFlight)
+        inFlight
+      }
+    }
+
+    /**
+      * @return positions of the partitions whose watermark advanced since the last commit
+      */
+    private def advanceWatermarks(now: Long): util.Map[Integer, Any] = {
+      val positions = new util.HashMap[Integer, Any]()
+      watermarks.asScala.foreach { case (partition, w) =>
+        w.advance()
+        if (!w.pending.isEmpty && now - w.pending.peekFirst.timestamp > commitTimeout) throw new TimeoutException()
+        if (w.dirty) positions.put(partition, w.position)
+      }
+      positions
+    }
+
+    /**
+      * a unit of work which has already failed is tracked like an incomplete one so that the failure is recorded
+      */
+    private def succeededAlready(unitOfWork: Future[Any]): Boolean = unitOfWork.value.exists(_.isSuccess)
+
+    private def process(entry: LogEntry[_]): Future[Any] = {
+      val key: K = keySerde.fromBytes(entry.key)
+      val value: V = valSerde.fromBytes(entry.value)
+      processor(new Record(key, value, entry.timestamp))
+    }
+
+    private def dispatch(hash: Int, work: => Future[Any])(implicit executor: ExecutionContext): Future[Any] = {
+      if (workers.isEmpty) work else {
+        val worker = workers((hash & Int.MaxValue) % workers.length)
+        Future(work)(worker).flatMap(identity)
+      }
+    }
+
+    /*
+     * Combiner window: records are merged by key on the consumer thread and the last consumed position of each
+     * partition is remembered, when the window is flushed, the merged records are dispatched and the window
+     * positions complete only when all its records have been processed. The window is keyed by the serialized
+     * key because the deserialized keys don't necessarily have value equality, e.g. byte arrays.
+     */
+    private val window = new util.LinkedHashMap[ByteBuffer, Record[K, V]]()
+
+    private val windowPositions = new util.HashMap[Integer, Any]()
+
+    private def combineRecord(entry: LogEntry[_], f: (V, V) => V): Unit = {
+      val record = new Record[K, V](keySerde.fromBytes(entry.key), valSerde.fromBytes(entry.value), entry.timestamp)
+      val windowKey = if (entry.key == null) null else ByteBuffer.wrap(entry.key)
+      val combined = window.get(windowKey) match {
+        case null => record
+        case prev if prev.value == null || record.value == null => record
+        case prev => new Record[K, V](record.key, f(prev.value, record.value), math.max(prev.timestamp, record.timestamp))
+      }
+      window.put(windowKey, combined)
+      windowPositions.put(entry.partition, entry.position)
+    }
+
+    private def flushWindow(now: Long)(implicit executor: ExecutionContext): Unit = if (!window.isEmpty) {
+      val work = window.asScala.toList.map { case (windowKey, record) =>
+        val unitOfWork = dispatch(if (windowKey == null) 0 else windowKey.hashCode, processor(record))
+        if (!succeededAlready(unitOfWork)) track(unitOfWork, 0, null)
+        unitOfWork
+      }
+      if (positionCommit) {
+        val windowCompleted = Future.sequence(work)
+        val succeeded = succeededAlready(windowCompleted)
+        windowPositions.asScala.foreach { case (partition, position) =>
+          val inFlight = watermark(partition, position, succeeded, now)
+          if (inFlight != null) windowCompleted.foreach(_ => inFlight.completed = true)
+        }
+      }
+      window.clear()
+      windowPositions.clear()
+    }
 
     override def close(): Unit = consumer.cancel()
 
@@ -172,6 +373,7 @@ trait GatewayStream extends Gateway {
         var lastCommitTimestamp = System.currentTimeMillis()
         var finalized = false
         var uncommittedInput = false
+        var paused = false
         logger.info(s"Starting input stream processor: $identifier")
         while ((!closed && !finalized) || !lastCommit.isDone) {
           //clusterSuspended is volatile so we check it for each message set, in theory this should not matter because whatever the processor() does
@@ -184,28 +386,58 @@ trait GatewayStream extends Gateway {
             }
             logger.info(s"Resuming input stream processor: $identifier")
           }
+          /*  Backpressure: the number and size of records being processed is bounded, when the window is full
+           *  the consumer is paused but fetch() is still called so that the storage can keep its subscription alive
+           */
+          if (!paused && windowFull) {
+            consumer.pause()
+            paused = true
+          } else if (paused && windowDrained) {
+            consumer.unpause()
+            paused = false
+          }
           val entries = consumer.fetch(true)
+          val fetchTimestamp = System.currentTimeMillis()
           if (entries != null) for (entry <- entries.asScala) {
-            val key: K = keySerde.fromBytes(entry.key)
-            val value: V = valSerde.fromBytes(entry.value)
-            val unitOfWork = processor(new Record(key, value, entry.timestamp))
-            if (!unitOfWork.isCompleted) work += unitOfWork
+            combine match {
+              case Some(f) => combineRecord(entry, f)
+              case None =>
+                val unitOfWork = dispatch(util.Arrays.hashCode(entry.key), process(entry))
+                //completion is read once: a unit of work which completes in between must still complete its position
+                val succeeded = succeededAlready(unitOfWork)
+                val inFlight = if (positionCommit) watermark(entry.partition, entry.position, succeeded, fetchTimestamp) else null
+                if (!succeeded) {
+                  track(unitOfWork, (if (entry.key == null) 0 else entry.key.length) + (if (entry.value == null) 0 else entry.value.length), inFlight)
+                }
+            }
             uncommittedInput = true
           }
+          if (window.size >= maxInFlightRecords) flushWindow(fetchTimestamp)
           /*  At-least-once guarantee processing input messages
-           *  Every <commitInterval> all work is completed and then consumer is commited()
+           *  Every <commitInterval> the completed watermarks are committed in the background, or if the storage
+           *  cannot commit explicit positions, all work is completed and then consumer is commited()
+           *  With kafka.transactional.id the commit also commits all writes made since the previous one
+           *  and a failed commit is fatal so that the node restarts from the last committed offsets
            */
           val now = System.currentTimeMillis()
           if ((closed && !finalized) || now - lastCommitTimestamp > commitInterval) try {
-            //flush all pending work accumulated in this processor only
-            val uncommittedWork = work.result
-            work.clear
-            if (uncommittedInput) {
-              if (uncommittedWork.size > 0) {
-                //await uncommitted work completion
-                Await.result(Future.sequence(uncommittedWork), commitTimeout millis)
-                //commit the records processed by this processor only since the last commit
+            //commits are aligned with the combiner windows
+            flushWindow(now)
+            if (positionCommit) {
+              //when closing, the remaining work is completed so that the final commit covers all consumed records
+              if (closed) awaitInFlight(commitTimeout) else if (workFailure != null) throw workFailure
+              val positions = advanceWatermarks(now)
+              //commits are not piled up behind a slow one, except the final one
+              if (!positions.isEmpty && (closed || lastCommit.isDone)) {
+                lastCommit = consumer.commit(positions)
+                watermarks.values.asScala.foreach(_.dirty = false)
               }
+            } else if (uncommittedInput || consumer.isTransactional) {
+              //a transaction is committed even without new input because it also carries the writes of the
+              //state stores of this process which must not stay open longer than the transaction timeout
+              //await completion of all work accumulated in this processor only
+              awaitInFlight(commitTimeout)
+              //commit the records processed by this processor only since the last commit
               lastCommit = consumer.commit() //trigger new commit
               //clear the uncommittedInput accumulator for the next commit
               uncommittedInput = false
@@ -223,6 +455,7 @@ trait GatewayStream extends Gateway {
         case e: Throwable => context.system.eventStream.publish(FatalErrorShutdown(e))
       } finally {
         logger.info(s"Finished input stream processor: $identifier (closed = $closed)")
+        workers.foreach(_.shutdownNow())
         consumer.close()
         keySerde.close()
         valSerde.close()
@@ -1,13 +1,14 @@
 package io.amient.affinity.core.actor
 
+import akka.actor.ActorRef
 import akka.actor.Status.Failure
 import akka.routing.{ActorRefRoutee, GetRoutees, Routees}
-import akka.serialization.SerializationExtension
 import akka.util.Timeout
 import io.amient.affinity.core.cluster.Coordinator
 import io.amient.affinity.core.cluster.Coordinator.MembershipUpdate
+import io.amient.affinity.core.serde.primitive.InternalMessage
 import io.amient.affinity.core.util.{Reply, ScatterGather}
-import io.amient.affinity.core.{Partitioner, ack, any2ref}
+import io.amient.affinity.core.{Partitioner, ack}
 
 import scala.collection.mutable
 import scala.concurrent.duration._
@@ -19,13 +20,29 @@ trait Routed {
   def key: Any
 }
 
+/**
+  * ReplicaRouted messages can be served by any replica of the partition, not only by the master,
+  * Group distributes them among all online replicas in a round-robin fashion
+  */
+trait ReplicaRouted extends Routed
+
+/**
+  * Envelope in which a ReplicaRouted message is delivered to a standby replica, the replica forwards
+  * the message to the master if it cannot serve it
+  */
+final case class ReplicaDelivery(message: ReplicaRouted, master: ActorRef) extends InternalMessage
+
 final case class GroupStatus(identifier: String, suspended: Boolean) extends Reply[Unit]
 
 class Group(identifier: String, numPartitions: Int, partitioner: Partitioner) extends ActorHandler {
 
   private val routees = mutable.Map[Int, ActorRefRoutee]()
 
-  val serialization = SerializationExtension(context.system)
+  private val replicas = mutable.Map[Int, Vector[ActorRef]]()
+
+  private var replicaRoundRobin = 0
+
+  private val keySerialization = new KeySerialization(context.system)
 
   private implicit val executor = scala.concurrent.ExecutionContext.Implicits.global
 
@@ -57,6 +74,10 @@ class Group(identifier: String, numPartitions: Int, partitioner: Partitioner) ex
     case GetRoutees => sender ! Routees(routees.values.toIndexedSeq)
 
     case request: MembershipUpdate => request(sender) ! {
+      replicas.clear()
+      request.members.values.groupBy(_.path.name.toInt).foreach {
+        case (partition, refs) => replicas.put(partition, refs.toVector)
+      }
       val (add, remove) = request.mastersDelta(routees.map(_._2.ref).toSet)
       remove.foreach { routee =>
         val partition = routee.path.name.toInt
@@ -75,8 +96,24 @@ class Group(identifier: String, numPartitions: Int, partitioner: Partitioner) ex
 
   override def handle: Receive = {
 
+    case message: ReplicaRouted => try {
+      val partition = getPartition(message.key)
+      val master = getRoutee(partition)
+      replicas.get(partition).filter(_.size > 1) match {
+        case None => master.send(message, sender)
+        case Some(candidates) =>
+          replicaRoundRobin = (replicaRoundRobin + 1) % candidates.size
+          candidates(replicaRoundRobin) match {
+            case master.ref => master.send(message, sender)
+            case standby => standby.tell(ReplicaDelivery(message, master.ref), sender)
+          }
+      }
+    } catch {
+      case NonFatal(e) => sender ! Failure(new RuntimeException(s"Could not route $message", e))
+    }
+
     case message: Routed => try {
-      getRoutee(message.key).send(message, sender)
+      getRoutee(getPartition(message.key)).send(message, sender)
     } catch {
       case NonFatal(e) => sender ! Failure(new RuntimeException(s"Could not route $message", e))
     }
@@ -103,13 +140,13 @@ class Group(identifier: String, numPartitions: Int, partitioner: Partitioner) ex
     }
   }
 
-  private def getRoutee(key: Any): ActorRefRoutee = {
-
-    val serializedKey = serialization.serialize(any2ref(key)).get
-    val partition = partitioner.partition(serializedKey, numPartitions)
-
+  private def getPartition(key: Any): Int = {
+    val serializedKey = keySerialization(key)
     //log.trace(serializedKey.mkString(".") + " over " + numPartitions + " to " + partition)
+    partitioner.partition(serializedKey, numPartitions)
+  }
 
+  private def getRoutee(partition: Int): ActorRefRoutee = {
     routees.get(partition) match {
       case Some(routee) => routee
       case None =>
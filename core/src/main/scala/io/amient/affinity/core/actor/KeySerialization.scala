@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.core.actor
+
+import java.util.concurrent.ConcurrentHashMap
+
+import akka.actor.ActorSystem
+import akka.serialization.{SerializationExtension, Serializer}
+import io.amient.affinity.core.any2ref
+
+/**
+  * Serializes keys for routing, i.e. to the same bytes as the akka serialization extension, but the serializer
+  * is looked up only once for each key class instead of on every message.
+  */
+class KeySerialization(system: ActorSystem) {
+
+  private val serialization = SerializationExtension(system)
+
+  private val serializers = new ConcurrentHashMap[Class[_], Serializer]()
+
+  def serializerFor(ref: AnyRef): Serializer = {
+    serializers.get(ref.getClass) match {
+      case null =>
+        val serializer = serialization.findSerializerFor(ref)
+        serializers.putIfAbsent(ref.getClass, serializer) match {
+          case null => serializer
+          case some => some
+        }
+      case serializer => serializer
+    }
+  }
+
+  def apply(key: Any): Array[Byte] = {
+    val ref = any2ref(key)
+    serializerFor(ref).toBinary(ref)
+  }
+
+}
@@ -25,12 +25,14 @@ import java.util.{Observable, Observer}
 import akka.actor.{Actor, ActorRef, Status}
 import io.amient.affinity.Conf
 import io.amient.affinity.core.actor.Container.{PartitionOffline, PartitionOnline}
+import io.amient.affinity.core.cluster.BootstrapScheduler
 import io.amient.affinity.core.serde.primitive.InternalMessage
-import io.amient.affinity.core.state.{KVStore, KVStoreLocal, ObservableKVStore}
+import io.amient.affinity.core.state.{KVStore, KVStoreLocal, KVStoreWindowed, ObservableKVStore}
 import io.amient.affinity.core.util.Reply
 
 import scala.collection.JavaConverters._
 import scala.collection.parallel.ParMap
+import scala.concurrent.Future
 import scala.reflect.ClassTag
 import scala.util.control.NonFatal
 
@@ -38,9 +40,25 @@ case class CreateKeyValueMediator(stateStore: String, key: Any) extends Internal
 case class KeyValueMediatorCreated(mediator: ActorRef) extends InternalMessage
 case class RegisterMediatorSubscriber(subscriber: ActorRef) extends InternalMessage
 
+/**
+  * Point lookup which may be served by a standby replica of the partition if the replica is consistent
+  * with the given token, or if no token is given, if the replica is within the configured read.max.staleness.ms.
+  * Standbys that don't satisfy the condition forward the read to the master which always serves it.
+  *
+  * @param stateStore name of the state store within the keyspace
+  * @param key        key to look up
+  * @param token      consistency token as returned by KVStoreLocal.replaceWithToken or updateAndGetWithToken
+  */
+case class ReadReplica(stateStore: String, key: Any, token: Option[Any] = None)
+  extends InternalMessage with ReplicaRouted with Reply[Option[Any]]
+
 case class BecomeStandby() extends Reply[Unit]
 case class BecomeMaster() extends Reply[Unit]
 
+private[actor] case class BootstrapAdmitted(permit: BootstrapScheduler#Permit, standby: Boolean, generation: Int)
+
+private[actor] case class StateAborted(stateStore: String, cause: Exception)
+
 trait Partition extends ActorHandler {
 
   /**
@@ -55,6 +73,20 @@ trait Partition extends ActorHandler {
 
   private var started = false
 
+  private var online = false
+
+  private var generation = 0
+
+  private var standbyMode = true
+
+  private val heldReads = scala.collection.mutable.ListBuffer[(ReadReplica, ActorRef)]()
+
+  //admissions by generation, each is kept until its BootstrapAdmitted message has been handled
+  //so that the permits which are still on the way to the inbox are released when the actor stops
+  private val admissions = scala.collection.mutable.Map[Int, Future[BootstrapScheduler#Permit]]()
+
+  private lazy val bootstrapScheduler = BootstrapScheduler.forActorSystem(context.system)
+
   private val declaredStateStores: CopyOnWriteArrayList[(String, KVStoreLocal[_, _])] = new CopyOnWriteArrayList[(String, KVStoreLocal[_, _])]()
   private lazy val stateStores: ParMap[String, KVStoreLocal[_, _]] = declaredStateStores.iterator().asScala.toMap.par
 
@@ -67,18 +99,33 @@ trait Partition extends ActorHandler {
     state(name, KVStoreLocal.create[K, V](s"$group-$name", partition, stateConf, numPartitions, context.system))
   }
 
+  /**
+    * Declare a windowed state, its configuration must contain the window section
+    */
+  def windowedState[K: ClassTag, V: ClassTag](name: String)(implicit group: String, partition: Int): KVStoreWindowed[K, V] = {
+    if (started) throw new IllegalStateException("Cannot declare state after the actor has started")
+    val conf = Conf(context.system.settings.config)
+    val numPartitions = conf.Affi.Keyspace(group).Partitions()
+    val stateConf = conf.Affi.Keyspace(group).State(name)
+    if (stateConf.Partitions.isDefined) throw new IllegalArgumentException("State defined inside a Keyspace cannot override number of partitions")
+    val store = KVStoreWindowed.create[K, V](s"$group-$name", partition, stateConf, numPartitions, context.system)
+    state(name, store.underlying)
+    store
+  }
+
   private[affinity] def state[K, V](name: String, state: KVStoreLocal[K,V]): KVStoreLocal[K,V] = {
     declaredStateStores.add((name, state))
+    val partitionActor = self
+    state.addAbortListener(cause => partitionActor ! StateAborted(name, cause))
     state
   }
 
   override def preStart(): Unit = {
     started = true
     logger.debug(s"Starting partition $partition of group $group")
-    //on start-up every partition is a standby which also requires a blocking bootstrap first
+    //on start-up every partition is a standby which also requires a bootstrap first,
+    //only after states have caught up the partition is made online and available to coordinators
     become(standby = true)
-    //only after states have caught up we make the partition online and available to cooridnators
-    context.parent ! PartitionOnline(self)
     super.preStart()
   }
 
@@ -99,6 +146,9 @@ trait Partition extends ActorHandler {
     try {
       logger.debug(s"Stopping partition $partition of group $group")
       context.parent ! PartitionOffline(self)
+      //slots which were admitted but not yet used by this partition must be returned to the scheduler
+      admissions.values.foreach(_.foreach(_.release())(context.dispatcher))
+      admissions.clear()
       closeStateStores()
     } finally super.postStop()
   }
@@ -107,13 +157,67 @@ trait Partition extends ActorHandler {
 
     case msg@BecomeMaster() =>
       msg(sender) ! {} //acking the receipt of the instruction immediately
-      become(standby = false) //then blocking the inbox until state stores have caught-up with storage
-      onBecomeMaster //then invoke custom handler
+      become(standby = false) //then holding routed messages until state stores have caught-up with storage
 
     case msg@BecomeStandby() =>
       msg(sender) ! {} //acking the receipt of the instruction immediately
       become(standby = true)  //then switch state stores to standby mode, i.e. tailing the storage in the background
-      onBecomeStandby
+
+    case StateAborted(stateStoreName, cause) =>
+      //the state was erased and rejects writes, the partition is bootstrapped again in its current role
+      //and a master holds the routed messages until then as when it's becoming a master
+      logger.warning(s"State $stateStoreName of partition $group/$partition was erased after an aborted transaction: $cause")
+      suspend
+      become(standbyMode)
+
+    case BootstrapAdmitted(permit, standby, seq) if seq != generation =>
+      admissions -= seq
+      permit.release() //superseded by a later transition before the scheduler had a slot for it
+
+    case BootstrapAdmitted(permit, standby, seq) =>
+      admissions -= seq
+      //the bootstrap itself blocks the inbox, only waiting for the slot doesn't
+      permit { listener =>
+        stateStores.values.foreach { state =>
+          state.boot(listener)
+          if (state.external || standby) state.tail
+        }
+      }
+      if (!online) {
+        online = true
+        context.parent ! PartitionOnline(self)
+      }
+      if (standby) {
+        logger.debug(s"${self.path} Became standby for partition $group/$partition")
+        onBecomeStandby
+      } else {
+        resume
+        heldReads.foreach { case (request, requestor) => self.tell(request, requestor) }
+        heldReads.clear
+        logger.debug(s"${self.path} became master for partition $group/$partition")
+        onBecomeMaster //then invoke custom handler
+      }
+
+    case request@ReadReplica(stateStoreName, key, _) if isSuspended =>
+      //same as other routed messages, reads are held while the partition is becoming a master
+      if (heldReads.size < conf.Affi.Node.SuspendQueueMaxSize()) heldReads += ((request, sender)) else {
+        sender ! Status.Failure(new RuntimeException(s"Suspension queue overflow in partition $group/$partition"))
+      }
+
+    case request@ReadReplica(stateStoreName, key, _) => request(sender) ! {
+      getStateStore(stateStoreName).uncheckedApply(key)
+    }
+
+    case ReplicaDelivery(request@ReadReplica(stateStoreName, key, token), master) => try {
+      val state = getStateStore(stateStoreName)
+      if (!isSuspended || state.isConsistentWith(token)) {
+        request(sender) ! state.uncheckedApply(key)
+      } else {
+        master.tell(request, sender)
+      }
+    } catch {
+      case NonFatal(e) => sender ! Status.Failure(e)
+    }
 
     case CreateKeyValueMediator(stateStoreName: String, key: Any) => try {
       val state = getStateStore(stateStoreName)
@@ -131,16 +235,14 @@ trait Partition extends ActorHandler {
 
   private[core] def become(standby: Boolean): Unit = {
     if (standby) suspend
-    stateStores.values.foreach { state =>
-      state.boot
-      if (state.external || standby) state.tail
-    }
-    if (standby) {
-      logger.debug(s"${self.path} Became standby for partition $group/$partition")
-    } else {
-      resume
-      logger.debug(s"${self.path} became master for partition $group/$partition")
-    }
+    standbyMode = standby
+    //bootstraps are queued by the node-wide scheduler, partitions becoming masters take priority over standbys,
+    //the slot is awaited asynchronously so that queued partitions don't occupy dispatcher threads
+    generation += 1
+    val seq = generation
+    val admission = bootstrapScheduler.admit(s"$group/$partition", master = !standby)
+    admissions += seq -> admission
+    admission.foreach(permit => self ! BootstrapAdmitted(permit, standby, seq))(context.dispatcher)
   }
 
   private[core] def closeStateStores(): Unit = stateStores.foreach {
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.core.cluster
+
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong}
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+
+import akka.actor.ActorSystem
+import io.amient.affinity.Conf
+import io.amient.affinity.core.cluster.Node.NodeConf
+import io.amient.affinity.core.storage.BootstrapListener
+import org.slf4j.LoggerFactory
+
+import scala.collection.JavaConverters._
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, ExecutionContext, Future, Promise}
+
+object BootstrapScheduler {
+
+  private val schedulers = new ConcurrentHashMap[ActorSystem, BootstrapScheduler]()
+
+  def forActorSystem(system: ActorSystem): BootstrapScheduler = schedulers.synchronized {
+    schedulers.get(system) match {
+      case null =>
+        val scheduler = new BootstrapScheduler(Conf(system.settings.config).Affi.Node)
+        schedulers.put(system, scheduler)
+        system.registerOnTermination(schedulers.remove(system))
+        scheduler
+      case scheduler => scheduler
+    }
+  }
+
+  private final case class Ticket(priority: Int, seq: Long) extends Comparable[Ticket] {
+    override def compareTo(o: Ticket): Int = {
+      if (priority != o.priority) Integer.compare(priority, o.priority) else java.lang.Long.compare(seq, o.seq)
+    }
+  }
+
+}
+
+/**
+  * BootstrapScheduler coordinates state bootstraps of all partitions hosted by a single node.
+  * At most `node.bootstrap.parallelism` partitions bootstrap at the same time, partitions which
+  * are becoming masters are always admitted before the standbys which are waiting and the standbys
+  * are throttled to `node.bootstrap.max.bytes.per.sec` so that they don't starve co-located masters.
+  *
+  * @param conf node configuration
+  */
+class BootstrapScheduler(conf: NodeConf) {
+
+  import BootstrapScheduler._
+
+  private val log = LoggerFactory.getLogger(classOf[BootstrapScheduler])
+
+  val parallelism: Int = if (conf.BootstrapParallelism.isDefined) conf.BootstrapParallelism() else {
+    Runtime.getRuntime.availableProcessors
+  }
+
+  if (parallelism < 1) throw new IllegalArgumentException(s"${conf.BootstrapParallelism.path} must be at least 1")
+
+  private val maxBytesPerSec: Long = conf.BootstrapMaxBytesPerSec()
+
+  private val progressIntervalMs: Long = conf.BootstrapProgressIntervalMs()
+
+  private val sequence = new AtomicLong(0L)
+
+  private val waiting = new java.util.TreeMap[Ticket, (Permit, Promise[Permit])]()
+
+  private var running = 0
+
+  private val throttleLock = new Object
+
+  private var throttleNextNanos = System.nanoTime
+
+  private val active = new ConcurrentHashMap[String, BootstrapProgress]()
+
+  /**
+    * @return progress of all bootstraps that are currently running on this node
+    */
+  def progress: Map[String, BootstrapProgress] = active.asScala.toMap
+
+  /**
+    * Request a slot for a bootstrap of a partition. The returned future completes when the scheduler has
+    * a free slot for it, the slot is then held until the bootstrap is run with the permit or the permit
+    * is released. Actors must use this method so that no dispatcher thread is blocked while waiting.
+    *
+    * @param task   unique name of the bootstrap, e.g. group/partition
+    * @param master whether the partition is becoming a master and should take priority
+    * @return future permit to run the bootstrap
+    */
+  def admit(task: String, master: Boolean): Future[Permit] = {
+    val ticket = Ticket(if (master) 0 else 1, sequence.incrementAndGet)
+    val promise = Promise[Permit]()
+    waiting.synchronized(waiting.put(ticket, (new Permit(task, master), promise)))
+    dispatch()
+    promise.future
+  }
+
+  /**
+    * Run a bootstrap of a partition when the scheduler has a free slot. This method blocks the calling thread
+    * until the bootstrap function completes, same as the bootstrap would do if it was called directly,
+    * it must not be called from actor dispatcher threads, see admit.
+    *
+    * @param task      unique name of the bootstrap, e.g. group/partition
+    * @param master    whether the partition is becoming a master and should take priority
+    * @param bootstrap function which will be given a listener that must be passed to all Log bootstraps
+    * @tparam T result type of the bootstrap function
+    * @return result of the bootstrap function
+    */
+  def apply[T](task: String, master: Boolean)(bootstrap: BootstrapListener => T): T = {
+    val admitted = admit(task, master)
+    val permit = try Await.result(admitted, Duration.Inf) catch {
+      case e: InterruptedException =>
+        admitted.foreach(_.release())(ExecutionContext.Implicits.global)
+        throw e
+    }
+    permit(bootstrap)
+  }
+
+  private def dispatch(): Unit = {
+    val admitted = waiting.synchronized {
+      val admitted = scala.collection.mutable.ListBuffer[(Permit, Promise[Permit])]()
+      while (running < parallelism && !waiting.isEmpty) {
+        admitted += waiting.pollFirstEntry().getValue
+        running += 1
+      }
+      admitted.toList
+    }
+    //promises are completed outside the lock because their callbacks may be executed synchronously
+    admitted.foreach { case (permit, promise) => promise.success(permit) }
+  }
+
+  /**
+    * A slot of the scheduler which was given to a single bootstrap.
+    */
+  class Permit private[BootstrapScheduler](val task: String, val master: Boolean) {
+
+    private val released = new AtomicBoolean(false)
+
+    /**
+      * Run the bootstrap in the calling thread and release the slot when it completes, a permit can be used
+      * only once and not after it was released because its slot may already be given to another bootstrap
+      *
+      * @param bootstrap function which will be given a listener that must be passed to all Log bootstraps
+      * @tparam T result type of the bootstrap function
+      * @return result of the bootstrap function
+      */
+    def apply[T](bootstrap: BootstrapListener => T): T = {
+      if (released.get) throw new IllegalStateException(s"Bootstrap permit of $task was already released")
+      val progress = new BootstrapProgress(task, master)
+      active.put(task, progress)
+      try {
+        val result = bootstrap(progress)
+        log.info(s"Bootstrap of $task completed: ${progress.recordsProcessed} records in ${progress.elapsedMs} ms")
+        result
+      } catch {
+        case e: Throwable =>
+          log.error(s"Bootstrap of $task failed after ${progress.recordsProcessed} records in ${progress.elapsedMs} ms", e)
+          throw e
+      } finally {
+        active.remove(task)
+        release()
+      }
+    }
+
+    /**
+      * Release the slot without running the bootstrap, releasing the permit more than once has no effect
+      */
+    def release(): Unit = if (released.compareAndSet(false, true)) {
+      waiting.synchronized(running -= 1)
+      dispatch()
+    }
+  }
+
+  private def throttle(bytes: Int): Unit = if (maxBytesPerSec > 0) {
+    val now = System.nanoTime
+    val waitNanos = throttleLock.synchronized {
+      //idle time is not accumulated as credit beyond 1 second of the throughput
+      val start = math.max(throttleNextNanos, now - TimeUnit.SECONDS.toNanos(1))
+      throttleNextNanos = start + bytes * TimeUnit.SECONDS.toNanos(1) / maxBytesPerSec
+      throttleNextNanos - now
+    }
+    //sleeping for very short periods is imprecise so the debt is allowed to accumulate up to 10ms
+    if (waitNanos > TimeUnit.MILLISECONDS.toNanos(10)) try {
+      TimeUnit.NANOSECONDS.sleep(waitNanos)
+    } catch {
+      case _: InterruptedException => Thread.currentThread.interrupt()
+    }
+  }
+
+  class BootstrapProgress(val task: String, val master: Boolean) extends BootstrapListener {
+
+    private val startTimeMs = System.currentTimeMillis
+
+    private val processed = new AtomicLong(0L)
+
+    private val lastReportMs = new AtomicLong(startTimeMs)
+
+    private val remaining = new ConcurrentHashMap[String, AtomicLong]()
+
+    def elapsedMs: Long = System.currentTimeMillis - startTimeMs
+
+    def recordsProcessed: Long = processed.get
+
+    /**
+      * @return estimated number of records that remain to be bootstrapped by all states of the partition
+      */
+    def recordsRemaining: Long = remaining.values.asScala.map(_.get).filter(_ > 0).sum
+
+    def recordsPerSecond: Double = processed.get * 1000.0 / math.max(1L, elapsedMs)
+
+    /**
+      * @return estimated time to completion in milliseconds or -1 if it cannot be estimated yet
+      */
+    def etaMs: Long = {
+      val rate = recordsPerSecond
+      if (rate <= 0) -1L else (recordsRemaining * 1000.0 / rate).toLong
+    }
+
+    override def onRecord(identifier: String, bytes: Int, remainingRecords: Long): Unit = {
+      val storeRemaining = remaining.get(identifier) match {
+        case null =>
+          val counter = new AtomicLong(remainingRecords)
+          Option(remaining.putIfAbsent(identifier, counter)).getOrElse(counter)
+        case counter => counter
+      }
+      storeRemaining.set(remainingRecords)
+      if (!master) throttle(bytes)
+      if ((processed.incrementAndGet() & 1023) == 0) {
+        val now = System.currentTimeMillis
+        val last = lastReportMs.get
+        if (now - last > progressIntervalMs && lastReportMs.compareAndSet(last, now)) {
+          log.info(s"Bootstrapping $task: ${processed.get} records processed, ${recordsRemaining} remaining, " +
+            s"${recordsPerSecond.toLong} records/sec, ETA ${etaMs / 1000} seconds")
+        }
+      }
+    }
+
+    override def onComplete(identifier: String, numRecordsProcessed: Long): Unit = {
+      remaining.remove(identifier)
+    }
+  }
+
+}
@@ -50,6 +50,9 @@ object Node {
     val DataDir = filepath("data.dir", false).doc("Location under which any local state or registers will be kept")
     val DataAutoAssign = bool("data.auto.assign", true, false).doc("Determines whether this node auto-balances data its containers; if set tot false the fixed list of container partitions will be used")
     val DataAutoDelete = bool("data.auto.delete", true, false).doc("If set to true, any unassigned partitions will be deleted from the local storage")
+    val BootstrapParallelism = integer("bootstrap.parallelism", false).doc("Maximum number of partitions that can bootstrap their state concurrently on this node, if not set the number of available processors will be used")
+    val BootstrapMaxBytesPerSec = longint("bootstrap.max.bytes.per.sec", -1L).doc("Maximum rate at which all standby partitions on this node together may read their storage while bootstrapping; partitions which are becoming masters are not throttled; -1 means unlimited")
+    val BootstrapProgressIntervalMs = longint("bootstrap.progress.interval.ms", 10000L).doc("Frequency at which the progress and ETA of running bootstraps is logged")
   }
 
 }
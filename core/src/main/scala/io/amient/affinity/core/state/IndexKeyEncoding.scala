@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.core.state
+
+import java.io.ByteArrayOutputStream
+import java.nio.charset.StandardCharsets
+
+/**
+  * Order-preserving encoding of secondary index keys. Encoded keys compare as unsigned bytes in the natural
+  * order of the keys: numbers by value, strings by code points and booleans false before true; other keys
+  * are encoded by their serialized bytes and so only support exact matches. Every encoded key is self-delimiting
+  * so no encoded key is a prefix of another one and a key can be matched exactly by its encoding used as a prefix.
+  * Scala tuples are encoded as the concatenation of their components which allows prefix queries over the leading
+  * components.
+  */
+object IndexKeyEncoding {
+
+  private val Integral: Byte = 0x01
+  private val Decimal: Byte = 0x02
+  private val Bool: Byte = 0x03
+  private val Text: Byte = 0x04
+  private val Serialized: Byte = 0x05
+
+  /**
+    * @param key       index key or tuple of index key components
+    * @param serialize serializer for keys which don't have a natural order
+    * @return encoded key
+    */
+  def encode(key: Any, serialize: Any => Array[Byte]): Array[Byte] = {
+    val out = new ByteArrayOutputStream()
+    encode(key, serialize, out)
+    out.toByteArray
+  }
+
+  /**
+    * @return encoding of the leading components of tuple keys, which is a prefix of the encoding of all
+    *         the keys that start with the given components
+    */
+  def encodePrefix(components: Seq[Any], serialize: Any => Array[Byte]): Array[Byte] = {
+    val out = new ByteArrayOutputStream()
+    components.foreach(encode(_, serialize, out))
+    out.toByteArray
+  }
+
+  /**
+    * @return smallest byte sequence which is greater than all sequences starting with the given prefix,
+    *         or null if there is no such sequence
+    */
+  def upperBound(prefix: Array[Byte]): Array[Byte] = {
+    var i = prefix.length - 1
+    while (i >= 0 && prefix(i) == 0xFF.toByte) i -= 1
+    if (i < 0) null else {
+      val result = java.util.Arrays.copyOf(prefix, i + 1)
+      result(i) = (result(i) + 1).toByte
+      result
+    }
+  }
+
+  /**
+    * @return false if the values of the given class are encoded by their serialized bytes and so don't sort
+    *         in their natural order; tuples can't be checked before encoding because their components are erased
+    */
+  def hasNaturalOrder(cls: Class[_]): Boolean = {
+    cls.isPrimitive && cls != classOf[Unit] && cls != classOf[Char] ||
+      List(classOf[java.lang.Byte], classOf[java.lang.Short], classOf[java.lang.Integer], classOf[java.lang.Long],
+        classOf[java.lang.Float], classOf[java.lang.Double], classOf[java.lang.Boolean], classOf[String]).contains(cls) ||
+      cls.getName.startsWith("scala.Tuple")
+  }
+
+  private def encode(key: Any, serialize: Any => Array[Byte], out: ByteArrayOutputStream): Unit = key match {
+    case t: Product if t.getClass.getName.startsWith("scala.Tuple") => t.productIterator.foreach(encode(_, serialize, out))
+    case b: Byte => integral(b, out)
+    case s: Short => integral(s, out)
+    case i: Int => integral(i, out)
+    case l: Long => integral(l, out)
+    case f: Float => decimal(f, out)
+    case d: Double => decimal(d, out)
+    case z: Boolean =>
+      out.write(Bool)
+      out.write(if (z) 1 else 0)
+    case s: String =>
+      out.write(Text)
+      escaped(s.getBytes(StandardCharsets.UTF_8), out)
+    case other =>
+      out.write(Serialized)
+      escaped(serialize(other), out)
+  }
+
+  private def integral(value: Long, out: ByteArrayOutputStream): Unit = {
+    out.write(Integral)
+    fixed(value ^ Long.MinValue, out)
+  }
+
+  private def decimal(value: Double, out: ByteArrayOutputStream): Unit = {
+    val bits = java.lang.Double.doubleToLongBits(value)
+    out.write(Decimal)
+    fixed(if (bits < 0) ~bits else bits ^ Long.MinValue, out)
+  }
+
+  private def fixed(value: Long, out: ByteArrayOutputStream): Unit = {
+    (56 to 0 by -8).foreach(shift => out.write((value >>> shift).toInt & 0xFF))
+  }
+
+  /**
+    * zero bytes are escaped as 0x00 0xFF and the sequence is terminated with 0x00 0x01
+    * so that shorter sequences order before their extensions
+    */
+  private def escaped(bytes: Array[Byte], out: ByteArrayOutputStream): Unit = {
+    bytes.foreach { b =>
+      out.write(b)
+      if (b == 0) out.write(0xFF)
+    }
+    out.write(0)
+    out.write(1)
+  }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.core.state
+
+import java.io.Closeable
+import java.util
+import java.util.concurrent.{LinkedBlockingQueue, TimeUnit}
+
+import org.slf4j.LoggerFactory
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.concurrent.{Future, Promise}
+import scala.util.control.NonFatal
+
+/**
+  * Applies the changes of an indexed state to its index asynchronously so that the writes of the state don't
+  * wait for the index. The changes are queued on the write path and a background thread applies them in batches,
+  * in the order in which they were submitted. The watermark is the number of changes applied so far.
+  *
+  * The watermark only lives in memory: the index is known to be consistent with its state on the next start
+  * only if it was closed with all the changes applied, after an unclean shutdown it has to be rebuilt.
+  * If a batch can't be applied the index is no longer consistent and all pending and future syncs fail
+  * until the index is rebuilt.
+  *
+  * @param identifier identifier of the index
+  * @param batchSize  maximum number of changes applied in one batch
+  * @param apply      function which applies a batch of changes to the index
+  * @tparam R type of the changes
+  */
+private[state] class IndexMaintenance[R](identifier: String, batchSize: Int)(apply: Seq[R] => Unit) extends Closeable {
+
+  private val log = LoggerFactory.getLogger(classOf[IndexMaintenance[_]])
+
+  //every change is queued with the epoch in which it was submitted, a rebuild starts a new epoch
+  //and the changes of the previous epochs are discarded because the rebuild covers them
+  private val queue = new LinkedBlockingQueue[(Long, R)]()
+
+  @volatile private var epoch = 0L
+
+  private val applyLock = new Object
+
+  private var submitted = 0L
+
+  @volatile private var applied = 0L
+
+  @volatile private var closed = false
+
+  @volatile private var failure: Throwable = null
+
+  private val waiting = mutable.Queue[(Long, Promise[Unit])]()
+
+  private val thread = new Thread(new Runnable {
+    override def run(): Unit = {
+      val batch = new util.ArrayList[(Long, R)](batchSize)
+      while (!closed || !queue.isEmpty) {
+        val head = queue.poll(100, TimeUnit.MILLISECONDS)
+        if (head != null) applyLock.synchronized {
+          batch.add(head)
+          queue.drainTo(batch, batchSize - 1)
+          val changes = batch.asScala.collect { case (e, change) if e == epoch => change }
+          if (changes.nonEmpty) {
+            try {
+              apply(changes)
+            } catch {
+              case NonFatal(e) =>
+                log.error(s"Could not apply ${changes.size} changes to index $identifier, it will be rebuilt on the next start", e)
+                IndexMaintenance.this.synchronized {
+                  if (failure == null) failure = new IllegalStateException(s"Index $identifier is inconsistent", e)
+                }
+            }
+            IndexMaintenance.this.synchronized {
+              applied += changes.size
+              completeWaiting()
+            }
+          }
+          batch.clear()
+        }
+      }
+    }
+  }, s"$identifier-maintenance")
+
+  thread.setDaemon(true)
+
+  /**
+    * start applying the changes, those submitted before are kept in the queue, e.g. while the index is rebuilt
+    */
+  def start(): Unit = thread.start()
+
+  def submit(change: R): Unit = synchronized {
+    if (closed) throw new IllegalStateException(s"Index $identifier is closed")
+    submitted += 1
+    queue.put((epoch, change))
+  }
+
+  /**
+    * rebuild the index while no changes are being applied, the changes submitted so far are considered applied
+    * by the rebuild and a previous failure is cleared
+    *
+    * @param rebuild function which erases the index and rebuilds it from the current contents of the state
+    */
+  def rebuild(rebuild: => Unit): Unit = applyLock.synchronized {
+    synchronized {
+      epoch += 1
+      queue.clear()
+    }
+    try {
+      rebuild
+      synchronized(failure = null)
+    } catch {
+      case NonFatal(e) => synchronized {
+        if (failure == null) failure = new IllegalStateException(s"Index $identifier could not be rebuilt", e)
+      }
+    } finally synchronized {
+      applied = submitted
+      completeWaiting()
+    }
+  }
+
+  private def completeWaiting(): Unit = {
+    if (failure != null) {
+      while (waiting.nonEmpty) waiting.dequeue()._2.failure(failure)
+    } else {
+      while (waiting.nonEmpty && waiting.head._1 <= applied) waiting.dequeue()._2.success(())
+    }
+  }
+
+  /**
+    * @return number of changes applied to the index so far
+    */
+  def watermark: Long = applied
+
+  /**
+    * @return number of changes which have been submitted but not yet applied to the index
+    */
+  def lag: Long = synchronized(submitted) - applied
+
+  /**
+    * @return true if all changes were applied successfully so far
+    */
+  def isConsistent: Boolean = failure == null
+
+  /**
+    * @return future which completes when all changes submitted before this call have been applied,
+    *         or fails if any of the changes couldn't be applied
+    */
+  def synced: Future[Unit] = synchronized {
+    if (failure != null) Future.failed(failure)
+    else if (applied >= submitted) Future.successful(()) else {
+      val promise = Promise[Unit]()
+      waiting.enqueue((submitted, promise))
+      promise.future
+    }
+  }
+
+  /**
+    * stop accepting changes and wait until all the submitted changes have been applied
+    */
+  override def close(): Unit = {
+    synchronized(closed = true)
+    thread.join()
+  }
+
+}
@@ -45,6 +45,17 @@ trait KVStore[K, V] extends Closeable with ObservableKVStore[K] {
     */
   def range(range: TimeRange, prefix1: Any, prefixN: Any*): Map[K, V]
 
+  /**
+    * Get a bounded page of the records that match the given time range and optional prefix sequence
+    *
+    * @param range    time range to filter the records by
+    * @param pageSize maximum number of records in the page
+    * @param token    continuation token of the previous page, or None for the first page
+    * @param prefix   vararg sequence for the compound key to match; can be empty
+    * @return page of records with an opaque continuation token for the next page, if there is one
+    */
+  def rangePage(range: TimeRange, pageSize: Int, token: Option[String], prefix: Any*): Page[K, V]
+
   /**
     * @return numKeys hint - this may be an approximation, depending on the underlying backend's features
     */
@@ -128,4 +139,31 @@ trait KVStore[K, V] extends Closeable with ObservableKVStore[K] {
     */
   def updateAndGet(key: K, f: Option[V] => Option[V]): Future[Option[V]]
 
+  /**
+    * write multiple values at once, the keys are locked together and written to the storage as a single batch
+    *
+    * @param entries keys and the new values to be associated with them
+    * @return Future which completes when all values were persisted or fails with the first failure,
+    *         in which case some of the values may have been persisted
+    */
+  def putAll(entries: Map[K, V]): Future[Unit]
+
+  /**
+    * delete multiple keys at once, the keys are locked together and deleted in the storage as a single batch
+    *
+    * @param keys keys to delete
+    * @return Future which completes when all existing keys were deleted or fails with the first failure
+    */
+  def deleteAll(keys: Iterable[K]): Future[Unit]
+
+  /**
+    * atomic update-and-get of multiple keys, the keys are locked together and all modifications are
+    * written to the storage as a single batch
+    *
+    * @param keys keys which are going to be updated
+    * @param f    function which given a current value returns an updated value or empty if the key is to be removed
+    * @return Future of the updated values of all the keys which will be successful if all modifications were persisted
+    */
+  def updateAll(keys: Iterable[K])(f: Option[V] => Option[V]): Future[Map[K, Option[V]]]
+
 }
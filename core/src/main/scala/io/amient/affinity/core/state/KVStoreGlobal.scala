@@ -1,12 +1,13 @@
 package io.amient.affinity.core.state
 
+import java.nio.ByteBuffer
 import java.util.Observer
 import java.util.concurrent.TimeUnit
 
 import akka.actor.{ActorContext, Props}
-import akka.serialization.SerializationExtension
 import akka.util.Timeout
 import io.amient.affinity.core.actor._
+import io.amient.affinity.core.serde.Serde
 import io.amient.affinity.core.serde.primitive.InternalMessage
 import io.amient.affinity.core.storage.{LogStorage, Record}
 import io.amient.affinity.core.util.{CloseableIterator, Reply, TimeRange}
@@ -27,6 +28,19 @@ case class KVGGetAndUpdate(key: Any, f: Option[Any] => Option[Any]) extends Rout
 
 case class KVGUpdateAndGet(key: Any, f: Option[Any] => Option[Any]) extends Routed with Reply[Option[Any]] with InternalMessage
 
+/**
+  * bulk operations carry only keys of a single partition and are routed by the first of them
+  */
+case class KVGPutAll(key: Any, entries: Map[Any, Any]) extends Routed with Reply[Unit] with InternalMessage
+
+case class KVGDeleteAll(key: Any, keys: Seq[Any]) extends Routed with Reply[Unit] with InternalMessage
+
+case class KVGUpdateAll(key: Any, keys: Seq[Any], f: Option[Any] => Option[Any]) extends Routed with Reply[Map[Any, Option[Any]]] with InternalMessage
+
+/**
+  * serialized form of a key together with the partition it belongs to
+  */
+private[state] final case class KeyEnvelope(bytes: Array[Byte], partition: Int)
 
 /**
   * KVStoreGlobal is a state store whose data are replicated locally for reading to every gateway that references it.
@@ -57,7 +71,9 @@ class KVStoreGlobal[K: ClassTag, V: ClassTag](identifier: String, conf: StateCon
 
   val partitioner = new Murmur2Partitioner
 
-  val serialization = SerializationExtension(context.system)
+  private val keySerialization = new KeySerialization(context.system)
+
+  private val keySerde = Serde.of[K](context.system.settings.config)
 
   val underlying: List[KVStoreLocal[K, V]] = (0 until partitions)
     .map(partition => KVStoreLocal.create[K, V](identifier, partition, conf, partitions, context.system))
@@ -76,6 +92,13 @@ class KVStoreGlobal[K: ClassTag, V: ClassTag](identifier: String, conf: StateCon
           case request@KVGInsert(key, value) => request(sender) ! store.insert(key.asInstanceOf[K], value.asInstanceOf[V])
           case request@KVGGetAndUpdate(key, f) => request(sender) ! store.getAndUpdate(key.asInstanceOf[K], (prev: Option[V]) => f(prev).map(_.asInstanceOf[V]))
           case request@KVGUpdateAndGet(key, f) => request(sender) ! store.updateAndGet(key.asInstanceOf[K], (prev: Option[V]) => f(prev).map(_.asInstanceOf[V]))
+          case request@KVGPutAll(_, entries) => request(sender) ! store.putAll(entries.map { case (k, v) => (k.asInstanceOf[K], v.asInstanceOf[V]) })
+          case request@KVGDeleteAll(_, keys) => request(sender) ! store.deleteAll(keys.map(_.asInstanceOf[K]))
+          case request@KVGUpdateAll(_, keys, f) => request(sender) ! {
+            store.updateAll(keys.map(_.asInstanceOf[K]))((prev: Option[V]) => f(prev).map(_.asInstanceOf[V])).map(_.map {
+              case (k, v) => (k: Any) -> (v: Option[Any])
+            })(context.dispatcher)
+          }
           case other => throw new IllegalArgumentException("Could not handle: " + other.getClass + " : " + other.toString)
         }
       }), name = partition.toString)
@@ -88,38 +111,103 @@ class KVStoreGlobal[K: ClassTag, V: ClassTag](identifier: String, conf: StateCon
 
   override def close(): Unit = underlying.foreach(_.close)
 
-  override def iterator: CloseableIterator[Record[K, V]] = {
-    new CloseableIterator[Record[K, V]] {
-      val iterators: Seq[CloseableIterator[Record[K, V]]] = underlying.map(_.iterator)
-      val combined = iterators.map(_.asScala).foldLeft(Iterator[Record[K, V]]())(_ ++ _)
+  /**
+    * partitions are scanned concurrently and the records are returned as they arrive, i.e. in no particular order
+    */
+  override def iterator: CloseableIterator[Record[K, V]] = iterator(TimeRange.UNBOUNDED)
 
-      def close(): Unit = iterators.foreach(_.close)
+  override def iterator(range: TimeRange, prefix: Any*): CloseableIterator[Record[K, V]] = {
+    new ParallelScan[K, V](underlying.map(_.keyedIterator(ScanFilter(range), prefix)), None)
+  }
 
-      override def hasNext: Boolean = combined.hasNext
+  /**
+    * get iterator for all records that pass the given filter and match an optional prefix sequence
+    * in the order of their serialized keys; the partitions are scanned concurrently and k-way merged,
+    * which requires a memstore with a stable key order, e.g. MemStoreSortedMap or MemStoreRocksDb
+    *
+    * @param filter filter of the serialized records, the limit applies to each partition
+    * @param prefix vararg sequence for the compound key to match; can be empty
+    * @return a weak iterator that doesn't block read and write operations
+    */
+  def sortedIterator(filter: ScanFilter, prefix: Any*): CloseableIterator[Record[K, V]] = {
+    val keyOrder = underlying.head.keyOrder
+    if (keyOrder.isEmpty) throw new UnsupportedOperationException(s"Global state $identifier doesn't have a sorted memstore")
+    new ParallelScan[K, V](underlying.map(_.keyedIterator(filter, prefix)), keyOrder)
+  }
 
-      override def next(): Record[K, V] = combined.next
+  /**
+    * Get the first n records in the order of their serialized keys that match the given time range and
+    * optional prefix sequence; each partition is read only as far as needed to produce the result
+    *
+    * @param n      maximum number of records to return
+    * @param range  time range to filter the records by
+    * @param prefix vararg sequence for the compound key to match; can be empty
+    * @return key-ordered sequence of at most n key-value pairs
+    */
+  def top(n: Int, range: TimeRange, prefix: Any*): Seq[(K, V)] = {
+    val it = sortedIterator(ScanFilter(range, limit = n), prefix: _*)
+    try {
+      it.asScala.take(n).map(record => record.key -> record.value).toList
+    } finally {
+      it.close()
     }
   }
 
-  override def iterator(range: TimeRange, prefix: Any*): CloseableIterator[Record[K, V]] = {
-    new CloseableIterator[Record[K, V]] {
-      val iterators = underlying.map(_.iterator(range, prefix: _*))
-      val combined = iterators.map(_.asScala).foldLeft(Iterator[Record[K, V]]())(_ ++ _)
-
-      def close(): Unit = iterators.foreach(_.close)
+  /**
+    * Declare an aggregate view on every partition of this global state, lookups combine the partial aggregates
+    * of all partitions, see KVStoreLocal.aggregate
+    */
+  def aggregate[G: ClassTag, M: ClassTag, A: ClassTag](viewName: String)
+                                                      (groupBy: Record[K, V] => G, measure: Record[K, V] => M)
+                                                      (aggregator: Aggregator[M, A]): MergedAggregateView[G, M, A] = {
+    new MergedAggregateView(underlying.map(_.aggregate[G, M, A](viewName)(groupBy, measure)(aggregator)))
+  }
 
-      override def hasNext: Boolean = combined.hasNext
+  /**
+    * Declare a count view on every partition of this global state, see KVStoreLocal.count
+    */
+  def count[G: ClassTag](viewName: String)(groupBy: Record[K, V] => G): MergedAggregateView[G, Long, Long] = {
+    new MergedAggregateView(underlying.map(_.count[G](viewName)(groupBy)))
+  }
 
-      override def next(): Record[K, V] = combined.next
-    }
+  /**
+    * Declare a top-k view on every partition of this global state, lookups merge the top records
+    * of all partitions, see KVStoreLocal.topK
+    */
+  def topK[G: ClassTag, S: ClassTag : Ordering](viewName: String)
+                                               (groupBy: Record[K, V] => G, score: Record[K, V] => S): MergedTopKView[G, S, K] = {
+    new MergedTopKView(underlying.map(_.topK[G, S](viewName)(groupBy, score)))
   }
 
-  override def apply(key: K): Option[V] = if (partitions == 1) underlying(0).apply(key) else {
-    underlying(partitioner.partition(serialization.serialize(any2ref(key)).get, partitions)).apply(key)
+  override def apply(key: K): Option[V] = {
+    val envelope = route(key)
+    underlying(envelope.partition).apply(ByteBuffer.wrap(envelope.bytes))
   }
 
   override def range(range: TimeRange, prefix1: Any, prefixN: Any*): Map[K, V] = {
-    underlying.map(_.range(range, prefix1, prefixN: _*)).foldLeft(Map[K, V]())(_ ++ _)
+    underlying.par.map(_.range(range, prefix1, prefixN: _*)).foldLeft(Map[K, V]())(_ ++ _)
+  }
+
+  /**
+    * pages are filled from the partitions one after another, the continuation token holds a cursor for each partition
+    */
+  override def rangePage(range: TimeRange, pageSize: Int, token: Option[String], prefix: Any*): Page[K, V] = {
+    //a page of no records would return the same token again and a client following it would never finish
+    if (pageSize <= 0) throw new IllegalArgumentException("pageSize must be positive")
+    val cursors = token.map(PageToken.decode(_, partitions)).getOrElse(IndexedSeq.fill(partitions)(PageToken.Start)).toArray
+    val entries = Seq.newBuilder[(K, V)]
+    var remaining = pageSize
+    var p = 0
+    while (p < partitions && remaining > 0) {
+      if (cursors(p) != PageToken.Done) {
+        val (partial, next) = underlying(p).page(ScanFilter(range), remaining, cursors(p), prefix)
+        entries ++= partial
+        cursors(p) = next
+        remaining -= partial.size
+      }
+      p += 1
+    }
+    Page(entries.result(), if (cursors.forall(_ == PageToken.Done)) None else Some(PageToken.encode(cursors)))
   }
 
   override def numKeys: Long = underlying.map(_.numKeys).sum
@@ -138,21 +226,56 @@ class KVStoreGlobal[K: ClassTag, V: ClassTag](identifier: String, conf: StateCon
     master ?? KVGUpdateAndGet(key, (prev: Option[Any]) => f(prev.map(_.asInstanceOf[V]))) map (_.map(_.asInstanceOf[V]))
   }
 
+  override def putAll(entries: Map[K, V]): Future[Unit] = {
+    Future.sequence(entries.groupBy(e => partitionOf(e._1)).values.map { partitionEntries =>
+      master ?? KVGPutAll(partitionEntries.head._1, partitionEntries.toMap[Any, Any])
+    }).map(_ => ())
+  }
+
+  override def deleteAll(keys: Iterable[K]): Future[Unit] = {
+    Future.sequence(keys.toSeq.distinct.groupBy(partitionOf).values.map { partitionKeys =>
+      master ?? KVGDeleteAll(partitionKeys.head, partitionKeys)
+    }).map(_ => ())
+  }
+
+  override def updateAll(keys: Iterable[K])(f: Option[V] => Option[V]): Future[Map[K, Option[V]]] = {
+    Future.sequence(keys.toSeq.distinct.groupBy(partitionOf).values.map { partitionKeys =>
+      master ?? KVGUpdateAll(partitionKeys.head, partitionKeys, (prev: Option[Any]) => f(prev.map(_.asInstanceOf[V])))
+    }).map(_.flatten.map { case (k, v) => (k.asInstanceOf[K], v.map(_.asInstanceOf[V])) }.toMap)
+  }
+
+  private def partitionOf(key: K): Int = if (partitions == 1) 0 else partitioner.partition(keySerialization(key), partitions)
+
+  /**
+    * the key is serialized once for both, routing and the memstore lookup, if the serializer which routes it
+    * is the same serde as the one that the underlying stores use for the keys, which is normally the case
+    */
+  private[state] def route(key: K): KeyEnvelope = {
+    val ref = any2ref(key)
+    val serializer = keySerialization.serializerFor(ref)
+    val routingBytes = serializer.toBinary(ref)
+    val bytes = keySerde match {
+      case serde: Serde[_] if serde.identifier == serializer.identifier => routingBytes
+      case _ => keySerde.toBytes(key)
+    }
+    KeyEnvelope(bytes, if (partitions == 1) 0 else partitioner.partition(routingBytes, partitions))
+  }
+
   /**
     * @return statistics about the memstore and storage, whatever is available
     */
   override def getStats: String = underlying.map(_.getStats).mkString("\n")
 
   override def addKeyValueObserver(key: K, observer: Observer): ObservableKeyValue = {
-    underlying(partitioner.partition(serialization.serialize(any2ref(key)).get, partitions)).addKeyValueObserver(key, observer)
+    underlying(partitionOf(key)).addKeyValueObserver(key, observer)
   }
 
   override def addKeyValueObserver(key: K, init: Object, observer: Observer): Observer = {
-    underlying(partitioner.partition(serialization.serialize(any2ref(key)).get, partitions)).addKeyValueObserver(key, init, observer)
+    underlying(partitionOf(key)).addKeyValueObserver(key, init, observer)
   }
 
   override def removeKeyValueObserver(key: K, observer: Observer): Unit = {
-    underlying(partitioner.partition(serialization.serialize(any2ref(key)).get, partitions)).removeKeyValueObserver(key, observer)
+    underlying(partitionOf(key)).removeKeyValueObserver(key, observer)
   }
 
 }
@@ -1,41 +1,107 @@
 package io.amient.affinity.core.state
 
 import java.nio.ByteBuffer
+import java.nio.file.Path
+import java.util
 import java.util.Optional
 
 import io.amient.affinity.core.serde.AbstractSerde
-import io.amient.affinity.core.storage.MemStore
+import io.amient.affinity.core.storage.{MemStore, Record}
 import io.amient.affinity.core.util.{ByteUtils, EventTime, TimeRange}
 
 import scala.collection.JavaConverters._
+import scala.concurrent.Future
 
+/**
+  * Secondary index of a state store, every entry is keyed by the ordered encoding of the index key (IndexKeyEncoding)
+  * followed by the serialized primary key and the length of the encoded index key. Lookups by an index key seek
+  * directly to its entries and, if the memstore is sorted, range and prefix queries over the index keys are
+  * served in the order of the index keys.
+  *
+  * @tparam K index key type
+  * @tparam V primary key type of the indexed state
+  */
 class KVStoreIndex[K, V](identifier: String,
                          memstore: MemStore,
-                         keySerde: AbstractSerde[K],
+                         keySerde: => AbstractSerde[K],
                          valueSerde: AbstractSerde[V],
                          ttlMs: Long) {
 
   def option[T](opt: Optional[T]): Option[T] = if (opt.isPresent) Some(opt.get()) else None
 
+  //index keys with a natural order, e.g. numbers, strings or tuples of them, don't need to have a serde
+  private lazy val resolvedKeySerde = keySerde
+
+  protected val serializeKey: Any => Array[Byte] = key => resolvedKeySerde.toBytes(key.asInstanceOf[K])
+
+  /**
+    * @param key   index key to look up
+    * @param range time range to filter the entries by
+    * @param f     function of the primary keys associated with the index key
+    */
   def apply[T](key: K, range: TimeRange = TimeRange.UNBOUNDED)(f: Iterator[V] => T): T = {
-    val bytePrefix: ByteBuffer = ByteBuffer.wrap(ByteUtils.intValue(key.hashCode()))
-    val underlying = memstore.iterator(bytePrefix)
+    val encoded = IndexKeyEncoding.encode(key, serializeKey)
+    scan(encoded, IndexKeyEncoding.upperBound(encoded), range)(entries => f(entries.map(primaryKey)))
+  }
+
+  /**
+    * @param range  time range to filter the entries by
+    * @param prefix leading components of tuple index keys
+    * @param f      function of the primary keys associated with all the index keys that start with the prefix
+    */
+  def prefix[T](range: TimeRange, prefix: Any*)(f: Iterator[V] => T): T = {
+    val encoded = IndexKeyEncoding.encodePrefix(prefix, serializeKey)
+    scan(encoded, IndexKeyEncoding.upperBound(encoded), range)(entries => f(entries.map(primaryKey)))
+  }
+
+  /**
+    * @param from  lowest index key (inclusive)
+    * @param until highest index key (exclusive)
+    * @param range time range to filter the entries by
+    * @param f     function of the primary keys associated with the index keys in the given range,
+    *              in the order of the index keys if the memstore is sorted
+    */
+  def range[T](from: K, until: K, range: TimeRange = TimeRange.UNBOUNDED)(f: Iterator[V] => T): T = {
+    val lower = IndexKeyEncoding.encode(from, serializeKey)
+    val upper = IndexKeyEncoding.encode(until, serializeKey)
+    scan(lower, upper, range)(entries => f(entries.map(primaryKey)))
+  }
+
+  /**
+    * iterate the entries whose key is between lower (inclusive) and upper (exclusive, null for unbounded),
+    * sorted memstores seek to the lower bound, other memstores are filtered
+    */
+  protected def scan[T](lower: Array[Byte], upper: Array[Byte], range: TimeRange)
+                       (f: Iterator[Record[Array[Byte], Array[Byte]]] => T): T = {
+    val sorted = memstore.keyOrder() != null
+    //no entry equals the lower bound because entries always continue with the primary key
+    val underlying = if (sorted) memstore.iterator(null, ByteBuffer.wrap(lower)) else memstore.iterator(null)
     try {
-      f(underlying.asScala.flatMap { entry =>
-        option(memstore.unwrap(entry.getKey(), entry.getValue, ttlMs))
-          .filter(byteRecord => range.contains(byteRecord.timestamp))
-          .filter(byteRecord => keySerde.fromBytes(byteRecord.value) == key)
-          .map { byteRecord =>
-            val resultKey = new Array[Byte](byteRecord.key.length - 4)
-            ByteUtils.copy(byteRecord.key, 4, resultKey, 0, resultKey.length)
-            valueSerde.fromBytes(resultKey)
-          }
+      val entries = underlying.asScala
+      val bounded = if (sorted) {
+        entries.takeWhile(entry => upper == null || ByteUtils.compare(entry.getKey, ByteBuffer.wrap(upper)) < 0)
+      } else {
+        entries.filter { entry =>
+          ByteUtils.compare(entry.getKey, ByteBuffer.wrap(lower)) > 0 &&
+            (upper == null || ByteUtils.compare(entry.getKey, ByteBuffer.wrap(upper)) < 0)
+        }
+      }
+      f(bounded.flatMap { entry =>
+        option(memstore.unwrap(entry.getKey(), entry.getValue, ttlMs)).filter(byteRecord => range.contains(byteRecord.timestamp))
       })
     } finally {
       underlying.close()
     }
   }
 
+  private def primaryKey(byteRecord: Record[Array[Byte], Array[Byte]]): V = {
+    val indexKey = byteRecord.key
+    val offset = ByteUtils.asIntValue(indexKey, indexKey.length - 4)
+    val resultKey = new Array[Byte](indexKey.length - 4 - offset)
+    ByteUtils.copy(indexKey, offset, resultKey, 0, resultKey.length)
+    valueSerde.fromBytes(resultKey)
+  }
+
   def numKeys: Long = memstore.numKeys()
 
   def getStats: String = {
@@ -43,20 +109,38 @@ class KVStoreIndex[K, V](identifier: String,
       s"MemStore[${memstore.getClass.getSimpleName}]\n${memstore.getStats}\n\n"
   }
 
-  def put(k: K, value: V, timestamp: Long, tombstone: Boolean = false): Unit = {
+  /**
+    * @param k         index key
+    * @param value     primary key of the indexed record
+    * @param timestamp event time of the indexed record
+    * @param tombstone true if the record was deleted
+    * @param payload   data stored with the entry, e.g. projected fields of a covering index
+    */
+  def put(k: K, value: V, timestamp: Long, tombstone: Boolean = false, payload: Array[Byte] = Array.emptyByteArray): Unit = {
+    write(util.Collections.singletonList(entry(k, value, timestamp, tombstone, payload)))
+  }
 
+  /**
+    * @return memstore entry of the index, the value is null if the entry is to be removed
+    */
+  private[state] def entry(k: K, value: V, timestamp: Long, tombstone: Boolean, payload: Array[Byte]): util.Map.Entry[ByteBuffer, ByteBuffer] = {
+    val encodedKey = IndexKeyEncoding.encode(k, serializeKey)
     val bytePrefix = valueSerde.toBytes(value)
-    val indexKey = new Array[Byte](4 + bytePrefix.length)
-    ByteUtils.putIntValue(k.hashCode(), indexKey, 0)
-    ByteUtils.copy(bytePrefix, 0, indexKey, 4, bytePrefix.length)
+    val indexKey = new Array[Byte](encodedKey.length + bytePrefix.length + 4)
+    ByteUtils.copy(encodedKey, 0, indexKey, 0, encodedKey.length)
+    ByteUtils.copy(bytePrefix, 0, indexKey, encodedKey.length, bytePrefix.length)
+    ByteUtils.putIntValue(encodedKey.length, indexKey, indexKey.length - 4)
+    if (tombstone || (ttlMs > 0 && timestamp + ttlMs < EventTime.unix)) {
+      new util.AbstractMap.SimpleEntry[ByteBuffer, ByteBuffer](ByteBuffer.wrap(indexKey), null)
+    } else {
+      new util.AbstractMap.SimpleEntry(ByteBuffer.wrap(indexKey), memstore.wrap(payload, timestamp))
+    }
+  }
 
+  private[state] def write(batch: util.List[util.Map.Entry[ByteBuffer, ByteBuffer]]): Unit = {
     //      val timerContext = writesMeter.markStart()
     try {
-      if (tombstone || (ttlMs > 0 && timestamp + ttlMs < EventTime.unix)) {
-        memstore.remove(ByteBuffer.wrap(indexKey))
-      } else {
-        memstore.put(ByteBuffer.wrap(indexKey), memstore.wrap(keySerde.toBytes(k), timestamp))
-      }
+      memstore.write(batch)
       //      writesMeter.markSuccess(timerContext)
     } catch {
       case e: Throwable =>
@@ -65,9 +149,81 @@ class KVStoreIndex[K, V](identifier: String,
     }
   }
 
+  private var maintenance: Option[IndexMaintenance[_]] = None
+
+  private var marker: Option[Path] = None
+
+  /**
+    * @param m                asynchronous maintenance which applies the changes of the indexed state
+    * @param consistentMarker file which is created when the index is closed with all changes applied
+    */
+  private[state] def maintainedBy(m: IndexMaintenance[_], consistentMarker: Option[Path]): Unit = {
+    maintenance = Some(m)
+    marker = consistentMarker
+  }
+
+  /**
+    * @return number of changes of the indexed state which haven't been applied to the index yet
+    */
+  def lag: Long = maintenance.map(_.lag).getOrElse(0L)
+
+  /**
+    * @return future which completes when all the changes made to the indexed state so far are visible in the index,
+    *         or fails if the index couldn't apply some of the changes and is inconsistent until it's rebuilt
+    */
+  def synced: Future[Unit] = maintenance.map(_.synced).getOrElse(Future.successful(()))
+
   def close(): Unit = {
-    memstore.close()
+    try {
+      maintenance.foreach { m =>
+        m.close()
+        if (m.isConsistent) marker.foreach(_.toFile.createNewFile())
+      }
+    } finally {
+      memstore.close()
+    }
     //    metrics.remove(s"state.$identifier.keys")
   }
 
 }
+
+/**
+  * Covering index stores a projection of the indexed values with each entry so that lookups can be served
+  * from the index alone without reading the values from the indexed state.
+  *
+  * @tparam K index key type
+  * @tparam V primary key type of the indexed state
+  * @tparam P projection type
+  */
+class KVStoreCoveringIndex[K, V, P](identifier: String,
+                                    memstore: MemStore,
+                                    keySerde: => AbstractSerde[K],
+                                    valueSerde: AbstractSerde[V],
+                                    projectionSerde: AbstractSerde[P],
+                                    ttlMs: Long) extends KVStoreIndex[K, V](identifier, memstore, keySerde, valueSerde, ttlMs) {
+
+  /**
+    * @param key   index key to look up
+    * @param range time range to filter the entries by
+    * @param f     function of the projections of the values associated with the index key
+    */
+  def covered[T](key: K, range: TimeRange = TimeRange.UNBOUNDED)(f: Iterator[P] => T): T = {
+    val encoded = IndexKeyEncoding.encode(key, serializeKey)
+    scan(encoded, IndexKeyEncoding.upperBound(encoded), range) { entries =>
+      f(entries.map(byteRecord => projectionSerde.fromBytes(byteRecord.value)))
+    }
+  }
+
+  /**
+    * @param from  lowest index key (inclusive)
+    * @param until highest index key (exclusive)
+    * @param range time range to filter the entries by
+    * @param f     function of the projections of the values associated with the index keys in the given range
+    */
+  def coveredRange[T](from: K, until: K, range: TimeRange = TimeRange.UNBOUNDED)(f: Iterator[P] => T): T = {
+    val lower = IndexKeyEncoding.encode(from, serializeKey)
+    val upper = IndexKeyEncoding.encode(until, serializeKey)
+    scan(lower, upper, range)(entries => f(entries.map(byteRecord => projectionSerde.fromBytes(byteRecord.value))))
+  }
+
+}
@@ -21,8 +21,11 @@ package io.amient.affinity.core.state
 
 import java.lang
 import java.nio.ByteBuffer
-import java.util.concurrent.{ConcurrentHashMap, TimeoutException}
-import java.util.{Observable, Observer, Optional}
+import java.nio.file.Path
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicLongArray, AtomicReference, AtomicReferenceArray}
+import java.util.concurrent.{ConcurrentHashMap, CopyOnWriteArrayList, Executors, Semaphore, ThreadFactory, TimeUnit, TimeoutException}
+import java.util.function.Consumer
+import java.util.{Comparator, Observable, Observer, Optional}
 
 import akka.actor.{ActorRef, ActorSystem, Props}
 import com.codahale.metrics.{Gauge, MetricRegistry}
@@ -38,14 +41,24 @@ import io.amient.affinity.core.util._
 import org.slf4j.LoggerFactory
 
 import scala.collection.JavaConverters._
-import scala.concurrent.Future
+import scala.concurrent.duration.Duration
+import scala.concurrent.{Await, Future, Promise}
 import scala.language.{existentials, implicitConversions}
 import scala.reflect.ClassTag
-import scala.util.control.Breaks._
+import scala.util.{Failure, Success}
 import scala.util.control.NonFatal
 
 object KVStoreLocal {
 
+  private val IndexBatchSize = 1000
+
+  private val lockTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+    override def newThread(r: Runnable): Thread = {
+      val thread = new Thread(r, "state-lock-timeout")
+      thread.setDaemon(true)
+      thread
+    }
+  })
 
   def configureMemStoreDataDir(identifier: String, stateConf: StateConf, system: ActorSystem, metrics: AffinityMetrics) = {
     if (!stateConf.MemStore.DataDir.isDefined) {
@@ -92,12 +105,14 @@ object KVStoreLocal {
                                        valueSerde: AbstractSerde[V],
                                        system: ActorSystem): KVStoreLocal[K, V] = {
     val ttlMs = if (stateConf.TtlSeconds() < 0) -1L else stateConf.TtlSeconds() * 1000L
+    //windowed stores drop whole windows from the memstore so the storage only needs to retain the live windows
+    val storageTtlMs = if (stateConf.Window.isDefined) stateConf.Window.lifetimeMs() else ttlMs
     val lockTimeoutMs: lang.Long = stateConf.LockTimeoutMs()
-    val minTimestamp = Math.max(stateConf.MinTimestampUnixMs(), if (ttlMs < 0) 0L else EventTime.unix - ttlMs)
+    val minTimestamp = Math.max(stateConf.MinTimestampUnixMs(), if (storageTtlMs < 0) 0L else EventTime.unix - storageTtlMs)
     val external = stateConf.External()
     val logOption = if (!stateConf.Storage.isDefined || !stateConf.Storage.Class.isDefined) None else Some {
       val storage = LogStorage.newInstance(stateConf.Storage)
-      if (partition == 0) storage.ensureCorrectConfiguration(ttlMs, numPartitions, external)
+      if (partition == 0) storage.ensureCorrectConfiguration(storageTtlMs, numPartitions, external)
       if (!external) {
         //if this storage is not managed externally, register key and value subjects in the registry
         for (registry <- asAvroRegistry(keySerde)) {
@@ -131,7 +146,7 @@ object KVStoreLocal {
   }
 
 
-  private def asAvroRegistry[S](serde: AbstractSerde[S]): Option[AvroSchemaRegistry] = {
+  private[state] def asAvroRegistry[S](serde: AbstractSerde[S]): Option[AvroSchemaRegistry] = {
     serde match {
       case proxy: AvroSerdeProxy => Some(proxy.internal)
       case registry: AvroSchemaRegistry => Some(registry)
@@ -168,7 +183,7 @@ class KVStoreLocal[K, V](val identifier: String,
 
   def option[T](opt: Optional[T]): Option[T] = if (opt.isPresent) Some(opt.get()) else None
 
-  implicit def javaToScalaFuture[T](jf: java.util.concurrent.Future[T]): Future[T] = Future(jf.get)
+  implicit def javaToScalaFuture[T](jf: java.util.concurrent.Future[T]): Future[T] = JavaFutures.asScala(jf)
 
   try {
     metrics.register(s"state.$identifier.keys", new Gauge[Long] {
@@ -181,74 +196,352 @@ class KVStoreLocal[K, V](val identifier: String,
       logger.warn(e.getMessage)
   }
 
+  private val logMetrics: Map[String, Gauge[_]] = logOption.toList.flatMap { log =>
+    List(
+      "log.records-per-sec" -> new Gauge[Double] {
+        override def getValue = log.getRecordsPerSecond
+      },
+      "log.bootstrap-eta-ms" -> new Gauge[Long] {
+        override def getValue = log.getBootstrapEtaMs
+      },
+      "log.lag-records" -> new Gauge[Long] {
+        override def getValue = log.getLagRecords
+      },
+      "log.lag-ms" -> new Gauge[Long] {
+        override def getValue = log.getLagMs
+      },
+      "log.checkpoint" -> new Gauge[Long] {
+        override def getValue = positionValue(log.getCheckpoint)
+      },
+      "log.end-position" -> new Gauge[Long] {
+        override def getValue = positionValue(log.getEndPosition)
+      })
+  }.toMap
+
+  /**
+    * positions of numeric logs, e.g. kafka offsets, are reported as they are, -1 if unknown or not numeric
+    */
+  private def positionValue(position: Any): Long = position match {
+    case offset: java.lang.Number => offset.longValue
+    case _ => -1L
+  }
+
+  logMetrics.foreach { case (name, gauge) =>
+    try {
+      metrics.register(s"state.$identifier.$name", gauge)
+    } catch {
+      case e: IllegalArgumentException => logger.warn(e.getMessage)
+    }
+  }
+
+  private val readMaxStalenessMs: Long = stateConf.ReadMaxStalenessMs()
+
   val writesMeter = metrics.meterAndHistogram(s"state.$identifier.writes")
 
   val readsMeter = metrics.meterAndHistogram(s"state.$identifier.reads")
 
+  private val cache: Option[ValueCache[V]] = {
+    if (stateConf.CacheMaxEntries() <= 0) None else Some(new ValueCache[V](stateConf.CacheMaxEntries()))
+  }
+
+  private lazy val cacheHits = metrics.meter(s"state.$identifier.cache.hits")
+
+  private lazy val cacheMisses = metrics.meter(s"state.$identifier.cache.misses")
+
+  cache.foreach { _ =>
+    try {
+      metrics.register(s"state.$identifier.cache.hit-rate", new Gauge[Double] {
+        override def getValue = {
+          val hits = cacheHits.getOneMinuteRate
+          val total = hits + cacheMisses.getOneMinuteRate
+          if (total == 0) 0.0 else hits / total
+        }
+      })
+    } catch {
+      case e: IllegalArgumentException => logger.warn(e.getMessage)
+    }
+  }
+
   def uncheckedMediator(partition: ActorRef, key: Any): Props = {
     Props(new KeyValueMediator(partition, this, key.asInstanceOf[K]))
   }
 
   private val indicies = scala.collection.mutable.ArrayBuffer[KVStoreIndex[_, _]]()
 
+  //rebuilds of all the indices and views of this state, used when the state was erased after an aborted transaction
+  private val derivedRebuilds = scala.collection.mutable.ArrayBuffer[() => Unit]()
+
+  @volatile private var derivedInvalid = false
+
+  private val abortListeners = new CopyOnWriteArrayList[Exception => Unit]()
+
+  /**
+    * the log erases the memstore when a transaction aborts, the cached values and the indices and views which were
+    * derived from the erased records are discarded straight away and rebuilt again once the state is bootstrapped
+    */
+  logOption.foreach(_.addAbortListener(new Consumer[Exception] {
+    override def accept(cause: Exception): Unit = {
+      (0 until VersionStripes).foreach(s => versions.addAndGet(s, 1L << InFlightBits))
+      cache.foreach(_.clear())
+      derivedInvalid = true
+      derivedRebuilds.foreach(_ ())
+      abortListeners.asScala.foreach(_ (cause))
+    }
+  }))
+
+  /**
+    * @param listener called when the state was erased after an aborted transaction, the state rejects writes
+    *                 until it is bootstrapped again
+    */
+  private[affinity] def addAbortListener(listener: Exception => Unit): Unit = abortListeners.add(listener)
+
+  /**
+    * Declare an index of the primary keys by the keys returned by the index function. The index uses the memstore
+    * class of this state if it has a key order, e.g. MemStoreRocksDb, otherwise an in-memory MemStoreSortedMap
+    * which is rebuilt whenever the state is opened.
+    *
+    * @param indexName     name of the index, unique within this state
+    * @param indexFunction function that returns the index keys of a record
+    */
   def index[IK: ClassTag](indexName: String)(indexFunction: Record[K, V] => List[IK]): KVStoreIndex[IK, K] = {
+    openIndex(indexName, indexFunction, (_: Record[K, V]) => Array.emptyByteArray) { (indexIdentifier, indexMemStore) =>
+      new KVStoreIndex[IK, K](indexIdentifier, indexMemStore, Serde.of[IK](system.settings.config), keySerde, ttlMs)
+    }
+  }
+
+  /**
+    * Declare an index which stores a projection of the values alongside the index entries
+    * so that lookups don't need to read the values from this state
+    *
+    * @param indexName     name of the index, unique within this state
+    * @param indexFunction function that returns the index keys of a record
+    * @param projection    function that projects the fields of a value which will be stored in the index
+    */
+  def coveringIndex[IK: ClassTag, P: ClassTag](indexName: String)
+                                             (indexFunction: Record[K, V] => List[IK])
+                                             (projection: V => P): KVStoreCoveringIndex[IK, K, P] = {
+    val projectionSerde = Serde.of[P](system.settings.config)
+    def payload(record: Record[K, V]): Array[Byte] = {
+      if (record.tombstone) Array.emptyByteArray else projectionSerde.toBytes(projection(record.value))
+    }
+    openIndex(indexName, indexFunction, payload) { (indexIdentifier, indexMemStore) =>
+      new KVStoreCoveringIndex[IK, K, P](indexIdentifier, indexMemStore, Serde.of[IK](system.settings.config), keySerde, projectionSerde, ttlMs)
+    }
+  }
+
+  private def openIndex[IK, I <: KVStoreIndex[IK, K]](indexName: String,
+                                                      indexFunction: Record[K, V] => List[IK],
+                                                      payload: Record[K, V] => Array[Byte])
+                                                     (create: (String, MemStore) => I): I = {
     val indexIdentifier = s"$identifier-$indexName"
     logger.info(s"Opening index: $indexIdentifier")
-    val indexKeySerde = Serde.of[IK](system.settings.config)
-    val indexConf = new StateConf().apply(stateConf)
-    logOption match {
-      case None => indexConf.MemStore.Class.setValue(classOf[MemStoreSimpleMap])
-      case Some(log) => indexConf.External.setValue(true)
-    }
-    configureMemStoreDataDir(indexIdentifier, indexConf, system, metrics)
-    indexConf.MemStore.KeyPrefixSize.setValue(4)
-    val mustRebuild = !indexConf.MemStore.DataDir.isDefined || !indexConf.MemStore.DataDir().resolve("initialized").toFile.exists()
-    val memstoreClass = indexConf.MemStore.Class()
-    val memstoreConstructor = memstoreClass.getConstructor(classOf[String], classOf[StateConf], classOf[MetricRegistry])
-    val indexMemStore = memstoreConstructor.newInstance(indexIdentifier, indexConf, metrics)
-    val indexStore = new KVStoreIndex[IK, K](indexIdentifier, indexMemStore, indexKeySerde, keySerde, ttlMs)
+    val (indexMemStore, markerPath, mustRebuild) = openDerivedMemStore(indexIdentifier)
+    val indexStore = create(indexIdentifier, indexMemStore)
     indicies += indexStore
 
-    def doIndexRecord(record: Record[K, V]): Unit = {
-      //TODO #242 / #248 rocksdb writing asynchronously indicies needs to participate in the pipeline guarantees
+    def indexEntries(record: Record[K, V]) = {
+      lazy val indexPayload = payload(record)
       indexFunction(record).distinct.map {
-        case ik if record.tombstone => indexStore.put(ik, record.key, record.timestamp, tombstone = true)
-        case ik => indexStore.put(ik, record.key, record.timestamp)
+        case ik if record.tombstone => indexStore.entry(ik, record.key, record.timestamp, tombstone = true, payload = Array.emptyByteArray)
+        case ik => indexStore.entry(ik, record.key, record.timestamp, tombstone = false, payload = indexPayload)
       }
     }
 
-    if (mustRebuild) {
+    def indexRecords(records: Seq[Record[K, V]]): Unit = indexStore.write(records.flatMap(indexEntries).asJava)
+
+    //changes of the kvstore are applied on the index in the background so they don't add to the write latency,
+    //they are queued from before the rebuild so that the changes made while it runs are applied after it
+    val maintenance = new IndexMaintenance[Record[K, V]](indexIdentifier, KVStoreLocal.IndexBatchSize)(indexRecords)
+    indexStore.maintainedBy(maintenance, markerPath)
+    this.listen {
+      case record: Record[K, V] => maintenance.submit(record)
+    }
+
+    def rebuild(): Unit = {
       //rebuilding index is done not from the underlying long but from the state store iterator which is being indexed
       //in terms of consistency it seems it would be better to have it initialized from the underyling log
       //and simply continue tailing but there are several reasons why to use state store iterator
       //1. it performs better (assuming truly local storage)
       //2. in principle indicies should live as close to the data they indexing as possible
       //3. deindexing wouldn't work because the previous value is not known for tombstones at the log-level
+      logger.info(s"Rebuilding index: $indexIdentifier ...")
+      indexMemStore.erase()
+      parallelScan(KVStoreLocal.IndexBatchSize)(indexRecords)
+    }
+
+    if (mustRebuild) rebuild()
+    markerPath.foreach(_.toFile.delete())
+    maintenance.start()
+    derivedRebuilds += (() => maintenance.rebuild(rebuild()))
+
+    indexStore
+  }
+
+  /**
+    * Declare an aggregate of the records of this state grouped by a key function which is kept up to date
+    * as the state changes so that it can be looked up without iterating the state
+    *
+    * @param viewName   name of the view, unique within this state
+    * @param groupBy    function that returns the group of a record
+    * @param measure    function that returns what is aggregated of a record
+    * @param aggregator how the measures are aggregated
+    */
+  def aggregate[G: ClassTag, M: ClassTag, A: ClassTag](viewName: String)
+                                                      (groupBy: Record[K, V] => G, measure: Record[K, V] => M)
+                                                      (aggregator: Aggregator[M, A]): AggregateView[G, M, A] = {
+    val measureSerde = Serde.of[M](system.settings.config)
+    val aggregateSerde = Serde.of[A](system.settings.config)
+    openView[(G, M), AggregateView[G, M, A]](viewName, record => (groupBy(record), measure(record))) { (viewIdentifier, viewMemStore) =>
+      new AggregateView[G, M, A](viewIdentifier, viewMemStore, Serde.of[G](system.settings.config), measureSerde, aggregateSerde, aggregator)
+    }
+  }
+
+  /**
+    * Declare a count of the records of this state grouped by a key function, see aggregate
+    */
+  def count[G: ClassTag](viewName: String)(groupBy: Record[K, V] => G): AggregateView[G, Long, Long] = {
+    aggregate[G, Long, Long](viewName)(groupBy, _ => 1L)(Aggregator.LongSum)
+  }
+
+  /**
+    * Declare a view of the records with the highest scores in each group which is kept up to date as the state changes
+    *
+    * @param viewName name of the view, unique within this state
+    * @param groupBy  function that returns the group of a record
+    * @param score    function that returns the score of a record, the score must have a natural order
+    */
+  def topK[G: ClassTag, S: ClassTag](viewName: String)
+                                    (groupBy: Record[K, V] => G, score: Record[K, V] => S): TopKView[G, S, K] = {
+    val scoreClass = implicitly[ClassTag[S]].runtimeClass
+    if (!IndexKeyEncoding.hasNaturalOrder(scoreClass)) {
+      throw new IllegalArgumentException(s"Score of view $identifier-$viewName doesn't have a natural order: ${scoreClass.getName}")
+    }
+    val scoreSerde = Serde.of[S](system.settings.config)
+    openView[(G, S), TopKView[G, S, K]](viewName, record => (groupBy(record), score(record))) { (viewIdentifier, viewMemStore) =>
+      new TopKView[G, S, K](viewIdentifier, viewMemStore, Serde.of[G](system.settings.config), scoreSerde, keySerde)
+    }
+  }
+
+  private val views = scala.collection.mutable.ArrayBuffer[MaterializedView[_]]()
+
+  private def openView[R, W <: MaterializedView[R]](viewName: String, derive: Record[K, V] => R)
+                                                  (create: (String, MemStore) => W): W = {
+    val viewIdentifier = s"$identifier-$viewName"
+    logger.info(s"Opening view: $viewIdentifier")
+    val (viewMemStore, markerPath, mustRebuild) = openDerivedMemStore(viewIdentifier)
+    val view = create(viewIdentifier, viewMemStore)
+    views += view
+
+    def updateView(records: Seq[Record[K, V]]): Unit = view.update(records.map { record =>
+      (keySerde.toBytes(record.key), if (record.tombstone) None else Some(derive(record)), record.timestamp)
+    })
+
+    //changes made while the view is being rebuilt are queued and applied after it, a record which is both scanned
+    //and queued is applied twice but its second contribution simply replaces the first one
+    val maintenance = new IndexMaintenance[Record[K, V]](viewIdentifier, KVStoreLocal.IndexBatchSize)(updateView)
+    view.maintainedBy(maintenance, markerPath)
+    this.listen {
+      case record: Record[K, V] => maintenance.submit(record)
+    }
+
+    def rebuild(): Unit = {
+      logger.info(s"Rebuilding view: $viewIdentifier ...")
+      viewMemStore.erase()
+      //views read their current aggregates while updating them so the batches can't be applied concurrently
       val allIterator = iterator
       try {
-        logger.info(s"Rebuilding index: $indexIdentifier ...")
-        memstore.erase()
-        allIterator.asScala.foreach(doIndexRecord)
-        if (indexConf.MemStore.DataDir.isDefined) {
-          indexConf.MemStore.DataDir().resolve("initialized").toFile.createNewFile()
-        }
+        allIterator.asScala.grouped(KVStoreLocal.IndexBatchSize).foreach(updateView)
       } finally {
         allIterator.close()
       }
     }
 
-    //start tailing the kvstore for changes that need to be applied on the index
-    this.listen {
-      //TODO #242 / #248 what kind of guarantees does this have
-      case record: Record[K, V] => doIndexRecord(record)
+    if (mustRebuild) rebuild()
+    markerPath.foreach(_.toFile.delete())
+    maintenance.start()
+    derivedRebuilds += (() => maintenance.rebuild(rebuild()))
+
+    view
+  }
+
+  /**
+    * open the memstore of an index or a view of this state
+    *
+    * @return the memstore, the marker file which exists if the memstore was closed consistently with this state
+    *         and whether the memstore must be rebuilt
+    */
+  private def openDerivedMemStore(derivedIdentifier: String): (MemStore, Option[Path], Boolean) = {
+    val derivedConf = new StateConf().apply(stateConf)
+    logOption match {
+      case None => derivedConf.MemStore.Class.setValue(classOf[MemStoreSortedMap])
+      case Some(log) => derivedConf.External.setValue(true)
+    }
+    configureMemStoreDataDir(derivedIdentifier, derivedConf, system, metrics)
+    //derived keys are variable length and scanned in their total order so they can't have a fixed size prefix
+    derivedConf.MemStore.KeyPrefixSize.setValue(null)
+    //the marker is versioned by the key encoding so that memstores in an older format are rebuilt,
+    //it exists only while the memstore is closed with all changes applied, if the process dies it is rebuilt
+    val initializedMarker = "initialized-ordered"
+    val markerPath = if (!derivedConf.MemStore.DataDir.isDefined) None else Some(derivedConf.MemStore.DataDir().resolve(initializedMarker))
+    val memstoreClass = derivedConf.MemStore.Class()
+    val memstoreConstructor = memstoreClass.getConstructor(classOf[String], classOf[StateConf], classOf[MetricRegistry])
+    val configured = memstoreConstructor.newInstance(derivedIdentifier, derivedConf, metrics)
+    //lookups seek to the encoded key so a memstore without a key order would have to be scanned in full,
+    //such memstores are replaced with a sorted map which isn't persistent and so is always rebuilt
+    val derivedMemStore = if (configured.keyOrder() != null) configured else {
+      logger.warn(s"${memstoreClass.getSimpleName} doesn't have a key order, $derivedIdentifier will use ${classOf[MemStoreSortedMap].getSimpleName}")
+      configured.close()
+      derivedConf.MemStore.Class.setValue(classOf[MemStoreSortedMap])
+      new MemStoreSortedMap(derivedIdentifier, derivedConf, metrics)
     }
+    val mustRebuild = !derivedMemStore.isPersistent || !markerPath.exists(_.toFile.exists())
+    (derivedMemStore, markerPath, mustRebuild)
+  }
 
-    indexStore
+  /**
+    * Iterate all records of the state in batches of consecutive keys, the batches are deserialized
+    * and passed to the given function concurrently by a pool of worker threads.
+    */
+  private def parallelScan(batchSize: Int)(f: Seq[Record[K, V]] => Unit): Unit = {
+    val parallelism = Runtime.getRuntime.availableProcessors
+    val pool = Executors.newFixedThreadPool(parallelism)
+    //bounds the number of batches read ahead of the workers
+    val permits = new Semaphore(parallelism * 2)
+    val error = new AtomicReference[Throwable]()
+    val underlying = scan(ScanFilter(), null, Nil)
+    try {
+      underlying.asScala.grouped(batchSize).takeWhile(_ => error.get == null).foreach { batch =>
+        permits.acquire()
+        pool.execute(new Runnable {
+          override def run(): Unit = try {
+            f(batch.map { byteRecord =>
+              new Record(keySerde.fromBytes(byteRecord.key), valueSerde.fromBytes(byteRecord.value), byteRecord.timestamp)
+            })
+          } catch {
+            case NonFatal(e) => error.compareAndSet(null, e)
+          } finally {
+            permits.release()
+          }
+        })
+      }
+      permits.acquire(parallelism * 2)
+    } finally {
+      underlying.close()
+      pool.shutdown()
+    }
+    if (error.get != null) throw error.get
   }
 
 
-  private[affinity] def boot(): Unit = logOption.foreach(_
-    .bootstrap(identifier, memstore, partition, optional[ObservableState[K]](if (external) this else null)))
+  private[affinity] def boot(listener: BootstrapListener = BootstrapListener.NOOP): Unit = logOption.foreach { log =>
+    //bootstrap of a non-external state modifies the memstore without notifying the state so the cache is discarded
+    cache.foreach(_.clear())
+    log.bootstrap(identifier, memstore, partition, optional[ObservableState[K]](if (external) this else null), listener)
+    if (derivedInvalid) {
+      derivedInvalid = false
+      derivedRebuilds.foreach(_ ())
+    }
+  }
 
   private[affinity] def tail(): Unit = logOption.foreach(_
     .tail(memstore, optional[ObservableState[K]](this)))
@@ -268,29 +561,150 @@ class KVStoreLocal[K, V](val identifier: String,
     * @param prefix vararg sequence for the compound key to match; can be empty
     * @return a weak iterator that doesn't block read and write operations
     */
-  def iterator(range: TimeRange, prefix: Any*): CloseableIterator[Record[K, V]] = new CloseableIterator[Record[K, V]] {
-    val javaPrefix = prefix.map(_.asInstanceOf[AnyRef])
-    val bytePrefix: ByteBuffer = if (javaPrefix.isEmpty) null else {
-      ByteBuffer.wrap(keySerde.prefix(keyClass, javaPrefix: _*))
-    }
-    val underlying = memstore.iterator(bytePrefix)
-    val mapped = underlying.asScala.flatMap { entry =>
-      option(memstore.unwrap(entry.getKey(), entry.getValue, ttlMs))
-        .filter(byteRecord => range.contains(byteRecord.timestamp))
-        .map { byteRecord =>
-          val key = keySerde.fromBytes(byteRecord.key)
-          val value = valueSerde.fromBytes(byteRecord.value)
-          new Record(key, value, byteRecord.timestamp)
-        }
-    }
+  def iterator(range: TimeRange, prefix: Any*): CloseableIterator[Record[K, V]] = iterator(ScanFilter(range), prefix: _*)
+
+  /**
+    * get iterator for all records that pass the given filter and match an optional prefix sequence,
+    * the filter is evaluated on the serialized records and only the matching ones are deserialized
+    *
+    * @param filter filter of the serialized records and an optional limit
+    * @param prefix vararg sequence for the compound key to match; can be empty
+    * @return a weak iterator that doesn't block read and write operations
+    */
+  def iterator(filter: ScanFilter, prefix: Any*): CloseableIterator[Record[K, V]] = new CloseableIterator[Record[K, V]] {
+    val underlying = keyedIterator(filter, prefix)
 
-    override def next(): Record[K, V] = mapped.next()
+    override def next(): Record[K, V] = underlying.next()._2
 
-    override def hasNext: Boolean = mapped.hasNext
+    override def hasNext: Boolean = underlying.hasNext
 
     override def close(): Unit = underlying.close()
   }
 
+  /**
+    * same as iterator(filter, prefix) but each record is paired with its serialized key which determines
+    * the order of the records in sorted memstores
+    */
+  private[state] def keyedIterator(filter: ScanFilter, prefix: Seq[Any]): CloseableIterator[(Array[Byte], Record[K, V])] = {
+    new CloseableIterator[(Array[Byte], Record[K, V])] {
+      val underlying = scan(filter, null, prefix)
+      val mapped = underlying.asScala.map { byteRecord =>
+        val key = keySerde.fromBytes(byteRecord.key)
+        val value = valueSerde.fromBytes(byteRecord.value)
+        byteRecord.key -> new Record(key, value, byteRecord.timestamp)
+      }
+      val limited = if (filter.limit < 0) mapped else mapped.take(filter.limit)
+
+      override def next(): (Array[Byte], Record[K, V]) = limited.next()
+
+      override def hasNext: Boolean = limited.hasNext
+
+      override def close(): Unit = underlying.close()
+    }
+  }
+
+  /**
+    * @return order of the serialized keys in which the iterators of this state return the records, if it is stable
+    */
+  private[state] def keyOrder: Option[Comparator[ByteBuffer]] = Option(memstore.keyOrder())
+
+  /**
+    * @param filter filter of the serialized records, the limit is not applied here
+    * @param after  serialized key after which the scan resumes or null to scan from the beginning
+    * @param prefix sequence for the compound key to match; can be empty
+    * @return iterator of serialized records which pass the filter, in the order of the memstore
+    */
+  private def scan(filter: ScanFilter, after: ByteBuffer, prefix: Seq[Any]): CloseableIterator[Record[Array[Byte], Array[Byte]]] = {
+    new CloseableIterator[Record[Array[Byte], Array[Byte]]] {
+      val javaPrefix = prefix.map(_.asInstanceOf[AnyRef])
+      val bytePrefix: ByteBuffer = if (javaPrefix.isEmpty) null else {
+        ByteBuffer.wrap(keySerde.prefix(keyClass, javaPrefix: _*))
+      }
+      val underlying = if (after == null) memstore.iterator(bytePrefix) else memstore.iterator(bytePrefix, after)
+      val filtered = underlying.asScala
+        .filter(entry => filter.range.contains(entry.getValue.getLong(0)))
+        .flatMap(entry => option(memstore.unwrap(entry.getKey(), entry.getValue, ttlMs)))
+        .filter(byteRecord => filter.key(byteRecord.key) && filter.value(byteRecord.value))
+
+      override def next(): Record[Array[Byte], Array[Byte]] = filtered.next()
+
+      override def hasNext: Boolean = filtered.hasNext
+
+      override def close(): Unit = underlying.close()
+    }
+  }
+
+  /**
+    * Get a bounded page of the records that match the given time range and optional prefix sequence,
+    * the following page is requested with the continuation token of the previous one and resumes by seeking
+    * past the last key of the previous page so deep pages cost the same as the first one.
+    * Seeking requires a memstore with a stable key order, e.g. MemStoreSortedMap or MemStoreRocksDb.
+    *
+    * @param range    time range to filter the records by
+    * @param pageSize maximum number of records in the page
+    * @param token    continuation token of the previous page, or None for the first page
+    * @param prefix   vararg sequence for the compound key to match; can be empty
+    * @return page of records in the key order of the memstore with the token for the next page, if there is one
+    */
+  def rangePage(range: TimeRange, pageSize: Int, token: Option[String], prefix: Any*): Page[K, V] = {
+    val cursor = token.map(PageToken.decode(_, 1).head).getOrElse(PageToken.Start)
+    page(ScanFilter(range), pageSize, cursor, prefix) match {
+      case (entries, PageToken.Done) => Page(entries, None)
+      case (entries, next) => Page(entries, Some(PageToken.encode(List(next))))
+    }
+  }
+
+  private[state] def page(filter: ScanFilter, pageSize: Int, cursor: PageToken.Cursor, prefix: Seq[Any]): (Seq[(K, V)], PageToken.Cursor) = {
+    if (pageSize <= 0) throw new IllegalArgumentException("pageSize must be positive")
+    //fail on the first page rather than when the following page needs to seek
+    if (keyOrder.isEmpty) {
+      throw new UnsupportedOperationException(s"State $identifier doesn't have a sorted memstore, paging requires e.g. MemStoreSortedMap or MemStoreRocksDb")
+    }
+    val after: ByteBuffer = cursor match {
+      case PageToken.After(key) => ByteBuffer.wrap(key)
+      case _ => null
+    }
+    if (cursor == PageToken.Done) (Seq.empty, PageToken.Done) else {
+      val timerContext = readsMeter.markStart()
+      try {
+        val it = scan(filter, after, prefix)
+        try {
+          val entries = Seq.newBuilder[(K, V)]
+          var lastKey: Array[Byte] = null
+          var n = 0
+          while (n < pageSize && it.hasNext) {
+            val byteRecord = it.next()
+            entries += keySerde.fromBytes(byteRecord.key) -> valueSerde.fromBytes(byteRecord.value)
+            lastKey = byteRecord.key
+            n += 1
+          }
+          //the look-ahead only evaluates the filters, the record is not deserialized
+          val next = if (it.hasNext) PageToken.After(lastKey) else PageToken.Done
+          readsMeter.markSuccess(timerContext, n.toLong)
+          (entries.result(), next)
+        } finally {
+          it.close()
+        }
+      } catch {
+        case e: Throwable =>
+          readsMeter.markFailure(timerContext)
+          throw e
+      }
+    }
+  }
+
+  /**
+    * @param field     name of a field of the avro values of this state
+    * @param predicate predicate on the field value
+    * @return predicate on the serialized values which can be used in a ScanFilter
+    */
+  def valueField(field: String)(predicate: Any => Boolean): Array[Byte] => Boolean = {
+    KVStoreLocal.asAvroRegistry(valueSerde) match {
+      case Some(registry) => ScanFilter.avroField(registry, field)(predicate)
+      case None => throw new UnsupportedOperationException(s"State $identifier doesn't have avro values")
+    }
+  }
+
   /**
     * Retrieve a value from the store asynchronously
     *
@@ -301,16 +715,26 @@ class KVStoreLocal[K, V](val identifier: String,
     */
   def apply(key: K): Option[V] = apply(ByteBuffer.wrap(keySerde.toBytes(key)))
 
-  private def apply(key: ByteBuffer): Option[V] = {
+  private[state] def apply(key: ByteBuffer): Option[V] = {
     val timerContext = readsMeter.markStart()
     try {
-      for (
-        cell: ByteBuffer <- option(memstore(key));
-        byteRecord: Record[Array[Byte], Array[Byte]] <- option(memstore.unwrap(key, cell, ttlMs))
-      ) yield {
-        val result = valueSerde.fromBytes(byteRecord.value)
-        readsMeter.markSuccess(timerContext)
-        result
+      cache.flatMap(_.get(key, ttlMs)) match {
+        case Some(cached) =>
+          cacheHits.mark()
+          readsMeter.markSuccess(timerContext)
+          Some(cached.value)
+        case None =>
+          cache.foreach(_ => cacheMisses.mark())
+          val version = versions.get(stripe(key))
+          for (
+            cell: ByteBuffer <- option(memstore(key));
+            byteRecord: Record[Array[Byte], Array[Byte]] <- option(memstore.unwrap(key, cell, ttlMs))
+          ) yield {
+            val result = valueSerde.fromBytes(byteRecord.value)
+            cache.foreach(cacheValue(_, key, version, result, byteRecord.timestamp))
+            readsMeter.markSuccess(timerContext)
+            result
+          }
       }
     } catch {
       case e: Throwable =>
@@ -319,6 +743,46 @@ class KVStoreLocal[K, V](val identifier: String,
     }
   }
 
+  /**
+    * a value read from the memstore is cached only if no write to its stripe was in flight when it was read,
+    * and it is removed again if a write has started since because the write may have invalidated the key
+    * before the value was put in the cache
+    */
+  private def cacheValue(c: ValueCache[V], key: ByteBuffer, version: Long, value: V, timestamp: Long): Unit = {
+    if ((version & InFlightMask) == 0) {
+      val entry = c.Entry(value, timestamp)
+      c.put(key, entry)
+      if (versions.get(stripe(key)) != version) c.remove(key, entry)
+    }
+  }
+
+  private[affinity] def uncheckedApply(key: Any): Option[V] = apply(key.asInstanceOf[K])
+
+  /**
+    * Check whether this replica of the state can serve a read without violating the consistency
+    * expected by the caller. Master replicas are always consistent, this check is relevant for standbys.
+    *
+    * @param token consistency token returned by one of the write operations, e.g. replaceWithToken, or None
+    * Standbys move their checkpoint once per fetched batch of the tailed log, so a token is reached only when
+    * the whole batch containing the write has been applied; the tokens are exact but a standby may report
+    * being behind a write which it has already applied, in which case the read is served by the master.
+    *
+    * @return true if the replica has applied all records up to the token position or, if no token is given,
+    *         if its replication lag is within the configured read.max.staleness.ms
+    */
+  def isConsistentWith(token: Option[Any]): Boolean = logOption match {
+    case None => false
+    case Some(log) => token match {
+      case Some(position) => log.hasReached(position)
+      case None => readMaxStalenessMs >= 0 && {
+        val lagMs = log.getLagMs
+        lagMs >= 0 && lagMs <= readMaxStalenessMs
+      }
+    }
+  }
+
+  private def currentToken: Option[Any] = logOption.flatMap(log => Option(log.getCheckpoint))
+
   /**
     * Get all records that match the given time range and optional prefix sequence
     *
@@ -363,7 +827,18 @@ class KVStoreLocal[K, V](val identifier: String,
     *         Success(None) if the write was persisted but the operation resulted in the value was expired immediately
     *         Failure(ex) if the operation failed due to exception
     */
-  def replace(key: K, value: V): Future[Option[V]] = {
+  def replace(key: K, value: V): Future[Option[V]] = replaceWithToken(key, value).map(_._1)
+
+  /**
+    * same as replace but the result also carries a consistency token which can be used for reading
+    * the written value from any replica of the state, see isConsistentWith
+    *
+    * @param key   to update
+    * @param value new value to be associated with the key
+    * @return Future of the same value as replace paired with the position of the write in the underlying log,
+    *         the position is None if the state is not backed by a log
+    */
+  def replaceWithToken(key: K, value: V): Future[(Option[V], Option[Any])] = {
     lockAsync(key) {
       put(keySerde.toBytes(key), value).map { w =>
         push(new Record(key, value))
@@ -439,14 +914,26 @@ class KVStoreLocal[K, V](val identifier: String,
     *            as a result of the update
     * @return Future optional value which will be successful if the put operation succeeded and will hold the updated value
     */
-  def updateAndGet(key: K, f: Option[V] => Option[V]): Future[Option[V]] = {
+  def updateAndGet(key: K, f: Option[V] => Option[V]): Future[Option[V]] = updateAndGetWithToken(key, f).map(_._1)
+
+  /**
+    * same as updateAndGet but the result also carries a consistency token which can be used for reading
+    * the updated value from any replica of the state, see isConsistentWith
+    *
+    * @param key key which is going to be updated
+    * @param f   function which given a current value returns an updated value or empty if the key is to be removed
+    *            as a result of the update
+    * @return Future of the same value as updateAndGet paired with the position of the write in the underlying log,
+    *         or the current checkpoint if no modification was necessary; None if the state is not backed by a log
+    */
+  def updateAndGetWithToken(key: K, f: Option[V] => Option[V]): Future[(Option[V], Option[Any])] = {
     try {
       val k = keySerde.toBytes(key)
       lockAsync(key) {
         val currentValue = apply(ByteBuffer.wrap(k))
         val updatedValue: Option[V] = f(currentValue)
         if (currentValue == updatedValue) {
-          Future.successful(updatedValue)
+          Future.successful((updatedValue, currentToken))
         } else {
           val f = if (updatedValue.isDefined) put(k, updatedValue.get) else delete(k)
           f andThen {
@@ -454,7 +941,7 @@ class KVStoreLocal[K, V](val identifier: String,
               case Some(value) => push(new Record[K, V](key, value))
               case None => currentValue.foreach(c => push(new Record[K, V](key, c, true)))
             }
-          } map (_ => updatedValue)
+          } map (w => (updatedValue, w._2))
         }
       }
     } catch {
@@ -462,6 +949,252 @@ class KVStoreLocal[K, V](val identifier: String,
     }
   }
 
+  override def putAll(entries: Map[K, V]): Future[Unit] = {
+    if (external) throw new IllegalStateException("putAll() called on a read-only state")
+    try {
+      val serialized = sortedKeys(entries.keys)
+      lockAllAsync(serialized.map(_._1)) {
+        writeBatch(serialized.map { case (key, k) => (key, k, None, Some(entries(key))) })
+      }
+    } catch {
+      case NonFatal(e) => Future.failed(e)
+    }
+  }
+
+  override def deleteAll(keys: Iterable[K]): Future[Unit] = {
+    if (external) throw new IllegalStateException("deleteAll() called on a read-only state")
+    try {
+      val serialized = sortedKeys(keys)
+      lockAllAsync(serialized.map(_._1)) {
+        writeBatch(serialized.flatMap { case (key, k) =>
+          apply(ByteBuffer.wrap(k)).map(currentValue => (key, k, Some(currentValue), None))
+        })
+      }
+    } catch {
+      case NonFatal(e) => Future.failed(e)
+    }
+  }
+
+  override def updateAll(keys: Iterable[K])(f: Option[V] => Option[V]): Future[Map[K, Option[V]]] = {
+    try {
+      val serialized = sortedKeys(keys)
+      lockAllAsync(serialized.map(_._1)) {
+        val updates = serialized.map { case (key, k) =>
+          val currentValue = apply(ByteBuffer.wrap(k))
+          (key, k, currentValue, f(currentValue))
+        }
+        writeBatch(updates.filter(u => u._3 != u._4)).map(_ => updates.map(u => u._1 -> u._4).toMap)
+      }
+    } catch {
+      case NonFatal(e) => Future.failed(e)
+    }
+  }
+
+  /**
+    * @param keys keys to serialize
+    * @return distinct keys paired with their serialized form, in the order of the serialized bytes
+    */
+  private def sortedKeys(keys: Iterable[K]): Seq[(K, Array[Byte])] = {
+    keys.toSeq.distinct.map(key => (key, keySerde.toBytes(key))).sortWith {
+      case ((_, a), (_, b)) => ByteUtils.compare(a, 0, a.length, b, 0, b.length) < 0
+    }
+  }
+
+  /**
+    * write a batch of modifications with a single log operation, the caller must hold the locks of all the keys
+    *
+    * @param changes key, serialized key, current value and the value to be written or None for deletes
+    * @return future which completes when all modifications were persisted
+    */
+  private def writeBatch(changes: Seq[(K, Array[Byte], Option[V], Option[V])]): Future[Unit] = {
+    if (changes.isEmpty) Future.successful(()) else {
+      if (external) throw new IllegalStateException("write called on a read-only state")
+      val nowMs = EventTime.unix
+      val records: List[Record[Array[Byte], Array[Byte]]] = changes.toList.map {
+        case (_, k, _, Some(value)) =>
+          val recordTimestamp = value match {
+            case e: EventTime => e.eventTimeUnix()
+            case _ => nowMs
+          }
+          if (ttlMs > 0 && recordTimestamp + ttlMs < nowMs) {
+            new Record[Array[Byte], Array[Byte]](k, null, nowMs, true)
+          } else {
+            new Record(k, valueSerde.toBytes(value), recordTimestamp)
+          }
+        case (_, k, _, None) => new Record[Array[Byte], Array[Byte]](k, null, nowMs, true)
+      }
+      changes.foreach(change => versions.incrementAndGet(stripe(change._2)))
+      val timerContext = writesMeter.markStart()
+      val write: Future[Unit] = try {
+        logOption match {
+          case None =>
+            records.foreach { record =>
+              if (record.tombstone) memstore.remove(ByteBuffer.wrap(record.key))
+              else memstore.put(ByteBuffer.wrap(record.key), memstore.wrap(record.value, record.timestamp))
+            }
+            Future.successful(())
+          case Some(log) => javaToScalaFuture(log.appendAll(memstore, records.asJava)).map(_ => ())
+        }
+      } catch {
+        case NonFatal(e) => Future.failed(e)
+      }
+      write.onComplete {
+        case Success(_) => writesMeter.markSuccess(timerContext, records.size)
+        case Failure(_) => writesMeter.markFailure(timerContext)
+      }
+      track(changes.map(_._2), write) andThen {
+        case Success(_) => changes.foreach {
+          case (key, _, _, Some(value)) => push(new Record[K, V](key, value))
+          case (key, _, currentValue, None) => currentValue.foreach(c => push(new Record[K, V](key, c, true)))
+        }
+      }
+    }
+  }
+
+  /**
+    * compare-and-set write which doesn't hold any lock while the write is being persisted,
+    * it only succeeds if no write has been made to the key since the version was read.
+    *
+    * The version of a key is shared with other keys that fall into the same version stripe
+    * so a compare-and-set may fail spuriously, the caller should simply read the new version and retry.
+    * Writes made by the locking operations (replace, delete, getAndUpdate, updateAndGet) also advance
+    * the versions but they don't validate them, so a key should be modified either by the locking
+    * or by the optimistic operations.
+    *
+    * @param key             key to write
+    * @param expectedVersion opaque version as returned by getVersioned
+    * @param value           new value or None if the key is to be deleted
+    * @return Future which will be successful with true if the value was persisted,
+    *         successful with false immediately if the version didn't match,
+    *         or failed if the write was attempted but failed
+    */
+  def compareAndSet(key: K, expectedVersion: Long, value: Option[V]): Future[Boolean] = {
+    if (external) throw new IllegalStateException("compareAndSet() called on a read-only state")
+    try {
+      val k = keySerde.toBytes(key)
+      val s = stripe(k)
+      if ((expectedVersion & InFlightMask) != 0 || !versions.compareAndSet(s, expectedVersion, expectedVersion + 1)) {
+        conflictsMeter.mark()
+        Future.successful(false)
+      } else {
+        val write = try {
+          val currentValue = apply(ByteBuffer.wrap(k))
+          (if (value.isDefined) putImpl(k, value.get) else deleteImpl(k)) andThen {
+            case Success(_) => value match {
+              case Some(v) => push(new Record[K, V](key, v))
+              case None => currentValue.foreach(c => push(new Record[K, V](key, c, true)))
+            }
+          }
+        } catch {
+          case NonFatal(e) => Future.failed(e)
+        }
+        track(List(k), write).map(_ => true)
+      }
+    } catch {
+      case NonFatal(e) => Future.failed(e)
+    }
+  }
+
+  /**
+    * @param key key to read
+    * @return current value of the key paired with its opaque version for compareAndSet
+    */
+  def getVersioned(key: K): (Option[V], Long) = {
+    val k = keySerde.toBytes(key)
+    val s = stripe(k)
+    var version = versions.get(s)
+    var value = apply(ByteBuffer.wrap(k))
+    //a write may have been applied to the memstore in between, in which case the read is repeated
+    while (versions.get(s) != version) {
+      version = versions.get(s)
+      value = apply(ByteBuffer.wrap(k))
+    }
+    (value, version)
+  }
+
+  /**
+    * optimistic alternative to updateAndGet which doesn't lock the key while the update is being persisted,
+    * if another write to the key (or its version stripe) happens between reading the current value and
+    * writing the updated one, the update function is applied again to the new current value.
+    *
+    * @param key key which is going to be updated
+    * @param f   function which given a current value returns an updated value or empty if the key is to be removed,
+    *            it may be invoked more than once
+    * @return Future optional value which will be successful if the write succeeded and will hold the updated value
+    */
+  def updateOptimistically(key: K, f: Option[V] => Option[V]): Future[Option[V]] = try {
+    val (currentValue, version) = getVersioned(key)
+    val updatedValue = f(currentValue)
+    if (currentValue == updatedValue) Future.successful(updatedValue) else {
+      compareAndSet(key, version, updatedValue) flatMap {
+        case true => Future.successful(updatedValue)
+        case false =>
+          //retry once the conflicting write has completed or on another thread if it is not known
+          val s = stripe(keySerde.toBytes(key))
+          val conflicting = lastWrites.get(s)
+          val wait = if (conflicting == null || conflicting.isCompleted) Future.successful(()) else conflicting.recover { case _ => () }
+          wait.flatMap(_ => updateOptimistically(key, f))
+      }
+    }
+  } catch {
+    case NonFatal(e) => Future.failed(e)
+  }
+
+  /*
+   * Optimistic concurrency support - every key maps to one of the version stripes by the hash of its bytes.
+   * A stripe packs the number of completed writes into the high bits and the number of writes in flight
+   * into the low bits so that a compare-and-set can claim a stripe that has no writes in flight with a single CAS.
+   */
+  private val VersionStripes = 1024
+
+  private val InFlightBits = 20
+
+  private val InFlightMask = (1L << InFlightBits) - 1
+
+  private val versions = new AtomicLongArray(VersionStripes)
+
+  private val lastWrites = new AtomicReferenceArray[Future[_]](VersionStripes)
+
+  private val conflictsMeter = metrics.meter(s"state.$identifier.conflicts")
+
+  private def stripe(key: Array[Byte]): Int = stripe(ByteBuffer.wrap(key))
+
+  private def stripe(key: ByteBuffer): Int = (key.hashCode & Int.MaxValue) % VersionStripes
+
+  /**
+    * @param keys  serialized keys whose stripes have been claimed for the write
+    * @param write write in progress
+    * @return future of the write which completes after the cached values of the keys have been invalidated
+    *         and their stripes released and advanced
+    */
+  private def track[T](keys: Seq[Array[Byte]], write: Future[T]): Future[T] = {
+    def complete(): Unit = keys.foreach { key =>
+      cache.foreach(_.invalidate(ByteBuffer.wrap(key)))
+      versions.addAndGet(stripe(key), (1L << InFlightBits) - 1)
+    }
+    if (write.isCompleted) {
+      complete()
+      write
+    } else {
+      keys.foreach(key => lastWrites.set(stripe(key), write))
+      write andThen { case _ => complete() }
+    }
+  }
+
+  private def put(key: Array[Byte], value: V): Future[(Option[V], Option[Any])] = {
+    versions.incrementAndGet(stripe(key))
+    track(List(key), try putImpl(key, value) catch {
+      case NonFatal(e) => Future.failed(e)
+    })
+  }
+
+  private def delete(key: Array[Byte]): Future[(Option[V], Option[Any])] = {
+    versions.incrementAndGet(stripe(key))
+    track(List(key), try deleteImpl(key) catch {
+      case NonFatal(e) => Future.failed(e)
+    })
+  }
+
   /**
     * An asynchronous non-blocking put operation which inserts or updates the value
     * at the given key. The value is first updated in the kvstore and then a future is created
@@ -471,9 +1204,10 @@ class KVStoreLocal[K, V](val identifier: String,
     *
     * @param key   serialized key
     * @param value new value for the key
-    * @return future of the checkpoint that will represent the consistency information after the operation completes
+    * @return future of the written value, if it was not expired immediately, paired with the position
+    *         which will represent the consistency information after the operation completes
     */
-  private def put(key: Array[Byte], value: V): Future[Option[V]] = {
+  private def putImpl(key: Array[Byte], value: V): Future[(Option[V], Option[Any])] = {
     if (external) throw new IllegalStateException("put() called on a read-only state")
     val nowMs = EventTime.unix
     val recordTimestamp = value match {
@@ -481,7 +1215,7 @@ class KVStoreLocal[K, V](val identifier: String,
       case _ => nowMs
     }
     if (ttlMs > 0 && recordTimestamp + ttlMs < nowMs) {
-      delete(key) map (_ => None)
+      deleteImpl(key) map (w => (None, w._2))
     } else {
       val timerContext = writesMeter.markStart()
       try {
@@ -490,12 +1224,12 @@ class KVStoreLocal[K, V](val identifier: String,
           case None =>
             memstore.put(ByteBuffer.wrap(key), memstore.wrap(valueBytes, recordTimestamp))
             writesMeter.markSuccess(timerContext)
-            Future.successful(Some(value))
+            Future.successful((Some(value), None))
           case Some(log) =>
             log.append(memstore, key, valueBytes, recordTimestamp) transform(
-              pos => { //TODO pos is currently not used but could be instrumental in direct synchronization of standby replicas
+              pos => {
                 writesMeter.markSuccess(timerContext)
-                Some(value)
+                (Some(value), Some(pos: Any))
               },
               error => {
                 writesMeter.markFailure(timerContext)
@@ -519,9 +1253,10 @@ class KVStoreLocal[K, V](val identifier: String,
     * the result future.
     *
     * @param key serialized key to delete
-    * @return future of unt which completes when the delete was persisted in both memstore and the log
+    * @return future which completes when the delete was persisted in both memstore and the log
+    *         and holds the position of the tombstone in the log, if any
     */
-  private def delete(key: Array[Byte]): Future[Unit] = {
+  private def deleteImpl(key: Array[Byte]): Future[(Option[V], Option[Any])] = {
     if (external) throw new IllegalStateException("delete() called on a read-only state")
     val timerContext = writesMeter.markStart()
     try {
@@ -529,11 +1264,12 @@ class KVStoreLocal[K, V](val identifier: String,
         case None =>
           memstore.remove(ByteBuffer.wrap(key))
           writesMeter.markSuccess(timerContext)
-          Future.successful(None)
+          Future.successful((None, None))
         case Some(log) =>
           log.delete(memstore, key) transform(
-            _ => {
+            pos => {
               writesMeter.markSuccess(timerContext)
+              (None, Some(pos: Any))
             }, error => {
             writesMeter.markFailure(timerContext)
             error
@@ -564,6 +1300,9 @@ class KVStoreLocal[K, V](val identifier: String,
   }
 
   override def internalPush(record: Record[Array[Byte], Array[Byte]]) = {
+    //records applied by the log have already modified the memstore
+    versions.addAndGet(stripe(record.key), 1L << InFlightBits)
+    cache.foreach(_.invalidate(ByteBuffer.wrap(record.key)))
     push(new Record(
       keySerde.fromBytes(record.key),
       valueSerde.fromBytes(record.value),
@@ -577,59 +1316,108 @@ class KVStoreLocal[K, V](val identifier: String,
     } finally {
       memstore.close()
       metrics.remove(s"state.$identifier.keys")
+      metrics.remove(s"state.$identifier.conflicts")
+      metrics.remove(s"state.$identifier.cache.hits")
+      metrics.remove(s"state.$identifier.cache.misses")
+      metrics.remove(s"state.$identifier.cache.hit-rate")
+      logMetrics.keys.foreach(name => metrics.remove(s"state.$identifier.$name"))
       indicies.foreach(_.close)
+      views.foreach(_.close)
     }
   }
 
   /**
-    * row locking functionality
+    * row locking functionality - every locked scope maps to the release future of its latest holder,
+    * a new holder chains itself after it so contended writers queue up as continuations instead of
+    * parking threads. The body is evaluated only once all previous holders of the scope have released it.
     */
-  private class RowLock extends AnyRef
-
-  private val locks = new ConcurrentHashMap[Any, RowLock]
+  private val locks = new ConcurrentHashMap[Any, Future[Unit]]
 
   def lockAsync[T](scope: Any)(body: => Future[T]): Future[T] = {
-    lock(scope)
-    try {
-      body.transform(
-        (s) => {
-          unlock(scope)
-          s
-        },
-        (f) => {
-          unlock(scope)
-          f
+    val released = Promise[Unit]()
+    val previous = locks.put(scope, released.future)
+    withLocks(List(scope), if (previous == null) Nil else List(previous), released)(body)
+  }
+
+  /**
+    * lock multiple scopes at once, the body is evaluated when all of them have been released by their previous holders
+    *
+    * @param scopes scopes to lock
+    * @param body   operation to perform while holding the locks
+    * @return future of the body which releases the locks when completed
+    */
+  def lockAllAsync[T](scopes: Seq[Any])(body: => Future[T]): Future[T] = {
+    val distinctScopes = scopes.distinct
+    val released = Promise[Unit]()
+    //holders of multiple scopes are queued exclusively so that any two of them are queued in the same order on all
+    //the scopes they share - single scopes don't need this as they cannot form a cycle
+    val previous = locks.synchronized(distinctScopes.flatMap(scope => Option(locks.put(scope, released.future))))
+    withLocks(distinctScopes, previous, released)(body)
+  }
+
+  private def withLocks[T](scopes: Seq[Any], previous: Seq[Future[Unit]], released: Promise[Unit])(body: => Future[T]): Future[T] = {
+    def release(): Unit = {
+      scopes.foreach(scope => locks.remove(scope, released.future))
+      released.success(())
+    }
+    def acquired(): Future[T] = {
+      val result = try body catch {
+        case NonFatal(e) =>
+          release()
+          throw e
+      }
+      result.onComplete(_ => release())
+      result
+    }
+    val pending = previous.filter(!_.isCompleted)
+    if (pending.isEmpty) acquired() else {
+      val result = Promise[T]()
+      val claimed = new AtomicBoolean(false)
+      val timeout = KVStoreLocal.lockTimer.schedule(new Runnable {
+        override def run(): Unit = if (claimed.compareAndSet(false, true)) {
+          val what = if (scopes.size == 1) scopes.head else s"${scopes.size} keys"
+          result.failure(new TimeoutException(s"Could not acquire lock for $what in $lockTimeoutMs ms"))
         }
-      )
-    } catch {
-      case NonFatal(e) =>
-        unlock(scope)
-        throw e
+      }, lockTimeoutMs, TimeUnit.MILLISECONDS)
+      Future.sequence(pending).onComplete { _ =>
+        timeout.cancel(false)
+        //a waiter which has already timed out passes the lock on without evaluating the body
+        if (!claimed.compareAndSet(false, true)) release() else result.completeWith(try acquired() catch {
+          case NonFatal(e) => Future.failed(e)
+        })
+      }
+      result.future
     }
   }
 
+  //releases of the locks held by the blocking lock() until the matching unlock()
+  private val blockingLocks = new ConcurrentHashMap[Any, Promise[Unit]]
+
+  /**
+    * acquire the lock of the scope blocking the calling thread, the lock is queued together with those of lockAsync
+    *
+    * @throws TimeoutException if the lock could not be acquired within lock.timeout.ms
+    */
+  @deprecated("use lockAsync which doesn't block the calling thread while waiting for the lock", "0.9.9")
   def lock(scope: Any): Unit = {
-    val lock = new RowLock()
-    breakable {
-      val start = System.currentTimeMillis
-      do {
-        val existingLock = locks.putIfAbsent(scope, lock)
-        if (existingLock == null) break else existingLock.synchronized {
-          existingLock.wait(lockTimeoutMs)
-          val waitedMs = System.currentTimeMillis - start
-          if (waitedMs >= lockTimeoutMs) {
-            throw new TimeoutException(s"Could not acquire lock for $scope in $lockTimeoutMs ms")
-          }
-        }
-      } while (true)
+    val acquired = Promise[Unit]()
+    val held = Promise[Unit]()
+    lockAsync(scope) {
+      acquired.success(())
+      held.future
+    } onComplete {
+      case Failure(e) => acquired.tryFailure(e)
+      case _ =>
     }
+    //the wait is bounded by the lock timeout which fails the lockAsync future
+    Await.result(acquired.future, Duration.Inf)
+    blockingLocks.put(scope, held)
   }
 
+  @deprecated("use lockAsync which releases the lock when the future of its body completes", "0.9.9")
   def unlock(scope: Any): Unit = {
-    val lock = locks.remove(scope)
-    lock.synchronized {
-      lock.notifyAll()
-    }
+    val held = blockingLocks.remove(scope)
+    if (held != null) held.trySuccess(())
   }
 
   /**
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.core.state
+
+import java.nio.ByteBuffer
+
+import akka.actor.ActorSystem
+import io.amient.affinity.core.serde.{AbstractSerde, Serde}
+import io.amient.affinity.core.storage.MemStoreWindowed
+import io.amient.affinity.core.util.{AffinityMetrics, ByteUtils, EventTime, TimeRange}
+
+import scala.collection.JavaConverters._
+import scala.concurrent.{ExecutionContext, Future}
+import scala.reflect.ClassTag
+import scala.util.control.NonFatal
+
+/**
+  * Key of a windowed state store
+  *
+  * @param key   the key whose values are aggregated
+  * @param start start of the window in milliseconds since the unix epoch
+  */
+case class Windowed[K](key: K, start: Long)
+
+/**
+  * Serializes windowed keys with the 8-byte big-endian window start followed by the serialized key
+  * which is the layout that MemStoreWindowed uses to route the keys into the window segments
+  */
+class WindowedKeySerde[K](keySerde: AbstractSerde[K]) extends AbstractSerde[Windowed[K]] {
+
+  override def fromBytes(bytes: Array[Byte]): Windowed[K] = {
+    val keyBytes = new Array[Byte](bytes.length - 8)
+    ByteUtils.copy(bytes, 8, keyBytes, 0, keyBytes.length)
+    Windowed(keySerde.fromBytes(keyBytes), ByteBuffer.wrap(bytes).getLong(0))
+  }
+
+  override def toBytes(obj: Windowed[K]): Array[Byte] = {
+    val keyBytes = keySerde.toBytes(obj.key)
+    val result = new Array[Byte](8 + keyBytes.length)
+    ByteUtils.putLongValue(obj.start, result, 0)
+    ByteUtils.copy(keyBytes, 0, result, 8, keyBytes.length)
+    result
+  }
+
+  override def close(): Unit = keySerde.close()
+}
+
+object KVStoreWindowed {
+
+  def create[K: ClassTag, V: ClassTag](identifier: String,
+                                       partition: Int,
+                                       stateConf: StateConf,
+                                       numPartitions: Int,
+                                       system: ActorSystem): KVStoreWindowed[K, V] = {
+    if (!stateConf.Window.isDefined) throw new IllegalArgumentException(s"State $identifier doesn't have window configuration")
+    val keySerde = new WindowedKeySerde[K](Serde.of[K](system.settings.config))
+    val valueSerde = Serde.of[V](system.settings.config)
+    val metrics = AffinityMetrics.forActorSystem(system)
+    KVStoreLocal.configureMemStoreDataDir(identifier, stateConf, system, metrics)
+    val memstore = new MemStoreWindowed(identifier, stateConf, metrics)
+    try {
+      val underlying = KVStoreLocal.create[Windowed[K], V](identifier, partition, stateConf, numPartitions, memstore, keySerde, valueSerde, system)
+      new KVStoreWindowed(underlying, memstore, stateConf.Window.SizeMs(), stateConf.Window.advanceMs(), stateConf.Window.lifetimeMs())
+    } catch {
+      case NonFatal(e) => throw new RuntimeException(s"Failed to Configure State $identifier", e)
+    }
+  }
+}
+
+/**
+  * Windowed state store: values are kept per (key, window start) where windows of sizeMs start every advanceMs,
+  * i.e. tumbling windows if advanceMs == sizeMs and hopping windows if advanceMs < sizeMs. Every window lives
+  * in its own segment of the memstore which is dropped as a whole when the window passes its retention.
+  *
+  * Reads of a key's recent windows are point lookups into the segments of the requested windows.
+  *
+  * @param underlying key-value store which holds the windows, exposed so that it can be managed like any other state
+  */
+class KVStoreWindowed[K, V](val underlying: KVStoreLocal[Windowed[K], V],
+                            memstore: MemStoreWindowed,
+                            val sizeMs: Long,
+                            val advanceMs: Long,
+                            lifetimeMs: Long) {
+
+  /**
+    * @param timestamp event time
+    * @return starts of all windows which contain the given timestamp, latest first
+    */
+  def windows(timestamp: Long): Seq[Long] = {
+    val latest = timestamp - Math.floorMod(timestamp, advanceMs)
+    latest to (timestamp - sizeMs + 1) by -advanceMs
+  }
+
+  private def isLive(windowStart: Long): Boolean = windowStart + lifetimeMs >= EventTime.unix
+
+  /**
+    * @param key         key to look up
+    * @param windowStart start of the window
+    * @return value of the key in the given window if the window exists and hasn't expired
+    */
+  def apply(key: K, windowStart: Long): Option[V] = if (!isLive(windowStart)) None else underlying(Windowed(key, windowStart))
+
+  /**
+    * @param key   key to look up
+    * @param range time range which the window starts must fall into
+    * @return values of the key in all live windows which start within the range, by window start
+    */
+  def range(key: K, range: TimeRange): Map[Long, V] = {
+    memstore.windows.subSet(range.start, true, range.end, true).asScala.toList.flatMap { windowStart =>
+      apply(key, windowStart).map(windowStart.longValue -> _)
+    }.toMap
+  }
+
+  /**
+    * Apply an update function to the key in every live window that contains the given timestamp
+    *
+    * @param key       key to update
+    * @param timestamp event time of the update
+    * @param f         function which given a current value returns an updated value or empty if the key is to be removed
+    * @return values after the update by window start
+    */
+  def updateAndGet(key: K, timestamp: Long, f: Option[V] => Option[V]): Future[Map[Long, Option[V]]] = {
+    implicit val executor = ExecutionContext.Implicits.global
+    Future.sequence(windows(timestamp).filter(isLive).map { windowStart =>
+      underlying.updateAndGet(Windowed(key, windowStart), f).map(windowStart -> _)
+    }).map(_.toMap)
+  }
+
+  /**
+    * @param key         key to replace
+    * @param windowStart start of the window
+    * @param value       new value of the key in the window
+    * @return Future with the new value if it was persisted
+    */
+  def replace(key: K, windowStart: Long, value: V): Future[Option[V]] = underlying.replace(Windowed(key, windowStart), value)
+
+  def delete(key: K, windowStart: Long): Future[Option[V]] = underlying.delete(Windowed(key, windowStart))
+
+  def numKeys: Long = underlying.numKeys
+
+  def getStats: String = underlying.getStats
+
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.core.state
+
+import java.nio.ByteBuffer
+import java.nio.file.Path
+import java.util
+import java.util.Optional
+
+import io.amient.affinity.core.serde.AbstractSerde
+import io.amient.affinity.core.storage.MemStore
+import io.amient.affinity.core.util.ByteUtils
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.concurrent.{ExecutionContext, Future}
+
+/**
+  * Aggregate which can be maintained incrementally, i.e. a measure can be added to it and removed from it again
+  * when the record it was derived from is updated or deleted
+  *
+  * @tparam M measure type, i.e. what is aggregated of each record
+  * @tparam A aggregate type
+  */
+trait Aggregator[M, A] {
+
+  def zero: A
+
+  def plus(aggregate: A, measure: M): A
+
+  def minus(aggregate: A, measure: M): A
+
+  /**
+    * merge partial aggregates, e.g. of different partitions
+    */
+  def combine(a1: A, a2: A): A
+
+}
+
+object Aggregator {
+
+  object LongSum extends Aggregator[Long, Long] {
+    override def zero: Long = 0L
+
+    override def plus(aggregate: Long, measure: Long): Long = aggregate + measure
+
+    override def minus(aggregate: Long, measure: Long): Long = aggregate - measure
+
+    override def combine(a1: Long, a2: Long): Long = a1 + a2
+  }
+
+  object DoubleSum extends Aggregator[Double, Double] {
+    override def zero: Double = 0.0
+
+    override def plus(aggregate: Double, measure: Double): Double = aggregate + measure
+
+    override def minus(aggregate: Double, measure: Double): Double = aggregate - measure
+
+    override def combine(a1: Double, a2: Double): Double = a1 + a2
+  }
+
+}
+
+/**
+  * Materialized view of a state store which is kept up to date from the changes of the state, the changes are
+  * applied asynchronously, in order, by the same kind of pipeline that maintains indices. The view remembers
+  * what each record of the state contributed to it so that the contribution can be retracted when the record
+  * is updated or deleted.
+  *
+  * Records which expire from the state because of its ttl don't produce any changes and stay in the view.
+  *
+  * @tparam R type of the rows that are derived from the records of the state
+  */
+abstract class MaterializedView[R](identifier: String, memstore: MemStore) {
+
+  private val Contribution: Byte = 0
+
+  def option[T](opt: Optional[T]): Option[T] = if (opt.isPresent) Some(opt.get()) else None
+
+  protected def get(key: ByteBuffer): Option[Array[Byte]] = {
+    option(memstore(key)).flatMap(cell => option(memstore.unwrap(key, cell, -1))).map(_.value)
+  }
+
+  /**
+    * changes of one batch are applied to an overlay and written to the memstore together
+    */
+  protected class Batch {
+
+    private val overlay = new util.LinkedHashMap[ByteBuffer, Option[(Array[Byte], Long)]]()
+
+    def get(key: ByteBuffer): Option[Array[Byte]] = {
+      if (overlay.containsKey(key)) overlay.get(key).map(_._1) else MaterializedView.this.get(key)
+    }
+
+    def put(key: ByteBuffer, value: Array[Byte], timestamp: Long): Unit = overlay.put(key, Some((value, timestamp)))
+
+    def remove(key: ByteBuffer): Unit = overlay.put(key, None)
+
+    def write(): Unit = memstore.write(overlay.entrySet.asScala.toList.map { entry =>
+      new util.AbstractMap.SimpleEntry[ByteBuffer, ByteBuffer](entry.getKey, entry.getValue match {
+        case None => null
+        case Some((value, timestamp)) => memstore.wrap(value, timestamp)
+      }): util.Map.Entry[ByteBuffer, ByteBuffer]
+    }.asJava)
+  }
+
+  /**
+    * @param changes serialized primary keys of the changed records with the rows derived from them,
+    *                or None if the record was deleted, and the timestamps of the records
+    */
+  private[state] def update(changes: Seq[(Array[Byte], Option[R], Long)]): Unit = {
+    val batch = new Batch
+    changes.foreach { case (primaryKey, row, timestamp) =>
+      val contributionKey = ByteBuffer.wrap(Contribution +: primaryKey)
+      batch.get(contributionKey).foreach(retract(batch, _))
+      row match {
+        case None => batch.remove(contributionKey)
+        case Some(r) => batch.put(contributionKey, contribute(batch, primaryKey, r, timestamp), timestamp)
+      }
+    }
+    batch.write()
+  }
+
+  /**
+    * @return contribution of the row to the view which will be passed to retract when the record changes
+    */
+  protected def contribute(batch: Batch, primaryKey: Array[Byte], row: R, timestamp: Long): Array[Byte]
+
+  protected def retract(batch: Batch, contribution: Array[Byte]): Unit
+
+  private var maintenance: Option[IndexMaintenance[_]] = None
+
+  private var marker: Option[Path] = None
+
+  private[state] def maintainedBy(m: IndexMaintenance[_], consistentMarker: Option[Path]): Unit = {
+    maintenance = Some(m)
+    marker = consistentMarker
+  }
+
+  /**
+    * @return number of changes of the state which haven't been applied to the view yet
+    */
+  def lag: Long = maintenance.map(_.lag).getOrElse(0L)
+
+  /**
+    * @return future which completes when all the changes made to the state so far are reflected in the view,
+    *         or fails if the view couldn't apply some of the changes and is inconsistent until it's rebuilt
+    */
+  def synced: Future[Unit] = maintenance.map(_.synced).getOrElse(Future.successful(()))
+
+  def getStats: String = {
+    s"$identifier\n===================================================================\n" +
+      s"MemStore[${memstore.getClass.getSimpleName}]\n${memstore.getStats}\n\n"
+  }
+
+  def close(): Unit = {
+    try {
+      maintenance.foreach { m =>
+        m.close()
+        if (m.isConsistent) marker.foreach(_.toFile.createNewFile())
+      }
+    } finally {
+      memstore.close()
+    }
+  }
+
+}
+
+/**
+  * Aggregates of the records of a state grouped by a key function, each lookup is a single memstore read.
+  *
+  * @tparam G group key type
+  * @tparam M measure type
+  * @tparam A aggregate type
+  */
+class AggregateView[G, M, A](identifier: String,
+                             memstore: MemStore,
+                             groupSerde: => AbstractSerde[G],
+                             measureSerde: AbstractSerde[M],
+                             aggregateSerde: AbstractSerde[A],
+                             val aggregator: Aggregator[M, A]) extends MaterializedView[(G, M)](identifier, memstore) {
+
+  private val Aggregate: Byte = 1
+
+  //group keys with a natural order, e.g. numbers, strings or tuples of them, don't need to have a serde
+  private lazy val resolvedGroupSerde = groupSerde
+
+  private val serializeGroup: Any => Array[Byte] = group => resolvedGroupSerde.toBytes(group.asInstanceOf[G])
+
+  private def aggregateKey(group: G): ByteBuffer = {
+    ByteBuffer.wrap(Aggregate +: IndexKeyEncoding.encode(group, serializeGroup))
+  }
+
+  /**
+    * @param group group key
+    * @return aggregate of all the records of the group, zero if there are none
+    */
+  def apply(group: G): A = get(aggregateKey(group)).map(aggregateSerde.fromBytes).getOrElse(aggregator.zero)
+
+  override protected def contribute(batch: Batch, primaryKey: Array[Byte], row: (G, M), timestamp: Long): Array[Byte] = {
+    val (group, measure) = row
+    val key = aggregateKey(group)
+    val current = batch.get(key).map(aggregateSerde.fromBytes).getOrElse(aggregator.zero)
+    batch.put(key, aggregateSerde.toBytes(aggregator.plus(current, measure)), timestamp)
+    val keyBytes = ByteUtils.bufToArray(key)
+    val measureBytes = measureSerde.toBytes(measure)
+    val contribution = new Array[Byte](4 + keyBytes.length + measureBytes.length)
+    ByteUtils.putIntValue(keyBytes.length, contribution, 0)
+    ByteUtils.copy(keyBytes, 0, contribution, 4, keyBytes.length)
+    ByteUtils.copy(measureBytes, 0, contribution, 4 + keyBytes.length, measureBytes.length)
+    contribution
+  }
+
+  override protected def retract(batch: Batch, contribution: Array[Byte]): Unit = {
+    val keyLength = ByteUtils.asIntValue(contribution, 0)
+    val key = ByteBuffer.wrap(util.Arrays.copyOfRange(contribution, 4, 4 + keyLength))
+    val measure = measureSerde.fromBytes(util.Arrays.copyOfRange(contribution, 4 + keyLength, contribution.length))
+    batch.get(key).map(aggregateSerde.fromBytes).foreach { current =>
+      val updated = aggregator.minus(current, measure)
+      if (updated == aggregator.zero) batch.remove(key) else {
+        batch.put(key, aggregateSerde.toBytes(updated), System.currentTimeMillis)
+      }
+    }
+  }
+
+}
+
+/**
+  * The records of a state with the highest scores in each group, a lookup of the top n records reads
+  * only the first n entries of the group.
+  *
+  * @tparam G group key type
+  * @tparam S score type which must have a natural order, e.g. numbers or strings, see IndexKeyEncoding
+  * @tparam K primary key type of the state
+  */
+class TopKView[G, S, K](identifier: String,
+                        memstore: MemStore,
+                        groupSerde: => AbstractSerde[G],
+                        scoreSerde: AbstractSerde[S],
+                        primaryKeySerde: AbstractSerde[K]) extends MaterializedView[(G, S)](identifier, memstore) {
+
+  private val Entry: Byte = 2
+
+  private lazy val resolvedGroupSerde = groupSerde
+
+  private val serializeGroup: Any => Array[Byte] = group => resolvedGroupSerde.toBytes(group.asInstanceOf[G])
+
+  private def groupPrefix(group: G): Array[Byte] = Entry +: IndexKeyEncoding.encode(group, serializeGroup)
+
+  /**
+    * @param group group key
+    * @param n     maximum number of records to return
+    * @return primary keys and scores of the records of the group with the highest scores, in descending order
+    */
+  def top(group: G, n: Int): Seq[(K, S)] = {
+    val prefix = ByteBuffer.wrap(groupPrefix(group))
+    val sorted = memstore.keyOrder() != null
+    val underlying = if (sorted) memstore.iterator(prefix) else memstore.iterator(null)
+    try {
+      val entries = underlying.asScala
+      val ordered = if (sorted) entries.take(n) else {
+        entries.filter(entry => ByteUtils.startsWith(entry.getKey, prefix)).toList
+          .sortWith((a, b) => ByteUtils.compare(a.getKey, b.getKey) < 0).take(n).iterator
+      }
+      ordered.flatMap { entry =>
+        option(memstore.unwrap(entry.getKey, entry.getValue, -1)).map { byteRecord =>
+          val entryKey = byteRecord.key
+          val offset = ByteUtils.asIntValue(entryKey, entryKey.length - 4)
+          val primaryKey = util.Arrays.copyOfRange(entryKey, offset, entryKey.length - 4)
+          primaryKeySerde.fromBytes(primaryKey) -> scoreSerde.fromBytes(byteRecord.value)
+        }
+      }.toList
+    } finally {
+      underlying.close()
+    }
+  }
+
+  override protected def contribute(batch: Batch, primaryKey: Array[Byte], row: (G, S), timestamp: Long): Array[Byte] = {
+    val (group, score) = row
+    val prefix = groupPrefix(group)
+    //inverting the bytes of the self-delimiting score encoding reverses its order so the highest scores come first
+    val descendingScore = IndexKeyEncoding.encode(score, _ => throw new IllegalArgumentException(s"Score doesn't have a natural order: $score"))
+      .map(b => (~b).toByte)
+    val offset = prefix.length + descendingScore.length
+    val entryKey = new Array[Byte](offset + primaryKey.length + 4)
+    ByteUtils.copy(prefix, 0, entryKey, 0, prefix.length)
+    ByteUtils.copy(descendingScore, 0, entryKey, prefix.length, descendingScore.length)
+    ByteUtils.copy(primaryKey, 0, entryKey, offset, primaryKey.length)
+    ByteUtils.putIntValue(offset, entryKey, entryKey.length - 4)
+    batch.put(ByteBuffer.wrap(entryKey), scoreSerde.toBytes(score), timestamp)
+    entryKey
+  }
+
+  override protected def retract(batch: Batch, contribution: Array[Byte]): Unit = batch.remove(ByteBuffer.wrap(contribution))
+
+}
+
+/**
+  * Aggregate view of a partitioned state which merges the partial aggregates of all its partitions,
+  * e.g. of the partitions of a global state which are all available locally
+  */
+class MergedAggregateView[G, M, A](partials: Seq[AggregateView[G, M, A]]) {
+
+  private val aggregator = partials.head.aggregator
+
+  def apply(group: G): A = partials.map(view => view(group)).reduce(aggregator.combine(_, _))
+
+  def synced(implicit executor: ExecutionContext): Future[Unit] = Future.sequence(partials.map(_.synced)).map(_ => ())
+
+}
+
+/**
+  * Top-k view of a partitioned state which merges the top records of all its partitions
+  */
+class MergedTopKView[G, S: Ordering, K](partials: Seq[TopKView[G, S, K]]) {
+
+  def top(group: G, n: Int): Seq[(K, S)] = partials.flatMap(_.top(group, n)).sortBy(_._2)(Ordering[S].reverse).take(n)
+
+  def synced(implicit executor: ExecutionContext): Future[Unit] = Future.sequence(partials.map(_.synced)).map(_ => ())
+
+}
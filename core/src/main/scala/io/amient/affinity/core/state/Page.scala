@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.core.state
+
+import java.nio.{BufferUnderflowException, ByteBuffer}
+import java.util.Base64
+
+/**
+  * A bounded page of a range query
+  *
+  * @param entries key-value pairs of the page in the key order of the underlying memstore
+  * @param next    opaque continuation token which will resume the range query after the last entry of this page,
+  *                or None if this is the last page
+  */
+case class Page[K, V](entries: Seq[(K, V)], next: Option[String])
+
+/**
+  * Continuation tokens hold a cursor for each partition of the state store, a cursor either hasn't started yet,
+  * points after the last key that was returned or is exhausted.
+  */
+private[state] object PageToken {
+
+  sealed trait Cursor
+
+  case object Start extends Cursor
+
+  case class After(key: Array[Byte]) extends Cursor
+
+  case object Done extends Cursor
+
+  def encode(cursors: Seq[Cursor]): String = {
+    val size = cursors.map {
+      case After(key) => 5 + key.length
+      case _ => 1
+    }.sum
+    val buf = ByteBuffer.allocate(4 + size)
+    buf.putInt(cursors.size)
+    cursors.foreach {
+      case Start => buf.put(0.toByte)
+      case After(key) => buf.put(1.toByte).putInt(key.length).put(key)
+      case Done => buf.put(2.toByte)
+    }
+    Base64.getUrlEncoder.withoutPadding.encodeToString(buf.array)
+  }
+
+  def decode(token: String, numPartitions: Int): IndexedSeq[Cursor] = {
+    val buf = try ByteBuffer.wrap(Base64.getUrlDecoder.decode(token)) catch {
+      case e: IllegalArgumentException => throw new IllegalArgumentException("Invalid continuation token", e)
+    }
+    if (buf.remaining < 4 || buf.getInt != numPartitions) {
+      throw new IllegalArgumentException(s"Continuation token doesn't belong to a state with $numPartitions partitions")
+    }
+    //a truncated or tampered token can run out of bytes or declare a negative key length
+    try (0 until numPartitions).map { _ =>
+      buf.get match {
+        case 0 => Start
+        case 1 =>
+          val key = new Array[Byte](buf.getInt)
+          buf.get(key)
+          After(key)
+        case 2 => Done
+        case _ => throw new IllegalArgumentException("Invalid continuation token")
+      }
+    } catch {
+      case e@(_: BufferUnderflowException | _: NegativeArraySizeException) =>
+        throw new IllegalArgumentException("Invalid continuation token", e)
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.core.state
+
+import java.nio.ByteBuffer
+import java.util.concurrent.{ArrayBlockingQueue, BlockingQueue, TimeUnit}
+import java.util.{Comparator, NoSuchElementException, PriorityQueue}
+
+import io.amient.affinity.core.storage.Record
+import io.amient.affinity.core.util.CloseableIterator
+
+import scala.concurrent.{ExecutionContext, Future, Promise, blocking}
+import scala.util.control.NonFatal
+
+object ParallelScan {
+
+  val DefaultBufferSize = 256
+
+  val DefaultIdleTimeoutMs = 60000L
+
+  private case object End
+
+  private case class Failed(e: Throwable)
+
+}
+
+/**
+  * Scan of multiple sources, e.g. partitions of a global store, which are read concurrently by background tasks
+  * into bounded buffers so a slow consumer doesn't cause the sources to be materialized in memory.
+  *
+  * With a key order the records are k-way merged by their serialized keys, which gives a globally sorted result
+  * if each source is sorted in the same order; the merge only pulls as many records from each source as it needs
+  * so taking the first N records and closing the scan stops all the sources early.
+  * Without a key order the records are returned in the order in which the sources produced them.
+  *
+  * A scan which is abandoned without being closed doesn't hold the background tasks forever: a task whose buffer
+  * stays full for longer than idleTimeoutMs gives up and the scan fails if it is used again.
+  *
+  * @param sources       iterators of records paired with their serialized keys, they are closed by the scan
+  * @param keyOrder      order of the serialized keys in which each of the sources iterates, or None
+  * @param bufferSize    maximum number of records buffered for each source
+  * @param idleTimeoutMs how long the background tasks wait for the consumer to take a record from a full buffer
+  */
+class ParallelScan[K, V](sources: Seq[CloseableIterator[(Array[Byte], Record[K, V])]],
+                         keyOrder: Option[Comparator[ByteBuffer]],
+                         bufferSize: Int = ParallelScan.DefaultBufferSize,
+                         idleTimeoutMs: Long = ParallelScan.DefaultIdleTimeoutMs)
+                        (implicit ec: ExecutionContext) extends CloseableIterator[Record[K, V]] {
+
+  import ParallelScan._
+
+  @volatile private var closed = false
+
+  @volatile private var abandoned = false
+
+  private val queues: Seq[BlockingQueue[Any]] = keyOrder match {
+    case Some(_) => sources.map(_ => new ArrayBlockingQueue[Any](bufferSize))
+    case None =>
+      val shared = new ArrayBlockingQueue[Any](bufferSize * math.max(1, sources.size))
+      sources.map(_ => shared)
+  }
+
+  /**
+    * completed when the background task of the respective source terminates for any reason, including fatal errors
+    * which don't complete the task's future
+    */
+  private val producers: Seq[Promise[Unit]] = sources.map(_ => Promise[Unit]())
+
+  sources.zip(queues).zip(producers).foreach { case ((source, queue), terminated) =>
+    Future {
+      blocking {
+        try {
+          while (!closed && !abandoned && source.hasNext) enqueue(queue, source.next)
+          enqueue(queue, End)
+        } catch {
+          case NonFatal(e) => enqueue(queue, Failed(e))
+        } finally {
+          try source.close() finally terminated.success(())
+        }
+      }
+    }
+  }
+
+  /**
+    * producers give up waiting for space in the buffer once the scan has been closed or the consumer
+    * hasn't taken anything for longer than the idle timeout
+    */
+  private def enqueue(queue: BlockingQueue[Any], item: Any): Unit = {
+    val start = System.currentTimeMillis
+    while (!closed && !abandoned && !queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+      if (System.currentTimeMillis - start > idleTimeoutMs) abandoned = true
+    }
+  }
+
+  /**
+    * wait for the next item of the given sources, the producers are checked periodically so that the consumer
+    * doesn't wait forever for a producer which has terminated without signalling the end of its source
+    */
+  private def dequeue(queue: BlockingQueue[Any], from: Seq[Promise[Unit]]): Option[(Array[Byte], Record[K, V])] = {
+    var item = queue.poll(100, TimeUnit.MILLISECONDS)
+    while (item == null) {
+      if (abandoned) throw new IllegalStateException(s"Scan was abandoned after being idle for more than $idleTimeoutMs ms")
+      if (from.forall(_.isCompleted)) {
+        item = queue.poll()
+        if (item == null) throw new IllegalStateException("Scan source terminated without completing")
+      } else {
+        item = queue.poll(100, TimeUnit.MILLISECONDS)
+      }
+    }
+    item match {
+      case End => None
+      case Failed(e) => throw e
+      case item => Some(item.asInstanceOf[(Array[Byte], Record[K, V])])
+    }
+  }
+
+  private case class Head(key: ByteBuffer, record: Record[K, V], source: Int)
+
+  private val heads: PriorityQueue[Head] = keyOrder match {
+    case Some(order) => new PriorityQueue[Head](math.max(1, sources.size), new Comparator[Head] {
+      override def compare(a: Head, b: Head): Int = order.compare(a.key, b.key)
+    })
+    case None => null
+  }
+
+  private var initialized = false
+
+  private var pending = sources.size
+
+  private var nextRecord: Record[K, V] = null
+
+  private def pull(source: Int): Unit = dequeue(queues(source), List(producers(source))) match {
+    case Some((key, record)) => heads.add(Head(ByteBuffer.wrap(key), record, source))
+    case None => pending -= 1
+  }
+
+  override def hasNext: Boolean = {
+    if (nextRecord == null) {
+      if (heads != null) {
+        if (!initialized) {
+          initialized = true
+          sources.indices.foreach(pull)
+        }
+        val head = heads.poll()
+        if (head != null) {
+          nextRecord = head.record
+          pull(head.source)
+        }
+      } else {
+        while (nextRecord == null && pending > 0) dequeue(queues.head, producers) match {
+          case Some((_, record)) => nextRecord = record
+          case None => pending -= 1
+        }
+      }
+    }
+    nextRecord != null
+  }
+
+  override def next(): Record[K, V] = {
+    if (!hasNext) throw new NoSuchElementException
+    val result = nextRecord
+    nextRecord = null
+    result
+  }
+
+  override def close(): Unit = closed = true
+
+}
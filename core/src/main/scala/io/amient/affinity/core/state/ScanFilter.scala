@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.core.state
+
+import java.util.function.Supplier
+
+import io.amient.affinity.avro.AvroSchemaRegistry
+import io.amient.affinity.avro.record.AvroSerde
+import io.amient.affinity.core.util.{ByteUtils, ThreadLocalCache, TimeRange}
+import org.apache.avro.Schema
+import org.apache.avro.generic.{GenericDatumReader, GenericRecord}
+import org.apache.avro.io.DecoderFactory
+import org.apache.avro.util.Utf8
+
+import scala.collection.JavaConverters._
+
+/**
+  * Filter which is pushed down into a scan of a state store and evaluated on the serialized records,
+  * only the records which pass all of its predicates are deserialized.
+  *
+  * @param range time range of the records, evaluated before the record is copied out of the memstore
+  * @param key   predicate on the serialized key
+  * @param value predicate on the serialized value, see ScanFilter.avroField
+  * @param limit maximum number of records to return, -1 means unlimited
+  */
+case class ScanFilter(range: TimeRange = TimeRange.UNBOUNDED,
+                      key: Array[Byte] => Boolean = ScanFilter.All,
+                      value: Array[Byte] => Boolean = ScanFilter.All,
+                      limit: Int = -1) {
+
+  def withRange(range: TimeRange): ScanFilter = copy(range = range)
+
+  def withKey(predicate: Array[Byte] => Boolean): ScanFilter = {
+    val current = key
+    copy(key = bytes => current(bytes) && predicate(bytes))
+  }
+
+  def withValue(predicate: Array[Byte] => Boolean): ScanFilter = {
+    val current = value
+    copy(value = bytes => current(bytes) && predicate(bytes))
+  }
+
+  def withLimit(limit: Int): ScanFilter = copy(limit = limit)
+
+}
+
+object ScanFilter {
+
+  val All: Array[Byte] => Boolean = _ => true
+
+  /**
+    * Predicate on a single field of values serialized with an avro serde. For each writer schema
+    * a projection onto the field is compiled once so that evaluating the predicate only skips over
+    * the binary instead of constructing the whole record.
+    *
+    * @param registry  schema registry of the avro serde which wrote the values
+    * @param field     name of the field
+    * @param predicate predicate on the field value, strings are given as String and records as GenericRecord,
+    *                  the value is null if the writer schema doesn't have the field
+    * @return predicate on the serialized values
+    */
+  def avroField(registry: AvroSchemaRegistry, field: String)(predicate: Any => Boolean): Array[Byte] => Boolean = {
+    val readers = new ThreadLocalCache[Int, Option[GenericDatumReader[GenericRecord]]]
+    bytes => {
+      if (bytes == null || bytes.length < 5 || bytes(0) != AvroSerde.MAGIC) predicate(null) else {
+        val schemaId = ByteUtils.asIntValue(bytes, 1)
+        val reader = readers.getOrInitialize(schemaId, new Supplier[Option[GenericDatumReader[GenericRecord]]] {
+          override def get() = projection(registry.getSchema(schemaId), field)
+        })
+        reader match {
+          case None => predicate(null)
+          case Some(r) =>
+            val decoder = DecoderFactory.get().binaryDecoder(bytes, 5, bytes.length - 5, null)
+            predicate(r.read(null, decoder).get(0) match {
+              case utf8: Utf8 => utf8.toString
+              case other => other
+            })
+        }
+      }
+    }
+  }
+
+  private def projection(writerSchema: Schema, field: String): Option[GenericDatumReader[GenericRecord]] = {
+    if (writerSchema.getType != Schema.Type.RECORD) None else Option(writerSchema.getField(field)).map { f =>
+      val projected = Schema.createRecord(writerSchema.getName, writerSchema.getDoc, writerSchema.getNamespace, false,
+        List(new Schema.Field(f.name, f.schema, f.doc, f.defaultVal)).asJava)
+      new GenericDatumReader[GenericRecord](writerSchema, projected)
+    }
+  }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.core.state
+
+import java.nio.ByteBuffer
+import java.util
+
+/**
+  * Bounded cache of deserialized values of a state store, it is split into segments by the key hash, each of which
+  * is a least-recently-used map so that concurrent readers of different keys rarely contend on the same monitor.
+  *
+  * The cache doesn't know about the writes, the state store must invalidate the keys it modifies.
+  *
+  * @param maxEntries maximum number of cached values
+  */
+class ValueCache[V](maxEntries: Int) {
+
+  case class Entry(value: V, timestamp: Long)
+
+  private val numSegments = Math.max(1, Math.min(16, maxEntries / 64))
+
+  private val segments = Array.fill(numSegments) {
+    val segmentMaxEntries = maxEntries / numSegments
+    new util.LinkedHashMap[ByteBuffer, Entry](16, 0.75f, true) {
+      override def removeEldestEntry(eldest: util.Map.Entry[ByteBuffer, Entry]): Boolean = size > segmentMaxEntries
+    }
+  }
+
+  private def segment(key: ByteBuffer) = segments((key.hashCode & Int.MaxValue) % numSegments)
+
+  /**
+    * @param key   serialized key
+    * @param ttlMs time-to-live of the state records, entries which have expired are not returned
+    * @return cached entry or None
+    */
+  def get(key: ByteBuffer, ttlMs: Long): Option[Entry] = {
+    val s = segment(key)
+    val entry = s.synchronized(s.get(key))
+    if (entry == null || (ttlMs > 0 && entry.timestamp + ttlMs < System.currentTimeMillis)) None else Some(entry)
+  }
+
+  def put(key: ByteBuffer, entry: Entry): Unit = {
+    val s = segment(key)
+    s.synchronized(s.put(key, entry))
+  }
+
+  /**
+    * remove the key only if it is still associated with the given entry
+    */
+  def remove(key: ByteBuffer, entry: Entry): Unit = {
+    val s = segment(key)
+    s.synchronized(s.remove(key, entry))
+  }
+
+  def invalidate(key: ByteBuffer): Unit = {
+    val s = segment(key)
+    s.synchronized(s.remove(key))
+  }
+
+  def clear(): Unit = segments.foreach(s => s.synchronized(s.clear()))
+
+  def size: Int = segments.map(s => s.synchronized(s.size)).sum
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.core.util
+
+import java.util.function.BiConsumer
+
+import scala.concurrent.{ExecutionContext, Future, Promise}
+import scala.util.Try
+
+object JavaFutures {
+
+  /**
+    * Convert a java future into a scala future. JavaPromise and futures which are already completed
+    * are converted without blocking, other futures are awaited on a thread of the given execution context.
+    *
+    * @param jf java future
+    * @param executor execution context used for awaiting futures that cannot be listened to
+    * @tparam T result type
+    * @return scala future
+    */
+  def asScala[T](jf: java.util.concurrent.Future[T])(implicit executor: ExecutionContext): Future[T] = jf match {
+    case promise: JavaPromise[T @unchecked] =>
+      val p = Promise[T]()
+      promise.onComplete(new BiConsumer[T, Exception] {
+        override def accept(result: T, exception: Exception): Unit = {
+          if (exception != null) p.failure(exception) else p.success(result)
+        }
+      })
+      p.future
+    case completed if completed.isDone => Future.fromTry(Try(completed.get))
+    case _ => Future(jf.get)
+  }
+
+}
@@ -19,31 +19,152 @@
 
 package io.amient.affinity.core.util
 
+import java.util
+import java.util.concurrent.{Executors, ScheduledExecutorService, ScheduledFuture, ThreadFactory, TimeUnit}
+
 import io.amient.affinity.core.serde.AbstractSerde
 import io.amient.affinity.core.storage.{LogStorage, LogStorageConf, Record}
 
-import scala.concurrent.{ExecutionContext, Future}
+import scala.collection.JavaConverters._
+import scala.concurrent.{ExecutionContext, Future, Promise}
 import scala.language.existentials
+import scala.util.{Failure, Success, Try}
 
-class OutputDataStream[K, V](keySerde: AbstractSerde[_ >: K], valSerde: AbstractSerde[_ >: V], conf: LogStorageConf) {
+/**
+  * Output stream which appends records to the configured LogStorage.
+  *
+  * If output.linger.ms is greater than zero, records are buffered and sent together when the linger time
+  * expires or when output.batch.size records are buffered. If a combine function is given, records with
+  * the same key that are buffered together are merged into a single record, e.g. (_, latest) => latest
+  * conflates the buffered records so that only the latest value of each key is written. A delete replaces
+  * any buffered value of the key and a value that follows a delete replaces the delete.
+  *
+  * The futures returned by append() and delete() are completed by the storage callbacks without blocking a thread,
+  * merged records complete with the position of the record into which they were merged.
+  */
+class OutputDataStream[K, V](keySerde: AbstractSerde[_ >: K],
+                             valSerde: AbstractSerde[_ >: V],
+                             conf: LogStorageConf,
+                             combine: Option[(V, V) => V] = None) {
 
   lazy val storage = LogStorage.newInstanceEnsureExists(conf)
 
+  private implicit val executor = ExecutionContext.Implicits.global
+
+  private val lingerMs: Long = conf.OutputLingerMs()
+
+  private val batchSize: Int = conf.OutputBatchSize()
+
+  private class Pending(var record: Record[K, V], val promise: Promise[Comparable[_]])
+
+  //buffered records are keyed only when combining, otherwise they are kept in the order of appending
+  private val buffer = new util.LinkedHashMap[Any, Pending]()
+
+  private var sequence = 0L
+
+  //linger timer of the records currently buffered, cancelled when they are flushed for any other reason
+  private var linger: ScheduledFuture[_] = null
+
+  //flushes from the linger timer and from the appending threads are serialized so that batches are sent in order
+  private val flushLock = new Object
+
+  private lazy val scheduler: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+    override def newThread(r: Runnable): Thread = {
+      val thread = new Thread(r, "output-stream-linger")
+      thread.setDaemon(true)
+      thread
+    }
+  })
+
   def append(record: Record[K, V]): Future[_ <: Comparable[_]] = {
-    val binaryRecord = new Record(keySerde.toBytes(record.key), valSerde.toBytes(record.value), record.timestamp)
-    val jf = storage.append(binaryRecord)
-    Future(jf.get)(ExecutionContext.Implicits.global)
+    if (lingerMs <= 0) send(record) else buffer(record)
   }
 
   def delete(key: K): Future[_ <: Comparable[_]] = {
-    val jf = storage.delete(keySerde.toBytes(key))
-    Future(jf.get)(ExecutionContext.Implicits.global)
+    if (lingerMs <= 0) send(new Record[K, V](key, null.asInstanceOf[V], EventTime.unix, true)) else {
+      buffer(new Record[K, V](key, null.asInstanceOf[V], EventTime.unix, true))
+    }
   }
 
-  def flush(): Unit = storage.flush()
+  private def send(record: Record[K, V]): Future[_ <: Comparable[_]] = {
+    val jf = if (record.tombstone) storage.delete(keySerde.toBytes(record.key)) else {
+      storage.append(new Record(keySerde.toBytes(record.key), valSerde.toBytes(record.value), record.timestamp))
+    }
+    JavaFutures.asScala(jf)
+  }
+
+  private def buffer(record: Record[K, V]): Future[_ <: Comparable[_]] = {
+    val (future, full) = buffer.synchronized {
+      val pending: Pending = combine match {
+        case None => null
+        case Some(f) => buffer.get(record.key) match {
+          case null => null
+          case existing =>
+            existing.record = if (existing.record.tombstone || record.tombstone) record else {
+              new Record[K, V](record.key, f(existing.record.value, record.value), math.max(existing.record.timestamp, record.timestamp))
+            }
+            existing
+        }
+      }
+      if (pending != null) (pending.promise.future, false) else {
+        if (buffer.isEmpty) linger = scheduler.schedule(new Runnable {
+          override def run(): Unit = flushBuffer()
+        }, lingerMs, TimeUnit.MILLISECONDS)
+        val created = new Pending(record, Promise[Comparable[_]]())
+        sequence += 1
+        buffer.put(if (combine.isDefined) record.key else sequence, created)
+        (created.promise.future, buffer.size >= batchSize)
+      }
+    }
+    if (full) flushBuffer()
+    future
+  }
+
+  /**
+    * send all buffered records to the storage as one batch without waiting for their completion, the storage
+    * distributes the batch among its partitions; every buffered record is completed, records which can't be
+    * serialized fail individually and if the storage rejects the batch all of its records fail
+    */
+  private def flushBuffer(): Unit = flushLock.synchronized {
+    val batch = buffer.synchronized {
+      if (linger != null) {
+        linger.cancel(false)
+        linger = null
+      }
+      if (buffer.isEmpty) Nil else {
+        val pending = buffer.values.asScala.toList
+        buffer.clear()
+        pending
+      }
+    }
+    val serialized = batch.flatMap { pending =>
+      Try {
+        val record = pending.record
+        if (record.tombstone) new Record[Array[Byte], Array[Byte]](keySerde.toBytes(record.key), null, record.timestamp, true)
+        else new Record(keySerde.toBytes(record.key), valSerde.toBytes(record.value), record.timestamp)
+      } match {
+        case Success(record) => Some((pending, record))
+        case Failure(e) =>
+          pending.promise.failure(e)
+          None
+      }
+    }
+    if (serialized.nonEmpty) Try(storage.appendAll(serialized.map(_._2).asJava).asScala) match {
+      case Success(writes) => serialized.zip(writes).foreach {
+        case ((pending, _), write) => pending.promise.completeWith(JavaFutures.asScala(write))
+      }
+      case Failure(e) => serialized.foreach(_._1.promise.failure(e))
+    }
+  }
+
+  def flush(): Unit = {
+    flushBuffer()
+    storage.flush()
+  }
 
   def close(): Unit = {
     try flush() finally try storage.close() finally {
+      if (lingerMs > 0) scheduler.shutdownNow()
       keySerde.close()
       valSerde.close()
     }
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2016 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.core.actor
+
+import java.util
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ConcurrentHashMap, LinkedBlockingQueue, TimeUnit}
+
+import io.amient.affinity.core.cluster.Node
+import io.amient.affinity.core.storage.{LogEntry, LogStorageConf, Record}
+import io.amient.affinity.core.util.{AffinityTestBase, MemoryLogStorage}
+import org.scalatest.{BeforeAndAfterAll, FlatSpec, Matchers}
+
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Future, Promise}
+import scala.language.postfixOps
+
+object GatewayStreamSpec {
+
+  val pending = new ConcurrentHashMap[String, Promise[Any]]()
+
+  val storages = new ConcurrentHashMap[Class[_], GatewayStreamSpecStorage]()
+
+  val combined = new LinkedBlockingQueue[String]()
+
+  val processed = new LinkedBlockingQueue[String]()
+
+  val running = new AtomicInteger(0)
+
+  val maxRunning = new AtomicInteger(0)
+
+}
+
+/**
+  * each input stream of the spec has its own subclass so that the test can find its storage
+  */
+class GatewayStreamSpecStorage(conf: LogStorageConf) extends MemoryLogStorage(conf) {
+
+  val commits = new LinkedBlockingQueue[util.Map[Integer, _]]()
+
+  /**
+    * true for every pause() and false for every unpause()
+    */
+  val pauses = new LinkedBlockingQueue[java.lang.Boolean]()
+
+  @volatile private var paused = false
+
+  GatewayStreamSpec.storages.put(getClass, this)
+
+  override def commit(positions: util.Map[Integer, _]): util.concurrent.Future[java.lang.Long] = {
+    commits.add(new util.HashMap[Integer, Any](positions))
+    super.commit(positions)
+  }
+
+  override def pause(): Unit = {
+    paused = true
+    pauses.add(true)
+  }
+
+  override def unpause(): Unit = {
+    paused = false
+    pauses.add(false)
+  }
+
+  override def fetch(unbounded: Boolean): util.Iterator[LogEntry[java.lang.Long]] = {
+    if (paused) {
+      Thread.sleep(10)
+      null
+    } else {
+      super.fetch(unbounded)
+    }
+  }
+}
+
+class CombinerSpecStorage(conf: LogStorageConf) extends GatewayStreamSpecStorage(conf)
+
+class CombinerCommitSpecStorage(conf: LogStorageConf) extends GatewayStreamSpecStorage(conf)
+
+class BackpressureRecordsSpecStorage(conf: LogStorageConf) extends GatewayStreamSpecStorage(conf)
+
+class BackpressureBytesSpecStorage(conf: LogStorageConf) extends GatewayStreamSpecStorage(conf)
+
+class ParallelSpecStorage(conf: LogStorageConf) extends GatewayStreamSpecStorage(conf)
+
+class GatewayStreamSpec extends FlatSpec with AffinityTestBase with BeforeAndAfterAll with Matchers {
+
+  import GatewayStreamSpec._
+
+  val specTimeout = 10 seconds
+
+  val node = new Node(configure("gatewaystreamspec"))
+
+  override def beforeAll(): Unit = try {
+    Await.result(node.start(new GatewayStream {
+      input[Array[Byte], Array[Byte]]("input-test") { record =>
+        processValue(new String(record.value))
+      }
+
+      input[Array[Byte], Array[Byte]]("combiner-test", concat) { record =>
+        combined.add(new String(record.key) + "=" + (if (record.value == null) "null" else new String(record.value)))
+        Future.successful(true)
+      }
+
+      input[Array[Byte], Array[Byte]]("combiner-commit-test", concat) { record =>
+        processValue(new String(record.value))
+      }
+
+      input[Array[Byte], Array[Byte]]("backpressure-records-test") { record =>
+        processValue(new String(record.value))
+      }
+
+      input[Array[Byte], Array[Byte]]("backpressure-bytes-test") { record =>
+        processValue(new String(record.value))
+      }
+
+      input[Array[Byte], Array[Byte]]("parallel-test") { record =>
+        val concurrent = running.incrementAndGet()
+        var max = maxRunning.get
+        while (concurrent > max && !maxRunning.compareAndSet(max, concurrent)) max = maxRunning.get
+        Thread.sleep(20) //the processing blocks the worker thread
+        running.decrementAndGet()
+        processed.add(new String(record.value))
+        Future.successful(true)
+      }
+    }), specTimeout)
+    node.awaitClusterReady()
+  } finally {
+    super.beforeAll()
+  }
+
+  override def afterAll(): Unit = try {
+    node.shutdown()
+  } finally {
+    super.afterAll()
+  }
+
+  private def concat(a: Array[Byte], b: Array[Byte]): Array[Byte] = a ++ "+".getBytes ++ b
+
+  /**
+    * values starting with `async` are processed only when the test completes their promise
+    */
+  private def processValue(value: String): Future[Any] = {
+    if (value.startsWith("async")) {
+      val promise = Promise[Any]()
+      pending.put(value, promise)
+      promise.future
+    } else {
+      Future.successful(true)
+    }
+  }
+
+  private def storage[S <: GatewayStreamSpecStorage](cls: Class[S]): S = {
+    while (!storages.containsKey(cls)) Thread.sleep(10)
+    storages.get(cls).asInstanceOf[S]
+  }
+
+  private def append(storage: GatewayStreamSpecStorage, values: String*): Unit = {
+    appendRecords(storage, values.map(value => value -> value): _*)
+  }
+
+  private def appendRecords(storage: GatewayStreamSpecStorage, records: (String, String)*): Unit = {
+    records.foreach { case (key, value) =>
+      storage.append(new Record(key.getBytes, if (value == null) null else value.getBytes, System.currentTimeMillis()))
+    }
+    storage.flush()
+  }
+
+  private def awaitPending(value: String): Promise[Any] = {
+    val deadline = System.currentTimeMillis() + specTimeout.toMillis
+    while (!pending.containsKey(value) && System.currentTimeMillis() < deadline) Thread.sleep(10)
+    pending.get(value)
+  }
+
+  private def awaitCommit(storage: GatewayStreamSpecStorage, position: Long): Unit = {
+    val deadline = System.currentTimeMillis() + specTimeout.toMillis
+    var committed = -1L
+    while (committed < position && System.currentTimeMillis() < deadline) {
+      val commit = storage.commits.poll(100, TimeUnit.MILLISECONDS)
+      if (commit != null) {
+        committed = commit.get(0).asInstanceOf[java.lang.Long]
+        committed should be <= position
+      }
+    }
+    committed should be(position)
+  }
+
+  private def awaitCombined(n: Int): List[String] = {
+    (1 to n).toList.map(_ => combined.poll(specTimeout.toMillis, TimeUnit.MILLISECONDS))
+  }
+
+  behavior of "GatewayStream"
+
+  it should "commit positions of work completed immediately" in {
+    append(storage(classOf[GatewayStreamSpecStorage]), "sync-0", "sync-1")
+    awaitCommit(storage(classOf[GatewayStreamSpecStorage]), 1L)
+  }
+
+  it should "not advance the watermark past incomplete work" in {
+    val s = storage(classOf[GatewayStreamSpecStorage])
+    append(s, "async-2", "sync-3", "async-4")
+    val first = awaitPending("async-2")
+    val last = awaitPending("async-4")
+    last.success(true)
+    Thread.sleep(500) //several commit intervals
+    s.commits.poll(100, TimeUnit.MILLISECONDS) should be(null)
+    first.success(true)
+    awaitCommit(s, 4L)
+  }
+
+  behavior of "GatewayStream with a combiner"
+
+  it should "merge the values of the same key consumed within a window" in {
+    val s = storage(classOf[CombinerSpecStorage])
+    appendRecords(s, "a" -> "1", "a" -> "2", "b" -> "1", "a" -> "3", "c" -> "1")
+    awaitCombined(3) should be(List("a=1+2+3", "b=1", "c=1"))
+  }
+
+  it should "replace the combined value with a null value instead of combining it" in {
+    val s = storage(classOf[CombinerSpecStorage])
+    appendRecords(s, "d" -> "1", "d" -> null, "e" -> null, "e" -> "2", "f" -> "1")
+    awaitCombined(3) should be(List("d=null", "e=2", "f=1"))
+  }
+
+  it should "flush the window when it holds max.inflight.records keys" in {
+    val s = storage(classOf[CombinerSpecStorage])
+    appendRecords(s, "g" -> "1", "h" -> "1")
+    Thread.sleep(500) //the commit interval of the stream is much longer
+    combined.poll(100, TimeUnit.MILLISECONDS) should be(null)
+    appendRecords(s, "i" -> "1")
+    awaitCombined(3) should be(List("g=1", "h=1", "i=1"))
+  }
+
+  it should "not commit positions past a window whose records haven't been processed" in {
+    val s = storage(classOf[CombinerCommitSpecStorage])
+    appendRecords(s, "x" -> "async-x", "y" -> "sync-y")
+    val held = awaitPending("async-x")
+    //the following window completes immediately but its position is behind the held one
+    appendRecords(s, "z" -> "sync-z")
+    Thread.sleep(500) //several commit intervals
+    s.commits.poll(100, TimeUnit.MILLISECONDS) should be(null)
+    held.success(true)
+    awaitCommit(s, 2L)
+  }
+
+  behavior of "GatewayStream with a slow processor"
+
+  it should "pause the consumer at max.inflight.records and unpause it only below half of it" in {
+    val s = storage(classOf[BackpressureRecordsSpecStorage])
+    append(s, (0 to 5).map(i => s"async-r$i"): _*)
+    val held = (0 to 3).map(i => awaitPending(s"async-r$i"))
+    s.pauses.poll(specTimeout.toMillis, TimeUnit.MILLISECONDS) should be(true)
+    Thread.sleep(300)
+    pending.containsKey("async-r4") should be(false)
+    held(0).success(true) //3 of 4 records still in flight
+    Thread.sleep(300)
+    s.pauses.poll(100, TimeUnit.MILLISECONDS) should be(null)
+    pending.containsKey("async-r4") should be(false)
+    held(1).success(true) //2 of 4 records in flight
+    s.pauses.poll(specTimeout.toMillis, TimeUnit.MILLISECONDS) should be(false)
+    val resumed = (4 to 5).map(i => awaitPending(s"async-r$i"))
+    resumed.foreach(_ should not be null)
+    (held.drop(2) ++ resumed).foreach(_.success(true))
+  }
+
+  it should "pause the consumer at max.inflight.bytes and unpause it only below half of it" in {
+    val s = storage(classOf[BackpressureBytesSpecStorage])
+    //keys and values of 8 bytes each, i.e. 3 records fill the 48 bytes
+    append(s, (0 to 3).map(i => s"async-b$i"): _*)
+    val held = (0 to 2).map(i => awaitPending(s"async-b$i"))
+    s.pauses.poll(specTimeout.toMillis, TimeUnit.MILLISECONDS) should be(true)
+    Thread.sleep(300)
+    pending.containsKey("async-b3") should be(false)
+    held(0).success(true) //32 of 48 bytes still in flight
+    Thread.sleep(300)
+    s.pauses.poll(100, TimeUnit.MILLISECONDS) should be(null)
+    pending.containsKey("async-b3") should be(false)
+    held(1).success(true) //16 of 48 bytes in flight
+    s.pauses.poll(specTimeout.toMillis, TimeUnit.MILLISECONDS) should be(false)
+    val resumed = awaitPending("async-b3")
+    resumed should not be null
+    held(2).success(true)
+    resumed.success(true)
+  }
+
+  behavior of "GatewayStream with parallelism"
+
+  it should "process records of the same key in order and records of different keys in parallel" in {
+    val s = storage(classOf[ParallelSpecStorage])
+    //keys which are dispatched to different workers of the 4
+    val keys = (0 until 100).map(i => s"k$i")
+      .groupBy(key => (util.Arrays.hashCode(key.getBytes) & Int.MaxValue) % 4).values.map(_.head).take(3).toList
+    keys.size should be(3)
+    val records = for (seq <- 0 until 5; key <- keys) yield key -> s"$key:$seq"
+    appendRecords(s, records: _*)
+    val result = (1 to records.size).toList.map(_ => processed.poll(specTimeout.toMillis, TimeUnit.MILLISECONDS))
+    result.forall(_ != null) should be(true)
+    val byKey = result.map(_.split(":")).groupBy(_(0)).mapValues(_.map(_(1).toInt))
+    keys.foreach(key => byKey(key) should be(0 until 5))
+    maxRunning.get should be > 1
+  }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.core.actor
+
+import akka.actor.{Actor, ActorRef, Props}
+import akka.pattern.ask
+import akka.util.Timeout
+import com.typesafe.config.ConfigFactory
+import io.amient.affinity.avro.MemorySchemaRegistry
+import io.amient.affinity.core.actor.Container.PartitionOnline
+import io.amient.affinity.core.cluster.{BootstrapScheduler, CoordinatorEmbedded}
+import io.amient.affinity.core.state.{KVStoreConf, KVStoreLocal}
+import io.amient.affinity.core.storage.{FlushingMemoryLogStorage, MemStoreSimpleMap}
+import io.amient.affinity.{AffinityActorSystem, Conf}
+import org.scalatest.{BeforeAndAfterAll, FlatSpecLike, Matchers}
+
+import scala.collection.JavaConverters._
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Promise}
+import scala.language.postfixOps
+
+class PartitionReplicaSpec extends FlatSpecLike with Matchers with BeforeAndAfterAll {
+
+  val specTimeout = 5 seconds
+
+  implicit val timeout = Timeout(specTimeout)
+
+  val system = AffinityActorSystem.create(ConfigFactory.parseMap(Map(
+    Conf.Affi.SystemName.path -> "partition-replica-spec",
+    Conf.Affi.Avro.Class.path -> classOf[MemorySchemaRegistry].getName,
+    Conf.Affi.Coordinator.Class.path -> classOf[CoordinatorEmbedded].getName,
+    Conf.Affi.Node.BootstrapParallelism.path -> "1"
+  ).asJava))
+
+  override def afterAll: Unit = system.terminate()
+
+  val store = KVStoreLocal.create[String, String]("replica-store", 0, KVStoreConf(ConfigFactory.parseMap(Map(
+    KVStoreConf.MemStore.Class.path -> classOf[MemStoreSimpleMap].getName,
+    KVStoreConf.Storage.Class.path -> classOf[FlushingMemoryLogStorage].getName
+  ).asJava)), 1, system)
+
+  store.boot()
+
+  val (_, token) = Await.result(store.replaceWithToken("a", "1"), specTimeout)
+
+  /**
+    * the partition starts as a standby and bootstraps the store which already contains the written record
+    */
+  val partition: ActorRef = {
+    val online = Promise[ActorRef]()
+    system.actorOf(Props(new Actor {
+      context.actorOf(Props(new Partition {
+        state("store", store)
+      }), name = "0")
+
+      override def receive: Receive = {
+        case PartitionOnline(p) => online.trySuccess(p)
+        case _ =>
+      }
+    }), name = "replica-spec")
+    Await.result(online.future, specTimeout)
+  }
+
+  val master = system.actorOf(Props(new Actor {
+    override def receive: Receive = {
+      case request@ReadReplica(_, key, _) => request(sender) ! Some(s"master:$key")
+    }
+  }))
+
+  behavior of "Partition"
+
+  it should "serve a replica read in standby when the state is consistent with the token" in {
+    token should not be empty
+    Await.result(partition ? ReplicaDelivery(ReadReplica("store", "a", token), master), specTimeout) should be(Some("1"))
+  }
+
+  it should "forward a replica read to the master when the state is not consistent with the token" in {
+    val ahead = Some(Long.MaxValue)
+    Await.result(partition ? ReplicaDelivery(ReadReplica("store", "a", ahead), master), specTimeout) should be(Some("master:a"))
+  }
+
+  it should "hold reads while becoming a master and serve them when the bootstrap completes" in {
+    //the only bootstrap slot is taken so the transition cannot complete until it's released
+    val blocker = Await.result(BootstrapScheduler.forActorSystem(system).admit("replica-spec/blocker", master = true), specTimeout)
+    Await.result(partition ? BecomeMaster(), specTimeout)
+    val read = partition ? ReadReplica("store", "a")
+    Thread.sleep(300)
+    read.isCompleted should be(false)
+    blocker.release()
+    Await.result(read, specTimeout) should be(Some("1"))
+  }
+
+}
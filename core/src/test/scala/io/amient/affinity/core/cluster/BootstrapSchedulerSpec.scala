@@ -0,0 +1,91 @@
+package io.amient.affinity.core.cluster
+
+import java.util.concurrent.{ConcurrentLinkedQueue, CountDownLatch, TimeUnit}
+
+import com.typesafe.config.ConfigFactory
+import io.amient.affinity.core.cluster.Node.NodeConf
+import org.scalatest.{FlatSpec, Matchers}
+
+import scala.collection.JavaConverters._
+
+class BootstrapSchedulerSpec extends FlatSpec with Matchers {
+
+  val template = new NodeConf
+
+  def scheduler(parallelism: Int) = new BootstrapScheduler(new NodeConf().apply(ConfigFactory.parseMap(Map(
+    template.BootstrapParallelism.path -> parallelism
+  ).asJava)))
+
+  behavior of "BootstrapScheduler"
+
+  it should "admit partitions becoming masters before waiting standbys" in {
+    val s = scheduler(1)
+    val order = new ConcurrentLinkedQueue[String]()
+    val release = new CountDownLatch(1)
+    val running = new CountDownLatch(1)
+    def run(task: String, master: Boolean, latch: Option[CountDownLatch] = None) = new Thread {
+      override def run(): Unit = s(task, master) { _ =>
+        order.add(task)
+        running.countDown()
+        latch.foreach(_.await())
+      }
+    }
+    val first = run("first", master = false, Some(release))
+    first.start()
+    running.await(5, TimeUnit.SECONDS)
+    val standby = run("standby", master = false)
+    standby.start()
+    Thread.sleep(100)
+    val master = run("master", master = true)
+    master.start()
+    Thread.sleep(100)
+    s.progress.keySet should be(Set("first"))
+    release.countDown()
+    List(first, standby, master).foreach(_.join(5000))
+    order.asScala.toList should be(List("first", "master", "standby"))
+  }
+
+  it should "report progress of running bootstraps" in {
+    val s = scheduler(2)
+    s("p", master = true) { listener =>
+      listener.onRecord("store", 100, 3)
+      listener.onRecord("store", 100, 2)
+      s.progress("p").recordsProcessed should be(2L)
+      s.progress("p").recordsRemaining should be(2L)
+      listener.onComplete("store", 2L)
+      s.progress("p").recordsRemaining should be(0L)
+    }
+    s.progress should be(Map.empty)
+  }
+
+  it should "admit asynchronously and give the slot to the next waiting bootstrap when a permit is released" in {
+    val s = scheduler(1)
+    val first = s.admit("first", master = false)
+    first.isCompleted should be(true)
+    val second = s.admit("second", master = false)
+    second.isCompleted should be(false)
+    an[IllegalStateException] should be thrownBy {
+      first.value.get.get { _ => throw new IllegalStateException("failed bootstrap") }
+    }
+    second.isCompleted should be(true)
+    val third = s.admit("third", master = true)
+    third.isCompleted should be(false)
+    second.value.get.get.release()
+    second.value.get.get.release()
+    third.isCompleted should be(true)
+    s.admit("fourth", master = true).isCompleted should be(false)
+  }
+
+  it should "refuse to run a bootstrap with a permit that was already released" in {
+    val s = scheduler(1)
+    val permit = s.admit("first", master = true).value.get.get
+    permit.release()
+    val next = s.admit("second", master = true)
+    next.isCompleted should be(true)
+    an[IllegalStateException] should be thrownBy permit(_ => ())
+    s.admit("third", master = true).isCompleted should be(false)
+    next.value.get.get(_ => ())
+    an[IllegalStateException] should be thrownBy next.value.get.get(_ => ())
+  }
+
+}
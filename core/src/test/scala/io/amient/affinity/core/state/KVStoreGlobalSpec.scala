@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.core.state
+
+import akka.actor.{Actor, Props}
+import akka.serialization.SerializationExtension
+import com.typesafe.config.ConfigFactory
+import io.amient.affinity.avro.MemorySchemaRegistry
+import io.amient.affinity.core.actor.KeySerialization
+import io.amient.affinity.core.any2ref
+import io.amient.affinity.core.cluster.CoordinatorEmbedded
+import io.amient.affinity.core.serde.Serde
+import io.amient.affinity.core.storage.{ExampleCompoundKey, MemStoreSortedMap}
+import io.amient.affinity.core.util.TimeRange
+import io.amient.affinity.{AffinityActorSystem, Conf}
+import org.scalatest.{BeforeAndAfterAll, FlatSpecLike, Matchers}
+
+import scala.collection.JavaConverters._
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Promise}
+import scala.language.postfixOps
+import scala.reflect.ClassTag
+
+class KVStoreGlobalSpec extends FlatSpecLike with Matchers with BeforeAndAfterAll {
+
+  val specTimeout = 5 seconds
+
+  val cfg = ConfigFactory.parseMap(Map(
+    Conf.Affi.SystemName.path -> "kv-store-global-spec",
+    Conf.Affi.Avro.Class.path -> classOf[MemorySchemaRegistry].getName,
+    //the akka serializers and the serdes of the stores are separate instances which must share the schemas
+    "affinity.avro.schema.registry.id" -> "47",
+    Conf.Affi.Coordinator.Class.path -> classOf[CoordinatorEmbedded].getName
+  ).asJava)
+
+  val system = AffinityActorSystem.create(cfg)
+
+  override def afterAll: Unit = system.terminate()
+
+  /**
+    * global stores are created by gateways, here by an actor which only provides the context
+    */
+  def createGlobal[K: ClassTag, V: ClassTag](identifier: String, partitions: Int): KVStoreGlobal[K, V] = {
+    val stateConf = KVStoreConf(ConfigFactory.parseMap(Map(
+      KVStoreConf.MemStore.Class.path -> classOf[MemStoreSortedMap].getName,
+      KVStoreConf.Partitions.path -> partitions.toString
+    ).asJava))
+    val created = Promise[KVStoreGlobal[K, V]]()
+    system.actorOf(Props(new Actor {
+      created.complete(scala.util.Try(new KVStoreGlobal[K, V](identifier, stateConf, context)))
+
+      override def receive: Receive = Actor.emptyBehavior
+    }), name = identifier + "-owner")
+    Await.result(created.future, specTimeout)
+  }
+
+  behavior of "KVStoreGlobal"
+
+  it should "reject range pages of no records" in {
+    val store = createGlobal[String, String]("page-size-store", 3)
+    an[IllegalArgumentException] should be thrownBy store.rangePage(TimeRange.UNBOUNDED, 0, None)
+    an[IllegalArgumentException] should be thrownBy store.rangePage(TimeRange.UNBOUNDED, -1, None)
+    store.rangePage(TimeRange.UNBOUNDED, 1, None) should be(Page(Seq.empty, None))
+  }
+
+  it should "route keys with the cached serializers to the same partitions and bytes as akka serialization" in {
+    val serialization = SerializationExtension(system)
+    val keySerialization = new KeySerialization(system)
+    def verify[K: ClassTag](identifier: String, keys: K*): Unit = {
+      val store = createGlobal[K, String](identifier, 5)
+      val keySerde = Serde.of[K](system.settings.config)
+      keys.foreach { key =>
+        val akkaBytes = serialization.serialize(any2ref(key)).get
+        keySerialization(key) should be(akkaBytes)
+        val envelope = store.route(key)
+        envelope.partition should be(store.partitioner.partition(akkaBytes, 5))
+        envelope.bytes should be(keySerde.toBytes(key))
+      }
+    }
+    verify[Int]("route-int-store", 0, 1, -1, Int.MaxValue)
+    verify[Long]("route-long-store", 0L, 1L, Long.MinValue)
+    verify[String]("route-string-store", "", "a", "key-1")
+    verify[ExampleCompoundKey]("route-avro-store", ExampleCompoundKey(1L, "a", 1), ExampleCompoundKey(2L, "b", 3))
+  }
+
+}
@@ -19,24 +19,56 @@
 
 package io.amient.affinity.core.storage
 
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.util.Comparator
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicInteger
+
 import com.typesafe.config.ConfigFactory
 import io.amient.affinity.avro.MemorySchemaRegistry
 import io.amient.affinity.avro.record.{AvroRecord, Fixed}
 import io.amient.affinity.core.cluster.CoordinatorEmbedded
-import io.amient.affinity.core.state.{KVStoreConf, KVStoreLocal}
-import io.amient.affinity.core.util.{EventTime, TimeRange}
+import io.amient.affinity.core.state.{Aggregator, KVStoreConf, KVStoreLocal, ParallelScan, ScanFilter}
+import io.amient.affinity.core.storage.rocksdb.MemStoreRocksDb
+import io.amient.affinity.core.util.{ByteUtils, CloseableIterator, EventTime, MemoryLogStorage, TimeRange}
 import io.amient.affinity.{AffinityActorSystem, Conf}
 import org.scalatest.{BeforeAndAfterAll, FlatSpecLike, Matchers}
 
 import scala.collection.JavaConverters._
 import scala.concurrent.duration._
-import scala.concurrent.{Await, Future}
+import scala.concurrent.{Await, Future, Promise}
 import scala.language.postfixOps
 
 case class ExampleCompoundKey(@Fixed key1:Long, @Fixed(1) key2: String, subkey: Int) extends AvroRecord
 
 case class ExpirableValue(data: String, val eventTimeUnix: Long) extends AvroRecord with EventTime
 
+/**
+  * memory log storage whose writes complete immediately
+  */
+class FlushingMemoryLogStorage(conf: LogStorageConf) extends MemoryLogStorage(conf) {
+  override def append(record: Record[Array[Byte], Array[Byte]]): java.util.concurrent.Future[java.lang.Long] = {
+    val result = super.append(record)
+    flush()
+    result
+  }
+}
+
+object TransactionalMemoryLogStorage {
+  @volatile var listener: TransactionListener = null
+}
+
+/**
+  * memory log storage which pretends to be transactional, the transaction outcome is signalled by the test
+  */
+class TransactionalMemoryLogStorage(conf: LogStorageConf) extends FlushingMemoryLogStorage(conf) {
+  override def isTransactional: Boolean = true
+
+  override def addTransactionListener(listener: TransactionListener): Unit = TransactionalMemoryLogStorage.listener = listener
+}
+
 class KVStoreLocalSpec extends FlatSpecLike with Matchers with BeforeAndAfterAll {
 
   val specTimeout = 5 seconds
@@ -146,5 +178,388 @@ class KVStoreLocalSpec extends FlatSpecLike with Matchers with BeforeAndAfterAll
   }
 
 
+  it should "reject compare-and-set with a stale version and retry optimistic updates" in {
+    val stateConf = KVStoreConf(ConfigFactory.parseMap(Map(
+      KVStoreConf.MemStore.Class.path -> classOf[MemStoreSimpleMap].getName
+    ).asJava))
+    val state = KVStoreLocal.create[Long, String]("cas-store", 0, stateConf, 1, system)
+
+    val (initial, v0) = state.getVersioned(1L)
+    initial should be(None)
+    Await.result(state.compareAndSet(1L, v0, Some("one")), specTimeout) should be(true)
+    Await.result(state.compareAndSet(1L, v0, Some("stale")), specTimeout) should be(false)
+    state(1L) should be(Some("one"))
+
+    Await.result(Future.sequence((1 to 100).map { _ =>
+      state.updateOptimistically(2L, (current: Option[String]) => Some(current.getOrElse("") + "x"))
+    }), specTimeout)
+    state(2L).map(_.length) should be(Some(100))
+  }
+
+  it should "grant a contended lock in the order in which it was requested" in {
+    val stateConf = KVStoreConf(ConfigFactory.parseMap(Map(
+      KVStoreConf.MemStore.Class.path -> classOf[MemStoreSimpleMap].getName
+    ).asJava))
+    val state = KVStoreLocal.create[Long, String]("lock-order-store", 0, stateConf, 1, system)
+    val order = new java.util.concurrent.ConcurrentLinkedQueue[Int]()
+    val holder = Promise[Int]()
+    val first = state.lockAsync(1L) {
+      order.add(1)
+      holder.future
+    }
+    val waiters = (2 to 5).map { i =>
+      state.lockAsync(1L) {
+        order.add(i)
+        Future(i)
+      }
+    }
+    //other scopes are not blocked by the holder
+    Await.result(state.lockAsync(2L)(Future.successful(0)), specTimeout) should be(0)
+    order.asScala.toList should be(List(1))
+    holder.success(1)
+    Await.result(Future.sequence(first +: waiters), specTimeout) should be(1 to 5)
+    order.asScala.toList should be(1 to 5)
+  }
+
+  it should "hand a lock over to the next waiter when a waiter times out" in {
+    val stateConf = KVStoreConf(ConfigFactory.parseMap(Map(
+      KVStoreConf.MemStore.Class.path -> classOf[MemStoreSimpleMap].getName,
+      KVStoreConf.LockTimeoutMs.path -> 500
+    ).asJava))
+    val state = KVStoreLocal.create[Long, String]("lock-timeout-store", 0, stateConf, 1, system)
+    val holder = Promise[String]()
+    val first = state.lockAsync(1L)(holder.future)
+    @volatile var timedOutBodyEvaluated = false
+    val timedOut = state.lockAsync(1L) {
+      timedOutBodyEvaluated = true
+      Future.successful("timed-out")
+    }
+    Thread.sleep(300)
+    val next = state.lockAsync(1L)(Future.successful("next"))
+    a[TimeoutException] should be thrownBy Await.result(timedOut, specTimeout)
+    holder.success("first")
+    Await.result(next, specTimeout) should be("next")
+    Await.result(first, specTimeout) should be("first")
+    timedOutBodyEvaluated should be(false)
+  }
+
+  it should "queue the deprecated blocking lock together with lockAsync" in {
+    val stateConf = KVStoreConf(ConfigFactory.parseMap(Map(
+      KVStoreConf.MemStore.Class.path -> classOf[MemStoreSimpleMap].getName
+    ).asJava))
+    val state = KVStoreLocal.create[Long, String]("blocking-lock-store", 0, stateConf, 1, system)
+    state.lock(1L)
+    val waiter = state.lockAsync(1L)(Future.successful("acquired"))
+    Thread.sleep(100)
+    waiter.isCompleted should be(false)
+    state.unlock(1L)
+    Await.result(waiter, specTimeout) should be("acquired")
+  }
+
+  it should "write, update and delete multiple keys in a single batch" in {
+    val stateConf = KVStoreConf(ConfigFactory.parseMap(Map(
+      KVStoreConf.MemStore.Class.path -> classOf[MemStoreSimpleMap].getName
+    ).asJava))
+    val state = KVStoreLocal.create[Long, String]("bulk-store", 0, stateConf, 1, system)
+
+    Await.result(state.putAll((1L to 10L).map(k => k -> s"v$k").toMap), specTimeout)
+    state.numKeys should be(10L)
+    state(7L) should be(Some("v7"))
+
+    Await.result(state.updateAll(List(1L, 2L, 11L))(_.map(_ + "!")), specTimeout) should be(Map(
+      1L -> Some("v1!"), 2L -> Some("v2!"), 11L -> None
+    ))
+    state(1L) should be(Some("v1!"))
+
+    Await.result(state.deleteAll(1L to 5L), specTimeout)
+    state.numKeys should be(5L)
+    state(1L) should be(None)
+    state(6L) should be(Some("v6"))
+  }
+
+  it should "serve cached values which are invalidated by writes" in {
+    val stateConf = KVStoreConf(ConfigFactory.parseMap(Map(
+      KVStoreConf.MemStore.Class.path -> classOf[MemStoreSimpleMap].getName,
+      KVStoreConf.CacheMaxEntries.path -> 100
+    ).asJava))
+    val state = KVStoreLocal.create[Long, String]("cached-store", 0, stateConf, 1, system)
+
+    Await.result(state.replace(1L, "one"), specTimeout)
+    state(1L) should be(Some("one"))
+    state(1L) should be(Some("one"))
+    Await.result(state.replace(1L, "uno"), specTimeout)
+    state(1L) should be(Some("uno"))
+    Await.result(state.delete(1L), specTimeout)
+    state(1L) should be(None)
+  }
+
+  it should "filter serialized records before deserializing them" in {
+    val stateConf = KVStoreConf(ConfigFactory.parseMap(Map(
+      KVStoreConf.MemStore.Class.path -> classOf[MemStoreSortedMap].getName
+    ).asJava))
+    val state = KVStoreLocal.create[Long, ExpirableValue]("filtered-store", 0, stateConf, 1, system)
+    val nowMs = System.currentTimeMillis()
+    Await.result(Future.sequence((1L to 10L).map { k =>
+      state.replace(k, ExpirableValue(if (k % 2 == 0) "even" else "odd", nowMs - k * 1000))
+    }), specTimeout)
+
+    def scan(filter: ScanFilter): List[Long] = {
+      val it = state.iterator(filter)
+      try it.asScala.map(_.key).toList.sorted finally it.close()
+    }
+
+    scan(ScanFilter().withValue(state.valueField("data")(_ == "even"))) should be(List(2L, 4L, 6L, 8L, 10L))
+    scan(ScanFilter(new TimeRange(nowMs - 3500, nowMs))) should be(List(1L, 2L, 3L))
+    scan(ScanFilter(limit = 4)).size should be(4)
+  }
+
+  it should "page through a range with continuation tokens" in {
+    val stateConf = KVStoreConf(ConfigFactory.parseMap(Map(
+      KVStoreConf.MemStore.Class.path -> classOf[MemStoreSortedMap].getName
+    ).asJava))
+    val state = KVStoreLocal.create[Long, String]("paged-store", 0, stateConf, 1, system)
+    Await.result(state.putAll((1L to 10L).map(k => k -> s"v$k").toMap), specTimeout)
+
+    val first = state.rangePage(TimeRange.UNBOUNDED, 4, None)
+    first.entries.size should be(4)
+    val second = state.rangePage(TimeRange.UNBOUNDED, 4, first.next)
+    second.entries.size should be(4)
+    val last = state.rangePage(TimeRange.UNBOUNDED, 4, second.next)
+    last.entries.size should be(2)
+    last.next should be(None)
+    (first.entries ++ second.entries ++ last.entries).map(_._1).sorted should be(1L to 10L)
+
+    val truncated = first.next.get.dropRight(4)
+    an[IllegalArgumentException] should be thrownBy state.rangePage(TimeRange.UNBOUNDED, 4, Some(truncated))
+  }
+
+  it should "refuse to page a state whose memstore doesn't have a stable key order" in {
+    val stateConf = KVStoreConf(ConfigFactory.parseMap(Map(
+      KVStoreConf.MemStore.Class.path -> classOf[MemStoreSimpleMap].getName
+    ).asJava))
+    val state = KVStoreLocal.create[Long, String]("unordered-paged-store", 0, stateConf, 1, system)
+    Await.result(state.putAll((1L to 10L).map(k => k -> s"v$k").toMap), specTimeout)
+    an[UnsupportedOperationException] should be thrownBy state.rangePage(TimeRange.UNBOUNDED, 4, None)
+  }
+
+  it should "merge concurrently scanned partitions in key order" in {
+    def partition(keys: Int*) = CloseableIterator.apply(keys.map { k =>
+      (ByteBuffer.allocate(4).putInt(k).array, new Record[Int, String](k, s"v$k", 0L))
+    }.iterator.asJava)
+
+    val sorted = new ParallelScan[Int, String](List(partition(1, 4, 7), partition(2, 5), partition(3, 6, 8, 9)),
+      Some(new Comparator[ByteBuffer] {
+        override def compare(a: ByteBuffer, b: ByteBuffer): Int = ByteUtils.compare(a, b)
+      }), bufferSize = 2)
+    try sorted.asScala.map(_.key).toList should be(List(1, 2, 3, 4, 5, 6, 7, 8, 9)) finally sorted.close()
+
+    val unordered = new ParallelScan[Int, String](List(partition(1, 4), partition(2), partition()), None)
+    try unordered.asScala.map(_.key).toList.sorted should be(List(1, 2, 4)) finally unordered.close()
+  }
+
+  it should "release the partition scans of an abandoned scan and not wait for a terminated source" in {
+    def partition(keys: Int*) = CloseableIterator.apply(keys.map { k =>
+      (ByteBuffer.allocate(4).putInt(k).array, new Record[Int, String](k, s"v$k", 0L))
+    }.iterator.asJava)
+
+    val closedSources = new AtomicInteger(0)
+    def tracked(keys: Int*) = {
+      val underlying = partition(keys: _*)
+      new CloseableIterator[(Array[Byte], Record[Int, String])] {
+        override def hasNext: Boolean = underlying.hasNext
+        override def next(): (Array[Byte], Record[Int, String]) = underlying.next
+        override def close(): Unit = closedSources.incrementAndGet()
+      }
+    }
+    val abandoned = new ParallelScan[Int, String](List(tracked(1 to 10: _*), tracked(11 to 20: _*)), None,
+      bufferSize = 1, idleTimeoutMs = 200)
+    abandoned.hasNext should be(true)
+    Thread.sleep(1000)
+    closedSources.get should be(2)
+    an[IllegalStateException] should be thrownBy abandoned.asScala.toList
+
+    val dying = new CloseableIterator[(Array[Byte], Record[Int, String])] {
+      override def hasNext: Boolean = true
+      override def next(): (Array[Byte], Record[Int, String]) = throw new NoSuchMethodError("fatal")
+      override def close(): Unit = ()
+    }
+    val terminated = new ParallelScan[Int, String](List(partition(1, 2), dying), None)
+    try an[IllegalStateException] should be thrownBy terminated.asScala.toList finally terminated.close()
+  }
+
+  it should "serve exact, range and prefix lookups from ordered secondary indices" in {
+    val stateConf = KVStoreConf(ConfigFactory.parseMap(Map(
+      KVStoreConf.MemStore.Class.path -> classOf[MemStoreSortedMap].getName
+    ).asJava))
+    val state = KVStoreLocal.create[Long, ExpirableValue]("indexed-store", 0, stateConf, 1, system)
+    val byLength = state.index("length") { record: Record[Long, ExpirableValue] => List(record.value.data.length) }
+    val byWord = state.coveringIndex("word") { record: Record[Long, ExpirableValue] =>
+      List((record.value.data.take(1), record.value.data))
+    } (_.eventTimeUnix)
+
+    Await.result(state.putAll(Map(
+      1L -> ExpirableValue("apple", 10L),
+      2L -> ExpirableValue("avocado", 20L),
+      3L -> ExpirableValue("banana", 30L),
+      4L -> ExpirableValue("fig", 40L)
+    )), specTimeout)
+    Await.result(byLength.synced, specTimeout)
+    Await.result(byWord.synced, specTimeout)
+
+    byLength(5)(_.toList) should be(List(1L))
+    byLength.range(-1, 7)(_.toList) should be(List(4L, 1L, 3L))
+    byWord.prefix(TimeRange.UNBOUNDED, "a")(_.toList.sorted) should be(List(1L, 2L))
+    byWord.covered(("b", "banana"))(_.toList) should be(List(30L))
+
+    Await.result(state.delete(1L), specTimeout)
+    Await.result(byLength.synced, specTimeout)
+    byLength(5)(_.toList) should be(List())
+  }
+
+  it should "discard cached values and derived entries of a state erased by an aborted transaction" in {
+    val stateConf = KVStoreConf(ConfigFactory.parseMap(Map(
+      KVStoreConf.MemStore.Class.path -> classOf[MemStoreSortedMap].getName,
+      KVStoreConf.CacheMaxEntries.path -> 100,
+      KVStoreConf.Storage.Class.path -> classOf[TransactionalMemoryLogStorage].getName
+    ).asJava))
+    val state = KVStoreLocal.create[Long, ExpirableValue]("aborted-store", 0, stateConf, 1, system)
+    val aborts = new AtomicInteger(0)
+    state.addAbortListener(_ => aborts.incrementAndGet())
+    state.boot()
+    val byLength = state.index("length") { record: Record[Long, ExpirableValue] => List(record.value.data.length) }
+    val initial = state.count("by-initial") { record: Record[Long, ExpirableValue] => record.value.data.take(1) }
+    Await.result(state.replace(1L, ExpirableValue("apple", 10L)), specTimeout)
+    Await.result(Future.sequence(List(byLength.synced, initial.synced)), specTimeout)
+    state(1L) should be(Some(ExpirableValue("apple", 10L)))
+    state(1L) should be(Some(ExpirableValue("apple", 10L)))
+    byLength(5)(_.toList) should be(List(1L))
+    initial("a") should be(1L)
+
+    TransactionalMemoryLogStorage.listener.onAbort(new RuntimeException("transaction aborted"))
+    aborts.get should be(1)
+    state(1L) should be(None)
+    byLength(5)(_.toList) should be(List())
+    initial("a") should be(0L)
+    an[IllegalStateException] should be thrownBy Await.result(state.replace(2L, ExpirableValue("fig", 20L)), specTimeout)
+
+    //the memory log doesn't discard aborted records so the bootstrap restores the first write
+    state.boot()
+    Await.result(state.replace(2L, ExpirableValue("fig", 20L)), specTimeout)
+    Await.result(Future.sequence(List(byLength.synced, initial.synced)), specTimeout)
+    state(2L) should be(Some(ExpirableValue("fig", 20L)))
+    byLength.range(0, 10)(_.toList) should be(List(2L, 1L))
+    initial("a") should be(1L)
+    initial("f") should be(1L)
+    state.close()
+  }
+
+  it should "fail index syncs once a change couldn't be applied to the index" in {
+    val stateConf = KVStoreConf(ConfigFactory.parseMap(Map(
+      KVStoreConf.MemStore.Class.path -> classOf[MemStoreSortedMap].getName
+    ).asJava))
+    val state = KVStoreLocal.create[Long, ExpirableValue]("failing-index-store", 0, stateConf, 1, system)
+    val byLength = state.index("length") { record: Record[Long, ExpirableValue] =>
+      if (record.value.data.isEmpty) throw new IllegalArgumentException("empty value") else List(record.value.data.length)
+    }
+    Await.result(state.replace(1L, ExpirableValue("apple", 10L)), specTimeout)
+    Await.result(byLength.synced, specTimeout)
+    Await.result(state.replace(2L, ExpirableValue("", 20L)), specTimeout)
+    an[IllegalStateException] should be thrownBy Await.result(byLength.synced, specTimeout)
+    Await.result(state.replace(3L, ExpirableValue("fig", 30L)), specTimeout)
+    an[IllegalStateException] should be thrownBy Await.result(byLength.synced, specTimeout)
+  }
+
+  it should "persist secondary indices of a logged state in a sorted rocksdb memstore" in {
+    val dataDir = Files.createTempDirectory(getClass.getSimpleName)
+    val rocksSystem = AffinityActorSystem.create(ConfigFactory.parseMap(Map(
+      Conf.Affi.Node.DataDir.path -> dataDir.toString
+    ).asJava).withFallback(cfg))
+    def openState() = {
+      val stateConf = KVStoreConf(ConfigFactory.parseMap(Map(
+        KVStoreConf.MemStore.Class.path -> classOf[MemStoreRocksDb].getName,
+        KVStoreConf.Storage.Class.path -> classOf[FlushingMemoryLogStorage].getName
+      ).asJava))
+      val state = KVStoreLocal.create[Long, ExpirableValue]("rocksdb-indexed-store", 0, stateConf, 1, rocksSystem)
+      state.boot()
+      state
+    }
+    try {
+      val state = openState()
+      val byLength = state.index("length") { record: Record[Long, ExpirableValue] => List(record.value.data.length) }
+      Await.result(state.putAll(Map(
+        1L -> ExpirableValue("apple", 10L),
+        2L -> ExpirableValue("avocado", 20L),
+        3L -> ExpirableValue("banana", 30L),
+        4L -> ExpirableValue("fig", 40L)
+      )), specTimeout)
+      Await.result(byLength.synced, specTimeout)
+      byLength(5)(_.toList) should be(List(1L))
+      byLength.range(-1, 7)(_.toList) should be(List(4L, 1L, 3L))
+      state.close()
+
+      dataDir.resolve("rocksdb-indexed-store-0-length").resolve("initialized-ordered").toFile.exists should be(true)
+      val reopened = openState()
+      try {
+        val reopenedIndex = reopened.index("length") { record: Record[Long, ExpirableValue] => List(record.value.data.length) }
+        reopenedIndex.range(-1, 8)(_.toList) should be(List(4L, 1L, 3L, 2L))
+      } finally {
+        reopened.close()
+      }
+    } finally {
+      Await.result(rocksSystem.terminate(), specTimeout)
+      deleteDirectory(dataDir.toFile)
+    }
+  }
+
+  private def deleteDirectory(f: File): Unit = if (f.exists) {
+    if (f.isDirectory) f.listFiles.foreach(deleteDirectory)
+    f.delete()
+  }
+
+  it should "maintain aggregates and top-k views incrementally" in {
+    val stateConf = KVStoreConf(ConfigFactory.parseMap(Map(
+      KVStoreConf.MemStore.Class.path -> classOf[MemStoreSortedMap].getName
+    ).asJava))
+    val state = KVStoreLocal.create[Long, ExpirableValue]("aggregated-store", 0, stateConf, 1, system)
+    val initial = state.count("by-initial") { record: Record[Long, ExpirableValue] => record.value.data.take(1) }
+    val total = state.aggregate[String, Long, Long]("total-by-initial")(
+      _.value.data.take(1), _.value.eventTimeUnix)(Aggregator.LongSum)
+    val longest = state.topK[String, Int]("longest")(_.value.data.take(1), _.value.data.length)
+
+    Await.result(state.putAll(Map(
+      1L -> ExpirableValue("apple", 10L),
+      2L -> ExpirableValue("avocado", 20L),
+      3L -> ExpirableValue("banana", 30L),
+      4L -> ExpirableValue("apricot", 40L)
+    )), specTimeout)
+    Await.result(Future.sequence(List(initial.synced, total.synced, longest.synced)), specTimeout)
+
+    initial("a") should be(3L)
+    initial("b") should be(1L)
+    initial("c") should be(0L)
+    total("a") should be(70L)
+    longest.top("a", 2) should be(List(2L -> 7, 4L -> 7))
+
+    Await.result(state.replace(2L, ExpirableValue("blueberry", 25L)), specTimeout)
+    Await.result(state.delete(4L), specTimeout)
+    Await.result(Future.sequence(List(initial.synced, total.synced, longest.synced)), specTimeout)
+
+    initial("a") should be(1L)
+    initial("b") should be(2L)
+    total("a") should be(10L)
+    total("b") should be(55L)
+    longest.top("a", 2) should be(List(1L -> 5))
+    longest.top("b", 1) should be(List(2L -> 9))
+  }
+
+  it should "reject top-k views with scores that don't have a natural order" in {
+    val stateConf = KVStoreConf(ConfigFactory.parseMap(Map(
+      KVStoreConf.MemStore.Class.path -> classOf[MemStoreSortedMap].getName
+    ).asJava))
+    val state = KVStoreLocal.create[Long, ExpirableValue]("unordered-score-store", 0, stateConf, 1, system)
+    an[IllegalArgumentException] should be thrownBy state.topK[String, ExpirableValue]("by-value")(_.value.data, _.value)
+    state.topK[String, Double]("by-time")(_.value.data, _.value.eventTimeUnix.toDouble).top("a", 1) should be(Nil)
+  }
+
 }
 
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.core.util
+
+import com.typesafe.config.ConfigFactory
+import io.amient.affinity.core.serde.AbstractSerde
+import io.amient.affinity.core.storage.{LogStorageConf, Record}
+import org.scalatest.{FlatSpec, Matchers}
+
+import scala.collection.JavaConverters._
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Future}
+import scala.language.postfixOps
+
+class OutputDataStreamSpec extends FlatSpec with Matchers {
+
+  val stringSerde = new AbstractSerde[String] {
+    override def fromBytes(bytes: Array[Byte]): String = if (bytes == null) null else new String(bytes, "UTF-8")
+
+    override def toBytes(obj: String): Array[Byte] = if (obj == null) null else obj.getBytes("UTF-8")
+
+    override def close(): Unit = ()
+  }
+
+  def conf(lingerMs: Long, batchSize: Int) = new LogStorageConf().apply(ConfigFactory.parseMap(Map(
+    "class" -> classOf[MemoryLogStorage].getName,
+    "output.linger.ms" -> lingerMs,
+    "output.batch.size" -> batchSize
+  ).asJava))
+
+  def memory(stream: OutputDataStream[_, _]) = stream.storage.asInstanceOf[MemoryLogStorage]
+
+  def entries(stream: OutputDataStream[String, String]): List[(String, String)] = {
+    memory(stream).reset(0, null: java.lang.Long)
+    memory(stream).boundedIterator().asScala.map(e => (stringSerde.fromBytes(e.key), stringSerde.fromBytes(e.value))).toList
+  }
+
+  behavior of "OutputDataStream"
+
+  it should "complete appends without blocking when sent immediately" in {
+    val stream = new OutputDataStream[String, String](stringSerde, stringSerde, conf(0, 1000))
+    val f = stream.append(new Record("a", "1"))
+    f.isCompleted should be(false)
+    stream.flush()
+    Await.result(f, 1 second) should be(0L)
+    entries(stream) should be(List(("a", "1")))
+  }
+
+  it should "send buffered records when the batch size is reached" in {
+    val stream = new OutputDataStream[String, String](stringSerde, stringSerde, conf(60000, 2))
+    stream.append(new Record("a", "1"))
+    memory(stream).flush()
+    entries(stream) should be(Nil)
+    stream.append(new Record("b", "2"))
+    memory(stream).flush()
+    entries(stream) should be(List(("a", "1"), ("b", "2")))
+  }
+
+  it should "restart the linger time of records buffered after a batch was sent" in {
+    val stream = new OutputDataStream[String, String](stringSerde, stringSerde, conf(1000, 2))
+    stream.append(new Record("a", "1"))
+    Thread.sleep(500)
+    stream.append(new Record("b", "2")) //sends the batch before the linger time of "a" expires
+    stream.append(new Record("c", "3"))
+    Thread.sleep(700) //the linger time of "a" has expired but "c" was buffered only 700ms ago
+    memory(stream).flush()
+    entries(stream) should be(List(("a", "1"), ("b", "2")))
+    Thread.sleep(800)
+    memory(stream).flush()
+    entries(stream) should be(List(("a", "1"), ("b", "2"), ("c", "3")))
+  }
+
+  it should "combine buffered records with the same key" in {
+    val stream = new OutputDataStream[String, String](stringSerde, stringSerde, conf(60000, 1000), Some((a: String, b: String) => a + b))
+    val fs: List[Future[_]] = List(
+      stream.append(new Record("a", "1")),
+      stream.append(new Record("b", "2")),
+      stream.append(new Record("a", "3")))
+    stream.flush()
+    import scala.concurrent.ExecutionContext.Implicits.global
+    Await.result(Future.sequence(fs), 1 second)
+    entries(stream) should be(List(("a", "13"), ("b", "2")))
+  }
+
+  it should "complete every buffered record when some of them can't be sent" in {
+    val failingSerde = new AbstractSerde[String] {
+      override def fromBytes(bytes: Array[Byte]): String = stringSerde.fromBytes(bytes)
+
+      override def toBytes(obj: String): Array[Byte] = {
+        if (obj == "bad") throw new IllegalArgumentException("cannot serialize") else stringSerde.toBytes(obj)
+      }
+
+      override def close(): Unit = ()
+    }
+    val stream = new OutputDataStream[String, String](stringSerde, failingSerde, conf(200, 1000))
+    val a = stream.append(new Record("a", "1"))
+    val b = stream.append(new Record("b", "bad"))
+    val c = stream.append(new Record("c", "3"))
+    Thread.sleep(500) //flushed by the linger timer
+    memory(stream).flush()
+    Await.result(a, 1 second) should be(0L)
+    an[IllegalArgumentException] should be thrownBy Await.result(b, 1 second)
+    Await.result(c, 1 second) should be(1L)
+    entries(stream) should be(List(("a", "1"), ("c", "3")))
+  }
+
+  it should "fail all records of a batch rejected by the storage" in {
+    val stream = new OutputDataStream[String, String](stringSerde, stringSerde, new LogStorageConf().apply(ConfigFactory.parseMap(Map(
+      "class" -> classOf[RejectingMemoryLogStorage].getName,
+      "output.linger.ms" -> 60000,
+      "output.batch.size" -> 2
+    ).asJava)))
+    val a = stream.append(new Record("a", "1"))
+    val b = stream.append(new Record("b", "2"))
+    an[IllegalStateException] should be thrownBy Await.result(a, 1 second)
+    an[IllegalStateException] should be thrownBy Await.result(b, 1 second)
+  }
+
+}
+
+class RejectingMemoryLogStorage(conf: LogStorageConf) extends MemoryLogStorage(conf) {
+  override def append(record: Record[Array[Byte], Array[Byte]]): java.util.concurrent.Future[java.lang.Long] = {
+    throw new IllegalStateException("storage is closed")
+  }
+
+}
@@ -122,7 +122,8 @@ class ArticlesPartition extends Partition {
 
     case request@DeleteArticles(word) =>
       val deleted = Future.sequence(wordindex(word.trim.toLowerCase, TimeRange.UNBOUNDED)(_.map(articles.delete)))
-      request(sender) ! deleted.map(_ => ())
+      //the index is maintained asynchronously so the response waits until the deletes are reflected in it
+      request(sender) ! deleted.flatMap(_ => wordindex.synced)
 
     case request@StoreArticle(author, article) => request(sender) ! {
       articles.lockAsync(author) {
@@ -131,7 +132,7 @@ class ArticlesPartition extends Partition {
         try {
           val nextAuto = if (!articlesSoFar.hasNext) 1 else articlesSoFar.asScala.map(_.key.auto).max + 1
           val key = StorageKey(author.id, nextAuto)
-          articles.replace(key, article).map { _ =>
+          articles.replace(key, article).flatMap(_ => wordindex.synced).map { _ =>
             //this is only here to tell the test the fixtures were all processed
             context.system.eventStream.publish(request)
           }
@@ -27,10 +27,10 @@ import com.typesafe.config.Config
 import io.amient.affinity.core.config.{Cfg, CfgStruct}
 import io.amient.affinity.core.state.StateConf
 import io.amient.affinity.core.storage._
-import io.amient.affinity.core.util.{EventTime, JavaPromise, MappedJavaFuture, TimeRange}
+import io.amient.affinity.core.util.{EventTime, JavaPromise, TimeRange}
 import io.amient.affinity.kafka.KafkaStorage.KafkaStorageConf
 import org.apache.kafka.clients.admin.{AdminClient, AdminClientConfig, ConfigEntry, NewTopic}
-import org.apache.kafka.clients.consumer.{ConsumerRebalanceListener, KafkaConsumer, OffsetAndMetadata, OffsetCommitCallback}
+import org.apache.kafka.clients.consumer.{ConsumerRebalanceListener, ConsumerRecord, KafkaConsumer, OffsetAndMetadata, OffsetCommitCallback}
 import org.apache.kafka.clients.producer.{Callback, KafkaProducer, ProducerRecord, RecordMetadata}
 import org.apache.kafka.common.TopicPartition
 import org.apache.kafka.common.config.{ConfigResource, TopicConfig}
@@ -62,6 +62,10 @@ object KafkaStorage {
     val ReplicationFactor = integer("kafka.replication.factor", 1).doc("replication factor of the kafka topic")
     val BootstrapServers = string("kafka.bootstrap.servers", true).doc("kafka connection string used for consumer and/or producer")
     val Producer = struct("kafka.producer", new KafkaProducerConf, false).doc("any settings that the underlying version of kafka producer client supports")
+    val SharedClients = bool("kafka.shared.clients", true, false).doc("share kafka producer and consumer with all other storages in the same process which have the same client configuration - consumers are shared only if no group.id is set, i.e. by state stores but not by input streams")
+    val TransactionalId = string("kafka.transactional.id", false).doc("enables exactly-once mode: all storages in the same process with the same transactional.id write in a single kafka transaction which is committed together with the consumed offsets of the input stream, or every commit.interval.ms if there is none - writes into partitions hosted by other nodes are committed by their own transactions and the id must be unique for each node")
+    val Idempotent = bool("kafka.idempotent", true, false).doc("use idempotent producer which keeps the ordering with multiple requests in flight, compressed batches and a small linger - other settings under kafka.producer take precedence")
+    val RangeStopByTimestamp = bool("kafka.range.stop.by.timestamp", true, false).doc("bounded time range fetches stop at the first record with a timestamp after the range end instead of the end of the log - faster for ranges far from the log end but records appended later with a timestamp within the range are excluded")
     val Consumer = struct("kafka.consumer", new KafkaConsumerConf, false).doc("any settings that the underlying version of kafka consumer client supports")
   }
 
@@ -87,16 +91,36 @@ class KafkaLogStorage(conf: LogStorageConf) extends LogStorage[java.lang.Long] w
 
   private val adminTimeoutMs: Long = 60000
 
-  private val producerConfig = new Properties() {
+  private val transactionalId: Option[String] = if (kafkaStorageConf.TransactionalId.isDefined) Some(kafkaStorageConf.TransactionalId()) else None
+
+  //transactions require the idempotent producer
+  private val idempotent = kafkaStorageConf.Idempotent() || transactionalId.isDefined
+
+  private[kafka] val producerConfig = new Properties() {
     put("retries", Int.MaxValue.toString)
-    put("max.in.flight.requests.per.connection", "1")
     put("max.block.ms", Long.MaxValue.toString)
+    if (idempotent) {
+      //the broker de-duplicates and orders retried batches by producer sequence numbers for up to 5 in-flight requests
+      put("enable.idempotence", "true")
+      put("acks", "all")
+      put("max.in.flight.requests.per.connection", "5")
+      put("compression.type", "lz4")
+      put("linger.ms", "5")
+      put("batch.size", "131072")
+    } else {
+      put("max.in.flight.requests.per.connection", "1")
+    }
     if (kafkaStorageConf.Producer.isDefined) {
       val producerConfig = kafkaStorageConf.Producer.toMap()
       if (producerConfig.containsKey("bootstrap.servers")) throw new IllegalArgumentException("bootstrap.servers cannot be overriden for KafkaStroage producer")
       if (producerConfig.containsKey("key.serializer")) throw new IllegalArgumentException("Binary kafka stream cannot use custom key.serializer")
       if (producerConfig.containsKey("value.serializer")) throw new IllegalArgumentException("Binary kafka stream cannot use custom value.serializer")
-      if (producerConfig.containsKey("max.in.flight.requests.per.connection")) log.warn("Changing producer max.in.flight.requests.per.connection from recommended: 1")
+      if (idempotent) {
+        if (producerConfig.containsKey("enable.idempotence")) throw new IllegalArgumentException("enable.idempotence cannot be overriden for idempotent KafkaStorage producer")
+        if (producerConfig.containsKey("acks")) throw new IllegalArgumentException("acks cannot be overriden for idempotent KafkaStorage producer")
+      } else if (producerConfig.containsKey("max.in.flight.requests.per.connection")) {
+        log.warn("Changing producer max.in.flight.requests.per.connection from recommended: 1")
+      }
       if (producerConfig.containsKey("max.block.ms")) log.warn("Changing producer max.block.ms from recommended: Long.MaxValue")
       if (producerConfig.containsKey("retries")) log.warn("Changing producer retries from recommended: Int.MaxValue")
       producerConfig.entrySet.asScala.filter(_.getValue.isDefined).foreach { case (entry) =>
@@ -107,10 +131,13 @@ class KafkaLogStorage(conf: LogStorageConf) extends LogStorage[java.lang.Long] w
     put("value.serializer", classOf[ByteArraySerializer].getName)
     put("key.serializer", classOf[ByteArraySerializer].getName)
     put("default.api.timeout.ms", adminTimeoutMs.toString)
+    transactionalId.foreach(put("transactional.id", _))
   }
 
   private val consumerProps = new Properties() {
     put("auto.offset.reset", "earliest")
+    //in the exactly-once mode only committed records must be consumed, including bootstraps of state stores
+    if (transactionalId.isDefined) put("isolation.level", "read_committed")
     if (kafkaStorageConf.Consumer.isDefined) {
       val consumerConfig = kafkaStorageConf.Consumer.toMap()
       if (consumerConfig.containsKey("bootstrap.servers")) throw new IllegalArgumentException("bootstrap.servers cannot be overriden for KafkaStroage consumer")
@@ -127,44 +154,107 @@ class KafkaLogStorage(conf: LogStorageConf) extends LogStorage[java.lang.Long] w
     put("value.deserializer", classOf[ByteArrayDeserializer].getName)
   }
 
-  private val kafkaConsumer = new KafkaConsumer[Array[Byte], Array[Byte]](consumerProps)
-  private val stopOffsets = new mutable.HashMap[Int, java.lang.Long]()
+  private val sharedClients = kafkaStorageConf.SharedClients()
+
+  private val rangeStopByTimestamp = kafkaStorageConf.RangeStopByTimestamp()
+
+  //consumers which belong to a group cannot be multiplexed because the group coordinator manages their assignment
+  private val sharedConsumer = sharedClients && !consumerProps.containsKey("group.id")
+
+  private val kafkaConsumer = if (sharedConsumer) null else new KafkaConsumer[Array[Byte], Array[Byte]](consumerProps)
+  private var shared: SharedKafkaConsumer = null
+  private var sharedPartition: TopicPartition = null
+  private val stopOffsets = new util.HashMap[Integer, java.lang.Long]()
   private var closed = false
   private var range: TimeRange = TimeRange.UNBOUNDED
 
+  private var paused = false
+
+  private lazy val transaction: KafkaTransaction = KafkaTransaction.acquire(transactionalId.get, producerConfig, conf.CommitIntervalMs())
+
+  private var transactionActive = false
+
+  if (transactionalId.isDefined && consumerProps.containsKey("group.id")) {
+    //this storage is an input stream which will be committing the transaction
+    transaction.registerInput()
+    transactionActive = true
+  }
+
+  /**
+    * execute a function on the consumer of the given partition, in the shared mode the function runs in the thread
+    * of the shared consumer which will have been assigned the partition, otherwise directly on the own consumer
+    */
+  private def withConsumer[T](partition: Int)(f: KafkaConsumer[Array[Byte], Array[Byte]] => T): T = {
+    if (!sharedConsumer) f(kafkaConsumer) else {
+      val tp = new TopicPartition(topic, partition)
+      if (tp != sharedPartition) {
+        if (shared != null) SharedKafkaClients.releaseConsumer(consumerProps, shared, Some(sharedPartition))
+        shared = SharedKafkaClients.acquireConsumer(consumerProps, Some(tp))
+        sharedPartition = tp
+      }
+      shared.execute(f)
+    }
+  }
+
   override def getNumPartitions(): Int = {
-    kafkaConsumer.partitionsFor(topic).size()
+    if (!sharedConsumer) kafkaConsumer.partitionsFor(topic).size() else {
+      val metadataConsumer = SharedKafkaClients.acquireConsumer(consumerProps, None)
+      try {
+        metadataConsumer.execute(_.partitionsFor(topic).size())
+      } finally {
+        SharedKafkaClients.releaseConsumer(consumerProps, metadataConsumer, None)
+      }
+    }
   }
 
   override def reset(partition: Int, range: TimeRange): Unit = {
     log.debug(s"Resetting $topic/$partition to time range: $range")
     val tp = new TopicPartition(topic, partition)
     this.range = range
-    kafkaConsumer.assign(List(tp).asJava)
-    val beginOffset: Long = kafkaConsumer.beginningOffsets(List(tp).asJava).get(tp)
-    val startOffset: Long = Option(kafkaConsumer.offsetsForTimes(Map(tp -> new java.lang.Long(range.start)).asJava).get(tp)).map(_.offset).getOrElse(beginOffset)
-    reset(tp.partition, startOffset)
+    val startOffset: Long = withConsumer(partition) { consumer =>
+      if (!sharedConsumer) consumer.assign(List(tp).asJava)
+      val beginOffset: Long = consumer.beginningOffsets(List(tp).asJava).get(tp)
+      Option(consumer.offsetsForTimes(Map(tp -> new java.lang.Long(range.start)).asJava).get(tp)).map(_.offset).getOrElse(beginOffset)
+    }
+    reset(tp.partition, startOffset, range.end)
   }
 
   override def reset(partition: Int, startPosition: java.lang.Long): java.lang.Long = {
+    reset(partition, startPosition, Long.MaxValue)
+  }
+
+  /**
+    * By default a bounded fetch reads up to the end of the log and filters records by the time range.
+    * With kafka.range.stop.by.timestamp the upper bound for a time range end is the offset just before the first
+    * record whose timestamp is after the end. Kafka record timestamps are not guaranteed to be monotonic, so records
+    * which were appended later but carry a timestamp within the range, i.e. late out-of-order records, are then
+    * excluded from the bounded fetch.
+    */
+  private def reset(partition: Int, startPosition: java.lang.Long, endTime: Long): java.lang.Long = {
     val tp = new TopicPartition(topic, partition)
-    val startOffset: Long = if (startPosition != null && startPosition >= 0) startPosition else {
-      val beginOffset: Long = kafkaConsumer.beginningOffsets(List(tp).asJava).get(tp)
-      Option(kafkaConsumer.offsetsForTimes(Map(tp -> new java.lang.Long(range.start)).asJava).get(tp)).map(_.offset).getOrElse(beginOffset)
+    val startOffset: Long = if (startPosition != null && startPosition >= 0) startPosition else withConsumer(partition) { consumer =>
+      val beginOffset: Long = consumer.beginningOffsets(List(tp).asJava).get(tp)
+      Option(consumer.offsetsForTimes(Map(tp -> new java.lang.Long(range.start)).asJava).get(tp)).map(_.offset).getOrElse(beginOffset)
     }
 
     if (startOffset < 0) {
       //empty partition
       return null
     } else {
-      kafkaConsumer.seek(tp, startOffset)
-      val maxOffset: Long = kafkaConsumer.endOffsets(List(tp).asJava).get(tp) - 1
-      val stopOffset = maxOffset
-      /* kafka at the moment supports only offsets-after(t), so if one day there is offsets-before(t) we can optimize more:
-      val stopOffset: Long = Option(kafkaConsumer.offsetsBefore(Map(tp -> new java.lang.Long(range.end))).get(tp)).map(_.offset).getOrElse(maxOffset)
-      */
+      if (sharedConsumer) {
+        withConsumer(partition)(_ => ())
+        shared.seek(tp, startOffset)
+      } else {
+        kafkaConsumer.seek(tp, startOffset)
+      }
+      val maxOffset: Long = withConsumer(partition)(_.endOffsets(List(tp).asJava).get(tp)) - 1
+      val stopOffset: Long = if (endTime == Long.MaxValue || !rangeStopByTimestamp) maxOffset else withConsumer(partition) { consumer =>
+        //the first offset whose timestamp is strictly after the range end is found with offsets-after(end + 1)
+        Option(consumer.offsetsForTimes(Map(tp -> new java.lang.Long(endTime + 1)).asJava).get(tp))
+          .map(_.offset - 1).map(math.min(_, maxOffset)).getOrElse(maxOffset)
+      }
       if (stopOffset >= startOffset) {
-        stopOffsets.put(tp.partition, stopOffset)
+        stopOffsets.put(tp.partition, new java.lang.Long(stopOffset))
       } else {
         stopOffsets.remove(tp.partition)
       }
@@ -172,7 +262,26 @@ class KafkaLogStorage(conf: LogStorageConf) extends LogStorage[java.lang.Long] w
     }
   }
 
+  override def distance(from: java.lang.Long, to: java.lang.Long): Long = math.max(0L, to - from)
+
+  /**
+    * The lag is taken from the per-partition records-lag metrics of the consumer which are updated with every poll,
+    * reading the metrics is safe from other threads than the one which is fetching.
+    */
+  override def lag(): Long = if (sharedConsumer) {
+    if (shared == null) -1L else shared.lag(sharedPartition)
+  } else {
+    val lags = kafkaConsumer.metrics.asScala.collect {
+      case (name, metric) if name.group == "consumer-fetch-manager-metrics" && name.name == "records-lag"
+        && name.tags.get("topic") == topic.replace('.', '_') => metric.metricValue
+    }.collect {
+      case value: java.lang.Double if !value.isNaN => value.longValue
+    }
+    if (lags.isEmpty) -1L else lags.sum
+  }
+
   override def resume(range: TimeRange): Unit = {
+    if (sharedConsumer) throw new UnsupportedOperationException("Shared kafka consumer cannot subscribe, kafka.consumer.group.id must be configured")
     this.range = range
     kafkaConsumer.subscribe(List(topic).asJava, this)
   }
@@ -195,39 +304,167 @@ class KafkaLogStorage(conf: LogStorageConf) extends LogStorage[java.lang.Long] w
         }
         stopOffsets.remove(tp.partition)
     }
+    //partitions assigned by a rebalance must not bypass the pause
+    if (paused) kafkaConsumer.pause(partitions)
   }
 
   override def fetch(unbounded: Boolean): util.Iterator[LogEntry[java.lang.Long]] = {
+    val cursor = fetchCursor(unbounded)
+    //entries are materialized one at a time as the iterator is consumed, it must be consumed before the next fetch
+    if (cursor == null) null else new util.Iterator[LogEntry[java.lang.Long]] {
+      private var advanced = false
+      private var available = false
+
+      override def hasNext: Boolean = {
+        if (!advanced) {
+          available = cursor.next()
+          advanced = true
+        }
+        available
+      }
+
+      override def next(): LogEntry[java.lang.Long] = {
+        if (!hasNext) throw new NoSuchElementException
+        advanced = false
+        cursor.toEntry
+      }
+    }
+  }
+
+  private val cursor = new KafkaLogCursor
+
+  override def fetchCursor(unbounded: Boolean): LogCursor[java.lang.Long] = {
 
     if (!unbounded && stopOffsets.isEmpty) {
       return null
     }
 
-    val kafkaRecords = try {
-      kafkaConsumer.poll(java.time.Duration.ofMillis(500))
+    val kafkaRecords: util.Iterator[ConsumerRecord[Array[Byte], Array[Byte]]] = if (sharedConsumer) {
+      if (shared == null) throw new IllegalStateException(s"$topic was not reset to any partition before fetching")
+      val records = shared.fetch(sharedPartition, 500)
+      if (records == null) return null
+      records.iterator
+    } else try {
+      kafkaConsumer.poll(java.time.Duration.ofMillis(500)).iterator
     } catch {
       case _: WakeupException => return null
     }
 
-    kafkaRecords.iterator.asScala.filter { record =>
-      if (unbounded) {
-        record.timestamp >= range.start && record.timestamp <= range.end
-      } else if (!stopOffsets.contains(record.partition)) {
-        false
-      } else {
-        if (record.offset >= stopOffsets(record.partition)) stopOffsets.remove(record.partition)
-        record.timestamp >= range.start && record.timestamp <= range.end
+    cursor.reset(kafkaRecords, unbounded)
+  }
+
+  /**
+    * Flyweight cursor over the records of a single poll - records outside the time range and the bounds
+    * set by reset() are skipped before they are exposed and offsets are compared as primitives
+    */
+  private class KafkaLogCursor extends LogCursor[java.lang.Long] {
+
+    private var records: util.Iterator[ConsumerRecord[Array[Byte], Array[Byte]]] = null
+
+    private var unbounded = false
+
+    private var current: ConsumerRecord[Array[Byte], Array[Byte]] = null
+
+    def reset(records: util.Iterator[ConsumerRecord[Array[Byte], Array[Byte]]], unbounded: Boolean): KafkaLogCursor = {
+      this.records = records
+      this.unbounded = unbounded
+      this
+    }
+
+    private def accept(record: ConsumerRecord[Array[Byte], Array[Byte]]): Boolean = {
+      if (!unbounded) {
+        val stopOffset = stopOffsets.get(record.partition)
+        if (stopOffset == null) return false
+        if (record.offset >= stopOffset) stopOffsets.remove(record.partition)
       }
-    }.map {
-      case r => new LogEntry(new java.lang.Long(r.offset), r.key, r.value, r.timestamp, r.value == null)
+      record.timestamp >= range.start && record.timestamp <= range.end
     }
-  }.asJava
 
-  def cancel(): Unit = kafkaConsumer.wakeup()
+    override def next(): Boolean = {
+      while (records.hasNext) {
+        val record = records.next
+        if (accept(record)) {
+          current = record
+          return true
+        }
+      }
+      false
+    }
+
+    override def position: java.lang.Long = current.offset
+
+    override def partition: Int = current.partition
+
+    override def key: Array[Byte] = current.key
+
+    override def value: Array[Byte] = current.value
+
+    override def timestamp: Long = current.timestamp
+
+    override def tombstone: Boolean = current.value == null
+
+    override def isAfter(other: java.lang.Long): Boolean = other == null || current.offset > other
+
+    override def distanceTo(to: java.lang.Long): Long = math.max(0L, to - current.offset)
+  }
+
+  def cancel(): Unit = if (!sharedConsumer) kafkaConsumer.wakeup() else if (shared != null) shared.cancel(sharedPartition)
+
+  /**
+    * the shared consumer pauses partitions on its own when their buffers are full
+    * so pausing is only applied to the dedicated consumer
+    */
+  override def pause(): Unit = if (!sharedConsumer) {
+    paused = true
+    kafkaConsumer.pause(kafkaConsumer.assignment)
+  }
+
+  override def unpause(): Unit = if (!sharedConsumer) {
+    paused = false
+    kafkaConsumer.resume(kafkaConsumer.paused)
+  }
 
   def commit(): JavaPromise[lang.Long] = {
+    if (sharedConsumer) throw new UnsupportedOperationException("Shared kafka consumer cannot commit, kafka.consumer.group.id must be configured")
     val promise = new JavaPromise[java.lang.Long]
-    kafkaConsumer.commitAsync(new OffsetCommitCallback {
+    if (transactionActive) {
+      //the consumed positions are committed atomically with all records written in the transaction since the last commit,
+      //unlike the asynchronous commit a failure is thrown to the caller because the transaction has been aborted
+      val offsets = kafkaConsumer.assignment.asScala.map(tp => tp -> new OffsetAndMetadata(kafkaConsumer.position(tp))).toMap
+      transaction.commit(offsets.asJava, consumerProps.getProperty("group.id"))
+      promise.success(System.currentTimeMillis())
+    } else kafkaConsumer.commitAsync(new OffsetCommitCallback {
+      def onComplete(offsets: util.Map[TopicPartition, OffsetAndMetadata], exception: Exception) = {
+        if (exception != null) promise.failure(exception) else promise.success(System.currentTimeMillis())
+      }
+    })
+    promise
+  }
+
+  override def isTransactional: Boolean = transactionalId.isDefined
+
+  override def addTransactionListener(listener: TransactionListener): Unit = {
+    if (transactionalId.isEmpty) throw new UnsupportedOperationException("kafka.transactional.id is not configured")
+    transaction.addListener(listener)
+    transactionListeners += listener
+    transactionActive = true
+  }
+
+  private val transactionListeners = mutable.ListBuffer[TransactionListener]()
+
+  /**
+    * in the exactly-once mode the offsets must be committed with all writes made so far, so only commit() applies
+    */
+  override def isPositionCommitSupported: Boolean = !sharedConsumer && transactionalId.isEmpty
+
+  override def commit(positions: util.Map[Integer, _]): JavaPromise[lang.Long] = {
+    if (!isPositionCommitSupported) throw new UnsupportedOperationException("Explicit positions can only be committed by a dedicated non-transactional consumer")
+    val promise = new JavaPromise[java.lang.Long]
+    val offsets = positions.asScala.map { case (partition, position) =>
+      //kafka commits the offset of the next record to consume
+      new TopicPartition(topic, partition) -> new OffsetAndMetadata(position.asInstanceOf[java.lang.Long] + 1)
+    }
+    kafkaConsumer.commitAsync(offsets.asJava, new OffsetCommitCallback {
       def onComplete(offsets: util.Map[TopicPartition, OffsetAndMetadata], exception: Exception) = {
         if (exception != null) promise.failure(exception) else promise.success(System.currentTimeMillis())
       }
@@ -238,21 +475,41 @@ class KafkaLogStorage(conf: LogStorageConf) extends LogStorage[java.lang.Long] w
   private var producerActive = false
   @volatile private var produceException: Throwable = null
 
-  lazy protected val producer = new KafkaProducer[Array[Byte], Array[Byte]](producerConfig)
+  lazy protected val producer = if (sharedClients) {
+    SharedKafkaClients.acquireProducer(producerConfig)
+  } else {
+    new KafkaProducer[Array[Byte], Array[Byte]](producerConfig)
+  }
 
   override def append(record: Record[Array[Byte], Array[Byte]]): java.util.concurrent.Future[java.lang.Long] = {
     producerActive = true
+    if (transactionalId.isDefined) transactionActive = true
     val producerRecord: ProducerRecord[Array[Byte], Array[Byte]] = if (record.key == null) {
       new ProducerRecord(topic, null, record.timestamp, null, record.value)
     } else {
       new ProducerRecord(topic, null, record.timestamp, record.key, record.value)
     }
-    //setting the callback because that is the only way how to ensure flush throws exception on error
-    new MappedJavaFuture[RecordMetadata, java.lang.Long](producer.send(producerRecord, this)) {
-      override def map(result: RecordMetadata): java.lang.Long = {
-        result.offset()
+    //setting the callback because that is the only way how to ensure flush throws exception on error,
+    //the same callback completes the returned promise so that the callers can listen without blocking
+    val promise = new JavaPromise[java.lang.Long]
+    val callback = new Callback {
+      override def onCompletion(metadata: RecordMetadata, exception: Exception): Unit = {
+        KafkaLogStorage.this.onCompletion(metadata, exception)
+        if (exception != null) promise.failure(exception) else promise.success(metadata.offset)
       }
     }
+    if (transactionalId.isDefined) transaction.send(producerRecord, callback) else producer.send(producerRecord, callback)
+    promise
+  }
+
+  /**
+    * the producer batches the records by itself, in the exactly-once mode the whole batch is sent within the same transaction
+    */
+  override def appendAll(records: util.List[Record[Array[Byte], Array[Byte]]]): util.List[Future[java.lang.Long]] = {
+    def sendAll(): util.List[Future[java.lang.Long]] = records.asScala.map { record =>
+      if (record.tombstone) delete(record.key) else append(record)
+    }.asJava
+    if (transactionalId.isDefined) transaction.sendAll(sendAll()) else sendAll()
   }
 
   override def delete(key: Array[Byte]): Future[java.lang.Long] = {
@@ -267,13 +524,24 @@ class KafkaLogStorage(conf: LogStorageConf) extends LogStorage[java.lang.Long] w
   }
 
   override def flush() = if (producerActive) {
-    //kafka producer flush doesn't throw exception so we need to use our own exception var set by producer.send callback
+    //kafka producer flush doesn't throw exception so we need to use our own exception var set by producer.send callback,
+    //it is checked after the flush so that the sends which fail while flushing are reported by the same flush
+    if (transactionalId.isDefined) transaction.flush() else producer.flush()
     if (produceException != null) throw produceException
-    producer.flush()
   }
 
   override def close(): Unit = if (!closed) {
-    try kafkaConsumer.close() finally try if (producerActive) producer.close() finally closed = true
+    try {
+      if (!sharedConsumer) kafkaConsumer.close()
+      else if (shared != null) SharedKafkaClients.releaseConsumer(consumerProps, shared, Some(sharedPartition))
+    } finally try {
+      if (transactionActive) {
+        transactionListeners.foreach(transaction.removeListener)
+        KafkaTransaction.release(transaction)
+      } else if (producerActive) {
+        if (sharedClients) SharedKafkaClients.releaseProducer(producerConfig) else producer.close()
+      }
+    } finally closed = true
   }
 
   override def ensureExists(): Unit = {
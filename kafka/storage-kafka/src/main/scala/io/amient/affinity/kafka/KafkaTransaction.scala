@@ -0,0 +1,201 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.kafka
+
+import java.util
+import java.util.Properties
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.concurrent.{CopyOnWriteArrayList, Executors, Future, ThreadFactory, TimeUnit}
+
+import io.amient.affinity.core.storage.TransactionListener
+import org.apache.kafka.clients.consumer.OffsetAndMetadata
+import org.apache.kafka.clients.producer.{Callback, KafkaProducer, ProducerRecord, RecordMetadata}
+import org.apache.kafka.common.TopicPartition
+import org.slf4j.LoggerFactory
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+object KafkaTransaction {
+
+  private val transactions = mutable.Map[String, KafkaTransaction]()
+
+  private val refs = mutable.Map[String, Int]()
+
+  /**
+    * @param transactionalId  kafka transactional.id which identifies the transaction
+    * @param producerConfig   producer configuration which will be used if the transaction doesn't exist yet
+    * @param commitIntervalMs interval at which the transaction is committed if there is no input participating in it
+    * @return the transaction shared by all storages in this process that are configured with the same transactional.id
+    */
+  def acquire(transactionalId: String, producerConfig: Properties, commitIntervalMs: Long): KafkaTransaction = synchronized {
+    refs.put(transactionalId, refs.getOrElse(transactionalId, 0) + 1)
+    transactions.getOrElseUpdate(transactionalId, new KafkaTransaction(transactionalId, producerConfig, commitIntervalMs))
+  }
+
+  def release(transaction: KafkaTransaction): Unit = synchronized {
+    refs.get(transaction.transactionalId) match {
+      case None =>
+      case Some(n) if n > 1 => refs.put(transaction.transactionalId, n - 1)
+      case Some(_) =>
+        refs.remove(transaction.transactionalId)
+        transactions.remove(transaction.transactionalId).foreach(_.close())
+    }
+  }
+}
+
+/**
+  * KafkaTransaction is a single transactional producer shared by all KafkaLogStorage instances in the process
+  * which are configured with the same kafka.transactional.id. A transaction is always open and all appends
+  * of the participating storages are sent within it. The transaction is committed by the input stream storage
+  * together with its consumed offsets, or if there is no input stream participating, every commitIntervalMs
+  * and by flush(), so that no transaction stays open long enough to be aborted by transaction.timeout.ms.
+  *
+  * Registered listeners are notified after each commit or abort, the state of the participating storages
+  * is applied before the commit and must be rolled back by them when the transaction aborts.
+  *
+  * Only writes made in this process can participate: writes into keyspace partitions which are hosted
+  * by other nodes are made by the storages of those nodes and committed by their own transactions,
+  * i.e. they are not atomic with the input of this node.
+  */
+class KafkaTransaction(val transactionalId: String, producerConfig: Properties, commitIntervalMs: Long) {
+
+  private val log = LoggerFactory.getLogger(classOf[KafkaTransaction])
+
+  private val producer = new KafkaProducer[Array[Byte], Array[Byte]](producerConfig)
+
+  //sends can run concurrently but not while the transaction is being committed and a new one started
+  private val lock = new ReentrantReadWriteLock()
+
+  private var inputs = 0
+
+  @volatile private var dirty = false
+
+  private val listeners = new CopyOnWriteArrayList[TransactionListener]()
+
+  private val timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+    override def newThread(r: Runnable): Thread = {
+      val t = new Thread(r, s"kafka-transaction-$transactionalId")
+      t.setDaemon(true)
+      t
+    }
+  })
+
+  producer.initTransactions()
+  producer.beginTransaction()
+
+  //writes may be applied to the state of the listeners after the commit which included them, so the commit
+  //runs even if nothing was sent since the last one, an empty transaction doesn't involve the coordinator
+  timer.scheduleWithFixedDelay(new Runnable {
+    override def run(): Unit = if (synchronized(inputs == 0)) try {
+      commit(new util.HashMap(), null)
+    } catch {
+      case _: Throwable => //already logged and the listeners have been notified
+    }
+  }, commitIntervalMs, commitIntervalMs, TimeUnit.MILLISECONDS)
+
+  /**
+    * register a storage which consumes input records and will commit their offsets within the transaction
+    */
+  def registerInput(): Unit = synchronized(inputs += 1)
+
+  def addListener(listener: TransactionListener): Unit = listeners.add(listener)
+
+  def removeListener(listener: TransactionListener): Unit = listeners.remove(listener)
+
+  def send(record: ProducerRecord[Array[Byte], Array[Byte]], callback: Callback): Future[RecordMetadata] = {
+    lock.readLock.lock()
+    try {
+      dirty = true
+      producer.send(record, callback)
+    } finally {
+      lock.readLock.unlock()
+    }
+  }
+
+  /**
+    * run a batch of sends so that all of them become part of the same transaction
+    */
+  def sendAll[T](sends: => T): T = {
+    lock.readLock.lock()
+    try {
+      sends
+    } finally {
+      lock.readLock.unlock()
+    }
+  }
+
+  /**
+    * atomically commit all records sent since the previous commit together with the consumed offsets,
+    * if the commit fails the transaction is aborted, the listeners are notified and a new transaction is started
+    *
+    * @param offsets consumed offsets of the input
+    * @param groupId consumer group of the input
+    */
+  def commit(offsets: util.Map[TopicPartition, OffsetAndMetadata], groupId: String): Unit = {
+    lock.writeLock.lock()
+    try {
+      try {
+        if (!offsets.isEmpty) producer.sendOffsetsToTransaction(offsets, groupId)
+        producer.commitTransaction()
+      } catch {
+        case e: Exception =>
+          log.error(s"Aborting transaction $transactionalId", e)
+          try producer.abortTransaction() catch {
+            case _: Throwable =>
+          }
+          dirty = false
+          listeners.asScala.foreach(_.onAbort(e))
+          producer.beginTransaction()
+          throw e
+      }
+      dirty = false
+      listeners.asScala.foreach(_.onCommit())
+      producer.beginTransaction()
+    } finally {
+      lock.writeLock.unlock()
+    }
+  }
+
+  /**
+    * flush all records sent so far, if there is no input participating in the transaction, it is also committed
+    */
+  def flush(): Unit = {
+    if (synchronized(inputs == 0)) commit(new util.HashMap(), null) else producer.flush()
+  }
+
+  def close(): Unit = {
+    timer.shutdown()
+    lock.writeLock.lock()
+    try {
+      if (dirty && synchronized(inputs == 0)) try {
+        producer.commitTransaction()
+        dirty = false
+        listeners.asScala.foreach(_.onCommit())
+      } catch {
+        case e: Exception => log.warn(s"Could not commit transaction $transactionalId on close", e)
+      }
+      producer.close()
+    } finally {
+      lock.writeLock.unlock()
+    }
+  }
+
+}
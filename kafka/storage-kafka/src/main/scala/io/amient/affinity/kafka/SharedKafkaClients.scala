@@ -0,0 +1,280 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.kafka
+
+import java.util
+import java.util.Properties
+import java.util.concurrent.{CompletableFuture, ConcurrentHashMap, ExecutionException, LinkedBlockingQueue, TimeUnit}
+
+import org.apache.kafka.clients.consumer.{ConsumerRecord, KafkaConsumer}
+import org.apache.kafka.clients.producer.KafkaProducer
+import org.apache.kafka.common.TopicPartition
+import org.slf4j.LoggerFactory
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+  * Kafka clients shared by all KafkaLogStorage instances in the same JVM which have identical client configuration,
+  * this is enabled with kafka.shared.clients and reduces the number of connections, metadata requests and fetch
+  * buffers of a node which hosts many partitions of many state stores.
+  *
+  * Producers are thread-safe so a single instance is used for each distinct configuration.
+  * Consumers are multiplexed - each SharedKafkaConsumer has a single partition assignment which is a union of
+  * all topic-partitions requested by its users and a background thread polls and demultiplexes the records into
+  * per-partition queues. Because a consumer can hold only one position per topic-partition, two storages
+  * that need the same topic-partition, e.g. two replicas of the same state hosted in a single JVM, will be given
+  * different consumer instances.
+  */
+object SharedKafkaClients {
+
+  private type ClientKey = Map[String, String]
+
+  private val producers = mutable.Map[ClientKey, KafkaProducer[Array[Byte], Array[Byte]]]()
+
+  private val producerRefs = mutable.Map[ClientKey, Int]()
+
+  private val consumers = mutable.Map[ClientKey, List[SharedKafkaConsumer]]()
+
+  private def key(config: Properties): ClientKey = config.asScala.toMap
+
+  def acquireProducer(config: Properties): KafkaProducer[Array[Byte], Array[Byte]] = synchronized {
+    val k = key(config)
+    producerRefs.put(k, producerRefs.getOrElse(k, 0) + 1)
+    producers.getOrElseUpdate(k, new KafkaProducer[Array[Byte], Array[Byte]](config))
+  }
+
+  def releaseProducer(config: Properties): Unit = synchronized {
+    val k = key(config)
+    producerRefs.get(k) match {
+      case None =>
+      case Some(refs) if refs > 1 => producerRefs.put(k, refs - 1)
+      case Some(_) =>
+        producerRefs.remove(k)
+        producers.remove(k).foreach(_.close())
+    }
+  }
+
+  /**
+    * @param config consumer configuration
+    * @param tp     topic-partition which the caller is going to consume or None if the consumer is only
+    *               going to be used for metadata requests
+    * @return a shared consumer which doesn't yet consume the given topic-partition for any other user
+    */
+  def acquireConsumer(config: Properties, tp: Option[TopicPartition]): SharedKafkaConsumer = synchronized {
+    val k = key(config)
+    val pool = consumers.getOrElse(k, Nil)
+    val consumer = pool.find(c => tp.forall(!c.reserved.contains(_))) match {
+      case Some(existing) => existing
+      case None =>
+        val created = new SharedKafkaConsumer(config)
+        consumers.put(k, created :: pool)
+        created
+    }
+    consumer.refs += 1
+    tp.foreach(consumer.reserved += _)
+    consumer
+  }
+
+  def releaseConsumer(config: Properties, consumer: SharedKafkaConsumer, tp: Option[TopicPartition]): Unit = synchronized {
+    consumer.refs -= 1
+    tp.foreach { tp =>
+      consumer.reserved -= tp
+      if (consumer.refs > 0) consumer.unassign(tp)
+    }
+    if (consumer.refs == 0) {
+      val k = key(config)
+      consumers.get(k).map(_.filter(_ != consumer)) match {
+        case Some(Nil) | None => consumers.remove(k)
+        case Some(remaining) => consumers.put(k, remaining)
+      }
+      consumer.close()
+    }
+  }
+
+}
+
+class SharedKafkaConsumer(config: Properties) extends Thread {
+
+  private val log = LoggerFactory.getLogger(classOf[SharedKafkaConsumer])
+
+  /**
+    * maximum number of records buffered for a single topic-partition before its fetching is paused
+    */
+  private val maxQueuedRecords = 10000
+
+  private[kafka] var refs = 0
+
+  private[kafka] val reserved = mutable.Set[TopicPartition]()
+
+  private val consumer = new KafkaConsumer[Array[Byte], Array[Byte]](config)
+
+  private trait Command extends Runnable {
+    def fail(e: Throwable): Unit
+  }
+
+  private val commands = new LinkedBlockingQueue[Command]()
+
+  private val queues = new ConcurrentHashMap[TopicPartition, LinkedBlockingQueue[ConsumerRecord[Array[Byte], Array[Byte]]]]()
+
+  /**
+    * marker which is put into a partition queue to interrupt a blocked fetch
+    */
+  private val Cancelled = new ConsumerRecord[Array[Byte], Array[Byte]]("", -1, -1L, null, null)
+
+  @volatile private var closed = false
+
+  @volatile private var failure: Throwable = null
+
+  setDaemon(true)
+  setName(s"shared-kafka-consumer-${getId}")
+  start()
+
+  /**
+    * execute a function on the underlying consumer in the polling thread
+    *
+    * @param f function to execute
+    * @tparam T result type
+    * @return result of the function, any exception thrown by the function is rethrown to the caller
+    */
+  def execute[T](f: KafkaConsumer[Array[Byte], Array[Byte]] => T): T = {
+    if (closed) throw new IllegalStateException("Shared kafka consumer is closed", failure)
+    val result = new CompletableFuture[T]
+    commands.add(new Command {
+      override def run(): Unit = try result.complete(f(consumer)) catch {
+        case e: Throwable => result.completeExceptionally(e)
+      }
+
+      override def fail(e: Throwable): Unit = result.completeExceptionally(e)
+    })
+    //the polling thread may have terminated after the check above and before the command was queued
+    if (closed) failPendingCommands()
+    try result.get catch {
+      case e: ExecutionException => throw e.getCause
+    }
+  }
+
+  private def failPendingCommands(): Unit = {
+    var command = commands.poll()
+    while (command != null) {
+      command.fail(new IllegalStateException("Shared kafka consumer is closed", failure))
+      command = commands.poll()
+    }
+  }
+
+  /**
+    * add the topic-partition to the assignment and position it at the given offset,
+    * any records buffered for the topic-partition are discarded
+    */
+  def seek(tp: TopicPartition, offset: Long): Unit = execute { c =>
+    queues.putIfAbsent(tp, new LinkedBlockingQueue())
+    queues.get(tp).clear()
+    if (!c.assignment.contains(tp)) c.assign((c.assignment.asScala + tp).asJava)
+    c.seek(tp, offset)
+    c.resume(List(tp).asJava)
+  }
+
+  def unassign(tp: TopicPartition): Unit = execute { c =>
+    queues.remove(tp)
+    if (c.assignment.contains(tp)) c.assign((c.assignment.asScala - tp).asJava)
+  }
+
+  /**
+    * @param tp        topic-partition previously positioned with seek
+    * @param timeoutMs maximum time to wait for the first record
+    * @return all buffered records of the topic-partition, empty if none arrived within the timeout,
+    *         or null if the fetch was cancelled
+    */
+  def fetch(tp: TopicPartition, timeoutMs: Long): util.List[ConsumerRecord[Array[Byte], Array[Byte]]] = {
+    val queue = queues.get(tp)
+    if (queue == null) throw new IllegalStateException(s"$tp is not assigned to the shared consumer")
+    val result = new util.ArrayList[ConsumerRecord[Array[Byte], Array[Byte]]]()
+    val first = queue.poll(timeoutMs, TimeUnit.MILLISECONDS)
+    if (first == Cancelled) return null
+    if (first != null) {
+      result.add(first)
+      queue.drainTo(result)
+      if (result.remove(Cancelled)) return null
+    }
+    result
+  }
+
+  def cancel(tp: TopicPartition): Unit = Option(queues.get(tp)).foreach(_.add(Cancelled))
+
+  /**
+    * @return number of records of the topic-partition which were not yet returned by fetch
+    *         or -1 if the consumer doesn't know the lag yet
+    */
+  def lag(tp: TopicPartition): Long = {
+    val consumerLag = consumer.metrics.asScala.collectFirst {
+      case (name, metric) if name.group == "consumer-fetch-manager-metrics" && name.name == "records-lag"
+        && name.tags.get("topic") == tp.topic.replace('.', '_') && name.tags.get("partition") == tp.partition.toString =>
+        metric.metricValue
+    }.collect {
+      case value: java.lang.Double if !value.isNaN => value.longValue
+    }
+    consumerLag.map(_ + Option(queues.get(tp)).map(_.size.toLong).getOrElse(0L)).getOrElse(-1L)
+  }
+
+  override def run(): Unit = {
+    try {
+      while (!closed) {
+        var command = commands.poll()
+        while (command != null) {
+          command.run()
+          command = commands.poll()
+        }
+        if (consumer.assignment.isEmpty) {
+          Option(commands.poll(100, TimeUnit.MILLISECONDS)).foreach(_.run())
+        } else {
+          val paused = consumer.paused.asScala.filter(tp => Option(queues.get(tp)).forall(_.size < maxQueuedRecords / 2))
+          if (paused.nonEmpty) consumer.resume(paused.asJava)
+          val records = consumer.poll(java.time.Duration.ofMillis(50))
+          records.partitions.asScala.foreach { tp =>
+            val queue = queues.get(tp)
+            if (queue != null) {
+              queue.addAll(records.records(tp))
+              if (queue.size >= maxQueuedRecords) consumer.pause(List(tp).asJava)
+            }
+          }
+        }
+      }
+    } catch {
+      case e: Throwable =>
+        failure = e
+        log.error("Failure in the shared kafka consumer thread", e)
+    } finally {
+      //no more commands will be executed so all callers waiting for them and all future callers must fail
+      closed = true
+      try {
+        failPendingCommands()
+        consumer.close()
+      } finally {
+        queues.values.asScala.foreach(_.add(Cancelled))
+      }
+    }
+  }
+
+  def close(): Unit = {
+    closed = true
+    join()
+  }
+
+}
@@ -28,7 +28,8 @@ import io.amient.affinity.avro.ZookeeperSchemaRegistry.ZkAvroConf
 import io.amient.affinity.avro.record.AvroRecord
 import io.amient.affinity.avro.record.AvroSerde.AvroConf
 import io.amient.affinity.core.state.KVStoreLocal
-import io.amient.affinity.core.util.{AffinityTestBase, ByteUtils}
+import io.amient.affinity.core.storage.{LogStorage, LogStorageConf, Record, TransactionListener}
+import io.amient.affinity.core.util.{AffinityTestBase, ByteUtils, TimeRange}
 import io.amient.affinity.{AffinityActorSystem, Conf}
 import org.apache.kafka.clients.consumer.KafkaConsumer
 import org.scalatest.{FlatSpec, Matchers}
@@ -119,6 +120,120 @@ class KafkaStorageSpec extends FlatSpec with AffinityTestBase with EmbeddedKafka
     //FIXME add stroage test for state.external=true
   }
 
+  it should "include late records with a timestamp within a bounded range unless stopping by timestamp" in {
+    def storage(topic: String, stopByTimestamp: Boolean) = LogStorage.newInstanceEnsureExists(new LogStorageConf().apply(ConfigFactory.parseMap(Map(
+      "class" -> classOf[KafkaLogStorage].getName,
+      "kafka.topic" -> topic,
+      "kafka.partitions" -> "1",
+      "kafka.bootstrap.servers" -> kafkaBootstrap,
+      "kafka.range.stop.by.timestamp" -> stopByTimestamp.toString
+    )))).asInstanceOf[KafkaLogStorage]
+    val writer = storage("out-of-order-range", stopByTimestamp = false)
+    val t = System.currentTimeMillis() - 60000
+    //the last record is appended after a record which is beyond the range but its own timestamp is within it
+    val writes = List(t + 100, t + 150, t + 300, t + 120).map { ts =>
+      writer.append(new Record(s"k$ts".getBytes, s"v$ts".getBytes, ts))
+    }
+    writer.flush()
+    writes.foreach(_.get)
+    writer.close()
+    def readRange(stopByTimestamp: Boolean): List[Long] = {
+      val reader = storage("out-of-order-range", stopByTimestamp)
+      try {
+        reader.reset(0, new TimeRange(t + 100, t + 200))
+        reader.boundedIterator().map(_.timestamp).toList
+      } finally {
+        reader.close()
+      }
+    }
+    readRange(stopByTimestamp = false) should be(List(t + 100, t + 150, t + 120))
+    readRange(stopByTimestamp = true) should be(List(t + 100, t + 150))
+  }
+
+  it should "commit transactional writes without an input on the commit interval" in {
+    def storage(transactionalId: String) = LogStorage.newInstanceEnsureExists(new LogStorageConf().apply(ConfigFactory.parseMap(Map(
+      "class" -> classOf[KafkaLogStorage].getName,
+      "commit.interval.ms" -> "500",
+      "kafka.topic" -> "transactional-state",
+      "kafka.partitions" -> "1",
+      "kafka.bootstrap.servers" -> kafkaBootstrap,
+      "kafka.transactional.id" -> transactionalId
+    )))).asInstanceOf[KafkaLogStorage]
+    def readCommitted(): List[String] = {
+      val reader = storage("transactional-state-reader")
+      try {
+        reader.reset(0, TimeRange.UNBOUNDED)
+        reader.boundedIterator().map(e => new String(e.value)).toList
+      } finally {
+        reader.close()
+      }
+    }
+    val writer = storage("transactional-state-writer")
+    val commits = new AtomicInteger(0)
+    writer.addTransactionListener(new TransactionListener {
+      override def onCommit(): Unit = commits.incrementAndGet()
+      override def onAbort(cause: Exception): Unit = ()
+    })
+    try {
+      writer.append(new Record("k1".getBytes, "v1".getBytes, System.currentTimeMillis())).get
+      //nothing has been flushed or committed by an input, the transaction is committed by the timer
+      val deadline = System.currentTimeMillis() + specTimeout.toMillis
+      while (commits.get == 0 && System.currentTimeMillis() < deadline) Thread.sleep(100)
+      commits.get should be > 0
+      readCommitted() should be(List("v1"))
+    } finally {
+      writer.close()
+    }
+  }
+
+  it should "apply the idempotent producer configuration" in {
+    def storage(producer: (String, String)*) = new KafkaLogStorage(new LogStorageConf().apply(ConfigFactory.parseMap(Map(
+      "class" -> classOf[KafkaLogStorage].getName,
+      "kafka.topic" -> "idempotent-producer",
+      "kafka.partitions" -> "1",
+      "kafka.bootstrap.servers" -> kafkaBootstrap,
+      "kafka.idempotent" -> "true"
+    ) ++ producer.map { case (key, value) => s"kafka.producer.$key" -> value })))
+    an[IllegalArgumentException] should be thrownBy storage("acks" -> "1")
+    val writer = storage("linger.ms" -> "20")
+    try {
+      writer.producerConfig.getProperty("enable.idempotence") should be("true")
+      writer.producerConfig.getProperty("acks") should be("all")
+      writer.producerConfig.getProperty("max.in.flight.requests.per.connection") should be("5")
+      writer.producerConfig.getProperty("compression.type") should be("lz4")
+      writer.producerConfig.getProperty("batch.size") should be("131072")
+      writer.producerConfig.getProperty("linger.ms") should be("20")
+      writer.ensureExists()
+      val write = writer.append(new Record("k1".getBytes, "v1".getBytes, System.currentTimeMillis()))
+      writer.flush()
+      write.get should be(0L)
+    } finally {
+      writer.close()
+    }
+  }
+
+  it should "throw from flush() when a send failed" in {
+    val writer = new KafkaLogStorage(new LogStorageConf().apply(ConfigFactory.parseMap(Map(
+      "class" -> classOf[KafkaLogStorage].getName,
+      "kafka.topic" -> "failed-send",
+      "kafka.partitions" -> "1",
+      "kafka.bootstrap.servers" -> kafkaBootstrap,
+      "kafka.idempotent" -> "true",
+      "kafka.producer.max.request.size" -> "4194304"
+    ))))
+    try {
+      writer.ensureExists()
+      //the producer accepts the record but the broker rejects it as larger than its message.max.bytes
+      val value = new Array[Byte](2 * 1024 * 1024)
+      new java.util.Random().nextBytes(value)
+      val write = writer.append(new Record("k1".getBytes, value, System.currentTimeMillis()))
+      an[Exception] should be thrownBy writer.flush()
+      an[Exception] should be thrownBy write.get
+    } finally {
+      writer.close()
+    }
+  }
+
   behavior of "KafkaDeserializer"
 
 
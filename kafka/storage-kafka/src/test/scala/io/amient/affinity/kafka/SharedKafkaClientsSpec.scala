@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016-2018 Michal Harish, michal.harish@gmail.com
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.amient.affinity.kafka
+
+import java.util.Properties
+
+import org.apache.kafka.clients.producer.ProducerRecord
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.serialization.{ByteArrayDeserializer, ByteArraySerializer}
+import org.scalatest.{FlatSpec, Matchers}
+
+import scala.collection.JavaConverters._
+
+class SharedKafkaClientsSpec extends FlatSpec with EmbeddedKafka with Matchers {
+
+  override def numPartitions: Int = 2
+
+  def producerProps = new Properties() {
+    put("bootstrap.servers", kafkaBootstrap)
+    put("key.serializer", classOf[ByteArraySerializer].getName)
+    put("value.serializer", classOf[ByteArraySerializer].getName)
+  }
+
+  def consumerProps = new Properties() {
+    put("bootstrap.servers", kafkaBootstrap)
+    put("key.deserializer", classOf[ByteArrayDeserializer].getName)
+    put("value.deserializer", classOf[ByteArrayDeserializer].getName)
+  }
+
+  behavior of "SharedKafkaClients"
+
+  it should "share a single producer for identical configuration until all users release it" in {
+    val p1 = SharedKafkaClients.acquireProducer(producerProps)
+    val p2 = SharedKafkaClients.acquireProducer(producerProps)
+    p1 should be theSameInstanceAs p2
+    SharedKafkaClients.releaseProducer(producerProps)
+    val p3 = SharedKafkaClients.acquireProducer(producerProps)
+    p3 should be theSameInstanceAs p1
+    SharedKafkaClients.releaseProducer(producerProps)
+    SharedKafkaClients.releaseProducer(producerProps)
+    val p4 = SharedKafkaClients.acquireProducer(producerProps)
+    p4 should not be theSameInstanceAs(p1)
+    SharedKafkaClients.releaseProducer(producerProps)
+  }
+
+  it should "demultiplex partitions of a shared consumer and never share a topic-partition" in {
+    val topic = "shared-clients-demux"
+    createTopic(topic)
+    val producer = SharedKafkaClients.acquireProducer(producerProps)
+    try {
+      (0 until 10).foreach { i =>
+        producer.send(new ProducerRecord[Array[Byte], Array[Byte]](topic, Int.box(i % 2), s"k$i".getBytes, s"v$i".getBytes)).get
+      }
+    } finally {
+      SharedKafkaClients.releaseProducer(producerProps)
+    }
+    val tp0 = new TopicPartition(topic, 0)
+    val tp1 = new TopicPartition(topic, 1)
+    val c0 = SharedKafkaClients.acquireConsumer(consumerProps, Some(tp0))
+    val c1 = SharedKafkaClients.acquireConsumer(consumerProps, Some(tp1))
+    val replica = SharedKafkaClients.acquireConsumer(consumerProps, Some(tp0))
+    try {
+      c1 should be theSameInstanceAs c0
+      replica should not be theSameInstanceAs(c0)
+      c0.seek(tp0, 0L)
+      c1.seek(tp1, 0L)
+      def fetchAll(tp: TopicPartition): List[String] = {
+        val values = scala.collection.mutable.ListBuffer[String]()
+        while (values.size < 5) values ++= c0.fetch(tp, 5000).asScala.map(r => new String(r.value))
+        values.toList
+      }
+      fetchAll(tp0) should be(List("v0", "v2", "v4", "v6", "v8"))
+      fetchAll(tp1) should be(List("v1", "v3", "v5", "v7", "v9"))
+    } finally {
+      SharedKafkaClients.releaseConsumer(consumerProps, replica, Some(tp0))
+      SharedKafkaClients.releaseConsumer(consumerProps, c1, Some(tp1))
+      SharedKafkaClients.releaseConsumer(consumerProps, c0, Some(tp0))
+    }
+  }
+
+  it should "fail pending and new commands when the polling thread terminates" in {
+    val topic = "shared-clients-failure"
+    createTopic(topic)
+    val tp = new TopicPartition(topic, 0)
+    val consumer = new SharedKafkaConsumer(consumerProps)
+    consumer.seek(tp, 0L)
+    //a wakeup makes the next poll of the polling thread throw and terminate it
+    consumer.execute(_.wakeup())
+    consumer.join(10000)
+    consumer.isAlive should be(false)
+    an[IllegalStateException] should be thrownBy consumer.execute(_.assignment)
+    consumer.fetch(tp, 1000) should be(null)
+  }
+
+}
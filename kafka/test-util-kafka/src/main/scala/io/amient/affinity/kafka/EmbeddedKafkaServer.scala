@@ -34,6 +34,8 @@ trait EmbeddedKafkaServer extends EmbeddedService with EmbeddedZookeperServer {
     put("delete.topic.enable", "true")
     put("zookeeper.connect", zkConnect)
     put("offsets.topic.replication.factor", "1")
+    put("transaction.state.log.replication.factor", "1")
+    put("transaction.state.log.min.isr", "1")
   })
 
   private val kafka = new KafkaServerStartable(kafkaConfig)
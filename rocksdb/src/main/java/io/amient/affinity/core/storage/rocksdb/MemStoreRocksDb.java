@@ -194,9 +194,21 @@ public class MemStoreRocksDb extends MemStore {
         }
     }
 
+    @Override
+    public Comparator<ByteBuffer> keyOrder() {
+        //the default rocksdb comparator orders keys by their unsigned bytes
+        return ByteUtils::compare;
+    }
+
     @Override
     public CloseableIterator<Map.Entry<ByteBuffer, ByteBuffer>> iterator(ByteBuffer prefix) {
+        return iterator(prefix, null);
+    }
+
+    @Override
+    public CloseableIterator<Map.Entry<ByteBuffer, ByteBuffer>> iterator(ByteBuffer prefix, ByteBuffer after) {
         byte[] prefixBytes = prefix == null ? null : ByteUtils.bufToArray(prefix);
+        byte[] afterBytes = after == null ? null : ByteUtils.bufToArray(after);
         return new CloseableIterator<Map.Entry<ByteBuffer, ByteBuffer>>() {
             private RocksIterator rocksIterator = null;
             private boolean checked = false;
@@ -206,7 +218,10 @@ public class MemStoreRocksDb extends MemStore {
                 checked = true;
                 if (rocksIterator == null) {
                     rocksIterator = internal.newIterator();
-                    if (prefixBytes == null) {
+                    if (afterBytes != null) {
+                        rocksIterator.seek(afterBytes);
+                        if (rocksIterator.isValid() && Arrays.equals(rocksIterator.key(), afterBytes)) rocksIterator.next();
+                    } else if (prefixBytes == null) {
                         rocksIterator.seekToFirst();
                     } else {
                         rocksIterator.seek(prefixBytes);
@@ -255,6 +270,22 @@ public class MemStoreRocksDb extends MemStore {
         }
     }
 
+    @Override
+    synchronized public void write(List<Map.Entry<ByteBuffer, ByteBuffer>> batch) {
+        try (WriteBatch writeBatch = new WriteBatch(); WriteOptions writeOptions = new WriteOptions()) {
+            for (Map.Entry<ByteBuffer, ByteBuffer> entry : batch) {
+                if (entry.getValue() == null) {
+                    writeBatch.delete(ByteUtils.bufToArray(entry.getKey()));
+                } else {
+                    writeBatch.put(ByteUtils.bufToArray(entry.getKey()), ByteUtils.bufToArray(entry.getValue()));
+                }
+            }
+            internal.write(writeOptions, writeBatch);
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public long numKeys() {
         try {